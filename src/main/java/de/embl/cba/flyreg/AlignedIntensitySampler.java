@@ -0,0 +1,256 @@
+/*-
+ * #%L
+ * Fiji plugin for automated 3d spindle morphometry
+ * %%
+ * Copyright (C) 2018 - 2021 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.embl.cba.flyreg;
+
+import de.embl.cba.morphometry.geometry.CoordinatesAndValues;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealRandomAccess;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.interpolation.InterpolatorFactory;
+import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
+import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+import static de.embl.cba.morphometry.Constants.X;
+import static de.embl.cba.morphometry.Constants.Y;
+import static de.embl.cba.morphometry.Constants.Z;
+
+/**
+ * Computes profiles and projections of transformed (aligned) images
+ * by sampling through the transformation, i.e. without copying the
+ * transformed image into memory.
+ *
+ * The results are the same as computing them on
+ * {@link de.embl.cba.transforms.utils.Transforms#createTransformedView} copies,
+ * but only the (1D or 2D) results are stored.
+ */
+public class AlignedIntensitySampler< T extends RealType< T > & NativeType< T > >
+{
+	private final RandomAccessibleInterval< T > intensities;
+	private final RandomAccessibleInterval< BitType > mask;
+	private final AffineTransform3D alignedToSource;
+	private final InterpolatorFactory< T, RandomAccessible< T > > interpolatorFactory;
+	private final Interval interval;
+
+	/**
+	 * @param intensities
+	 * 				intensities, in source coordinates
+	 * @param mask
+	 * 				mask, in source coordinates (may be null, if no profiles within the mask are needed)
+	 * @param sourceToAligned
+	 * 				transformation from the source to the aligned coordinates
+	 * @param linearInterpolation
+	 * 				interpolate the intensities n-linear, otherwise nearest neighbor
+	 */
+	public AlignedIntensitySampler(
+			RandomAccessibleInterval< T > intensities,
+			RandomAccessibleInterval< BitType > mask,
+			AffineTransform3D sourceToAligned,
+			boolean linearInterpolation )
+	{
+		this.intensities = intensities;
+		this.mask = mask;
+		this.alignedToSource = sourceToAligned.inverse();
+		this.interpolatorFactory = linearInterpolation
+				? new NLinearInterpolatorFactory()
+				: new NearestNeighborInterpolatorFactory();
+		this.interval = getTransformedBoundingBox( intensities, sourceToAligned );
+	}
+
+	/**
+	 * @return bounding box of the aligned intensities
+	 */
+	public Interval getInterval()
+	{
+		return interval;
+	}
+
+	/**
+	 * Average intensity within the mask in each x-plane of the aligned image.
+	 *
+	 * @param calibration
+	 * 				voxel size, for the coordinates of the profile
+	 * @return coordinates along the x-axis and average intensities
+	 */
+	public CoordinatesAndValues averageIntensitiesAlongXWithinMask( double calibration )
+	{
+		final int nx = ( int ) interval.dimension( X );
+		final int nz = ( int ) interval.dimension( Z );
+
+		final double[][] sums = new double[ nz ][ nx ];
+		final long[][] counts = new long[ nz ][ nx ];
+
+		IntStream.range( 0, nz ).parallel().forEach( zIndex ->
+		{
+			final RealRandomAccess< T > intensityAccess = createIntensityAccess();
+			final RealRandomAccess< BitType > maskAccess = createMaskAccess();
+			final double[] aligned = new double[ 3 ];
+			final double[] source = new double[ 3 ];
+
+			aligned[ Z ] = interval.min( Z ) + zIndex;
+			for ( long y = interval.min( Y ); y <= interval.max( Y ); ++y )
+			{
+				aligned[ Y ] = y;
+				for ( int xIndex = 0; xIndex < nx; ++xIndex )
+				{
+					aligned[ X ] = interval.min( X ) + xIndex;
+					alignedToSource.apply( aligned, source );
+
+					maskAccess.setPosition( source );
+					if ( ! maskAccess.get().get() ) continue;
+
+					intensityAccess.setPosition( source );
+					sums[ zIndex ][ xIndex ] += intensityAccess.get().getRealDouble();
+					counts[ zIndex ][ xIndex ]++;
+				}
+			}
+		} );
+
+		final CoordinatesAndValues coordinatesAndValues = new CoordinatesAndValues();
+		coordinatesAndValues.coordinates = new ArrayList<>();
+		coordinatesAndValues.values = new ArrayList<>();
+
+		for ( int xIndex = 0; xIndex < nx; ++xIndex )
+		{
+			double sum = 0;
+			long count = 0;
+			for ( int zIndex = 0; zIndex < nz; ++zIndex )
+			{
+				sum += sums[ zIndex ][ xIndex ];
+				count += counts[ zIndex ][ xIndex ];
+			}
+
+			coordinatesAndValues.coordinates.add( ( interval.min( X ) + xIndex ) * calibration );
+			coordinatesAndValues.values.add( count > 0 ? sum / count : 0.0 );
+		}
+
+		return coordinatesAndValues;
+	}
+
+	/**
+	 * Average projection of the aligned intensities along the x-axis.
+	 *
+	 * @param xMin
+	 * 				minimal x-coordinate (calibrated) of the projection range
+	 * @param xMax
+	 * 				maximal x-coordinate (calibrated) of the projection range
+	 * @param calibration
+	 * 				voxel size
+	 * @return YZ projection, on the YZ interval of the aligned intensities
+	 */
+	public RandomAccessibleInterval< T > averageProjectionAlongX( double xMin, double xMax, double calibration )
+	{
+		final long xMinPixel = Math.max( interval.min( X ), ( long ) ( xMin / calibration ) );
+		final long xMaxPixel = Math.min( interval.max( X ), ( long ) ( xMax / calibration ) );
+		final long numPlanes = Math.max( 0, xMaxPixel - xMinPixel + 1 );
+
+		final Img< T > projection = new ArrayImgFactory<>( Views.iterable( intensities ).firstElement().createVariable() )
+				.create( interval.dimension( Y ), interval.dimension( Z ) );
+
+		IntStream.range( 0, ( int ) interval.dimension( Z ) ).parallel().forEach( zIndex ->
+		{
+			final RealRandomAccess< T > intensityAccess = createIntensityAccess();
+			final RandomAccess< T > projectionAccess = projection.randomAccess();
+			final double[] aligned = new double[ 3 ];
+			final double[] source = new double[ 3 ];
+
+			aligned[ Z ] = interval.min( Z ) + zIndex;
+			projectionAccess.setPosition( zIndex, 1 );
+			for ( int yIndex = 0; yIndex < interval.dimension( Y ); ++yIndex )
+			{
+				aligned[ Y ] = interval.min( Y ) + yIndex;
+
+				double sum = 0;
+				for ( long x = xMinPixel; x <= xMaxPixel; ++x )
+				{
+					aligned[ X ] = x;
+					alignedToSource.apply( aligned, source );
+					intensityAccess.setPosition( source );
+					sum += intensityAccess.get().getRealDouble();
+				}
+
+				projectionAccess.setPosition( yIndex, 0 );
+				projectionAccess.get().setReal( numPlanes > 0 ? sum / numPlanes : 0 );
+			}
+		} );
+
+		return Views.translate( projection, interval.min( Y ), interval.min( Z ) );
+	}
+
+	private RealRandomAccess< T > createIntensityAccess()
+	{
+		final RandomAccessible< T > extended = Views.extendZero( intensities );
+		return Views.interpolate( extended, interpolatorFactory ).realRandomAccess();
+	}
+
+	private RealRandomAccess< BitType > createMaskAccess()
+	{
+		final RandomAccessible< BitType > extended = Views.extendZero( mask );
+		return Views.interpolate( extended, new NearestNeighborInterpolatorFactory< BitType >() ).realRandomAccess();
+	}
+
+	private static Interval getTransformedBoundingBox( Interval interval, AffineTransform3D transform )
+	{
+		final long[] min = new long[ 3 ];
+		final long[] max = new long[ 3 ];
+		Arrays.fill( min, Long.MAX_VALUE );
+		Arrays.fill( max, Long.MIN_VALUE );
+
+		final double[] corner = new double[ 3 ];
+		final double[] transformed = new double[ 3 ];
+		for ( int i = 0; i < 8; ++i )
+		{
+			for ( int d = 0; d < 3; ++d )
+				corner[ d ] = ( ( i >> d ) & 1 ) == 0 ? interval.min( d ) : interval.max( d );
+
+			transform.apply( corner, transformed );
+
+			for ( int d = 0; d < 3; ++d )
+			{
+				min[ d ] = Math.min( min[ d ], ( long ) Math.floor( transformed[ d ] ) );
+				max[ d ] = Math.max( max[ d ], ( long ) Math.ceil( transformed[ d ] ) );
+			}
+		}
+
+		return new FinalInterval( min, max );
+	}
+}
@@ -0,0 +1,188 @@
+/*-
+ * #%L
+ * Fiji plugin for automated 3d spindle morphometry
+ * %%
+ * Copyright (C) 2018 - 2021 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.embl.cba.flyreg;
+
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+import java.util.Arrays;
+
+/**
+ * Binary morphology with spherical structuring elements,
+ * computed via thresholding of distance transforms.
+ *
+ * - The cost does not depend on the radius of the structuring element
+ * - Identical results to using a {@link net.imglib2.algorithm.neighborhood.HyperSphereShape}
+ *   with the same radius, with zero background outside of the mask
+ */
+public class FastMorphology
+{
+	/**
+	 * Morphological closing, i.e. dilation followed by erosion.
+	 *
+	 * @param mask
+	 * 				binary mask
+	 * @param radius
+	 * 				radius of the spherical structuring element in pixels
+	 * @return closed mask, on the same interval as the input mask
+	 */
+	public static RandomAccessibleInterval< BitType > close( RandomAccessibleInterval< BitType > mask, int radius )
+	{
+		if ( radius <= 0 ) return mask;
+
+		/**
+		 * Pad, such that the dilation fits into the array
+		 * and the array border is always background
+		 */
+		final int padding = radius + 1;
+		final int n = mask.numDimensions();
+		final int[] dimensions = new int[ n ];
+		long numElements = 1;
+		for ( int d = 0; d < n; ++d )
+		{
+			dimensions[ d ] = ( int ) mask.dimension( d ) + 2 * padding;
+			numElements *= dimensions[ d ];
+		}
+
+		if ( numElements > Integer.MAX_VALUE )
+			throw new IllegalArgumentException( "Mask is too large for closing: " + Intervals.toString( mask ) );
+
+		final float[] values = new float[ ( int ) numElements ];
+		final long squaredRadius = ( long ) radius * radius;
+
+		/**
+		 * Dilation
+		 * - inside if squared distance to foreground <= radius^2
+		 */
+		Arrays.fill( values, SquaredDistanceTransform.INFINITY );
+		forEachVoxel( mask, dimensions, padding, ( index, value ) -> {
+			if ( value.get() ) values[ index ] = 0;
+		} );
+
+		SquaredDistanceTransform.transform( values, dimensions );
+
+		/**
+		 * Erosion of the dilated mask
+		 * - inside if squared distance to background > radius^2
+		 */
+		for ( int i = 0; i < values.length; ++i )
+			values[ i ] = values[ i ] <= squaredRadius ? SquaredDistanceTransform.INFINITY : 0;
+
+		SquaredDistanceTransform.transform( values, dimensions );
+
+		final Img< BitType > closed = ArrayImgs.bits( Intervals.dimensionsAsLongArray( mask ) );
+		forEachVoxel( Views.translate( closed, Intervals.minAsLongArray( mask ) ), dimensions, padding, ( index, value ) -> {
+			value.set( values[ index ] > squaredRadius );
+		} );
+
+		return Views.translate( closed, Intervals.minAsLongArray( mask ) );
+	}
+
+	/**
+	 * Morphological dilation.
+	 *
+	 * @param mask
+	 * 				binary mask
+	 * @param radius
+	 * 				radius of the spherical structuring element in pixels
+	 * @return dilated mask, on the interval of the input mask enlarged by the radius,
+	 * 		   such that the dilation is not cropped
+	 */
+	public static RandomAccessibleInterval< BitType > dilate( RandomAccessibleInterval< BitType > mask, int radius )
+	{
+		if ( radius <= 0 ) return mask;
+
+		final int n = mask.numDimensions();
+		final int[] dimensions = new int[ n ];
+		long numElements = 1;
+		for ( int d = 0; d < n; ++d )
+		{
+			dimensions[ d ] = ( int ) mask.dimension( d ) + 2 * radius;
+			numElements *= dimensions[ d ];
+		}
+
+		if ( numElements > Integer.MAX_VALUE )
+			throw new IllegalArgumentException( "Mask is too large for dilation: " + Intervals.toString( mask ) );
+
+		final float[] values = new float[ ( int ) numElements ];
+		final long squaredRadius = ( long ) radius * radius;
+
+		/**
+		 * Inside if squared distance to foreground <= radius^2
+		 */
+		Arrays.fill( values, SquaredDistanceTransform.INFINITY );
+		forEachVoxel( mask, dimensions, radius, ( index, value ) -> {
+			if ( value.get() ) values[ index ] = 0;
+		} );
+
+		SquaredDistanceTransform.transform( values, dimensions );
+
+		final Interval dilatedInterval = Intervals.expand( mask, radius );
+		final RandomAccessibleInterval< BitType > dilated =
+				Views.translate( ArrayImgs.bits( Intervals.dimensionsAsLongArray( dilatedInterval ) ),
+						Intervals.minAsLongArray( dilatedInterval ) );
+
+		forEachVoxel( dilated, dimensions, 0, ( index, value ) -> {
+			value.set( values[ index ] <= squaredRadius );
+		} );
+
+		return dilated;
+	}
+
+	interface VoxelConsumer
+	{
+		void accept( int index, BitType value );
+	}
+
+	private static void forEachVoxel( RandomAccessibleInterval< BitType > mask, int[] dimensions, int padding, VoxelConsumer consumer )
+	{
+		final int n = mask.numDimensions();
+		final long[] min = Intervals.minAsLongArray( mask );
+		final long[] position = new long[ n ];
+
+		final Cursor< BitType > cursor = Views.flatIterable( mask ).localizingCursor();
+		while ( cursor.hasNext() )
+		{
+			final BitType value = cursor.next();
+			cursor.localize( position );
+
+			int index = 0;
+			for ( int d = n - 1; d >= 0; --d )
+				index = index * dimensions[ d ] + ( int ) ( position[ d ] - min[ d ] ) + padding;
+
+			consumer.accept( index, value );
+		}
+	}
+}
@@ -39,26 +39,41 @@ import de.embl.cba.morphometry.regions.Regions;
 import de.embl.cba.transforms.utils.Transforms;
 import ij.ImagePlus;
 import net.imagej.ops.OpService;
+import net.imglib2.Cursor;
 import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealPoint;
 import net.imglib2.algorithm.labeling.ConnectedComponents;
 import net.imglib2.algorithm.neighborhood.HyperSphereShape;
 import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
 import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.IntArray;
 import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.roi.labeling.ImgLabeling;
 import net.imglib2.roi.labeling.LabelRegion;
+import net.imglib2.roi.labeling.LabelRegions;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.logic.BitType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.IntType;
-import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
 
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Objects;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.IntFunction;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import static de.embl.cba.morphometry.Constants.X;
 import static de.embl.cba.morphometry.Constants.Z;
@@ -79,15 +94,17 @@ public class FlyEmbryoNerveCordRegistration< T extends RealType< T > & NativeTyp
 	private double[] correctedCalibration;
 	private AffineTransform3D registration;
 	private double[] registrationCalibration;
-	private RandomAccessibleInterval< BitType > yawAndOrientationAlignedIntensity;
 	private RandomAccessibleInterval< T > isotropic;
 	private RandomAccessibleInterval< T > intensityCorrected;
 	private RandomAccessibleInterval< BitType > mask;
-	private RandomAccessibleInterval< BitType > yawAlignedMask;
-	private RandomAccessibleInterval yawAlignedIntensity;
+	private RandomAccessibleInterval< BitType > coarseEmbryoMask;
+	private double threshold;
 	private CoordinateAndValue axialEmbryoCenter;
 	private EllipsoidMLJ ellipsoidParameters;
+	private double[] ellipsoidCenter;
+	private double[] ellipsoidEulerAnglesInDegrees;
 	private double[] inputCalibration;
+	private RegistrationMetrics metrics = new RegistrationMetrics( "" );
 
 	public FlyEmbryoNerveCordRegistration( final FlyEmbryoRegistrationSettings settings, final OpService opService )
 	{
@@ -104,6 +121,155 @@ public class FlyEmbryoNerveCordRegistration< T extends RealType< T > & NativeTyp
 	}
 
 	public boolean run( RandomAccessibleInterval< T > rai, double[] inputCalibration )
+	{
+		preprocess( rai, inputCalibration );
+
+		if ( ! metrics.measureResult( "segmentEmbryo", this::segmentEmbryo ) ) return false;
+
+		return alignEmbryo();
+	}
+
+	/**
+	 * Registers all embryos in the field of view, based on one shared segmentation.
+	 *
+	 * - The watershed regions are grouped into embryos like the central embryo
+	 *   in {@link #run}: all regions within the central region distance
+	 *   of the centroid of a larger region belong to the same embryo
+	 * - Every group of at least the minimal object size is considered one embryo
+	 * - The embryos are registered in parallel, each by its own registration,
+	 *   which shares the images and the segmentation of this one,
+	 *   and records its metrics with the prefix "embryoN."
+	 *
+	 * @return registrations of all embryos that could be registered, ordered by their smallest watershed label
+	 */
+	public List< FlyEmbryoNerveCordRegistration< T > > runForAllEmbryos( RandomAccessibleInterval< T > rai, double[] inputCalibration )
+	{
+		preprocess( rai, inputCalibration );
+
+		threshold = metrics.measureResult( "computeThreshold", this::computeThreshold );
+
+		final ImgLabeling< Integer, IntType > labeling = segmentWatershedRegions( intensityCorrected );
+
+		final List< Set< LabelRegion< Integer > > > embryoRegions = groupEmbryoRegions( labeling );
+
+		metrics.put( "numEmbryos", embryoRegions.size() );
+
+		return metrics.measureResult( "registerEmbryos", () ->
+		{
+			// showing intermediate results is not thread safe
+			final IntStream embryoIndices = settings.showIntermediateResults
+					? IntStream.range( 0, embryoRegions.size() )
+					: IntStream.range( 0, embryoRegions.size() ).parallel();
+
+			// the worker threads log into the log file of this thread
+			final IntFunction< FlyEmbryoNerveCordRegistration< T > > registerEmbryo =
+					RegistrationLogger.withCurrentLogFile( embryoIndex ->
+					{
+						final FlyEmbryoNerveCordRegistration< T > embryo =
+								createEmbryoRegistration( embryoRegions.get( embryoIndex ), labeling, embryoIndex );
+						return embryo.registerSegmentedEmbryo() ? embryo : null;
+					} );
+
+			return embryoIndices
+					.mapToObj( registerEmbryo )
+					.filter( Objects::nonNull )
+					.collect( Collectors.toList() );
+		} );
+	}
+
+	/**
+	 * Groups the watershed regions into embryos
+	 * - starting with the largest regions, the regions close to the centroid of a region
+	 *   are grouped, as in {@link #getCentralRegions}
+	 * - groups below the minimal object size are discarded
+	 *
+	 * @return groups of regions, ordered by their smallest label
+	 */
+	private List< Set< LabelRegion< Integer > > > groupEmbryoRegions( ImgLabeling< Integer, IntType > labeling )
+	{
+		final LabelRegions< Integer > labelRegions = new LabelRegions<>( labeling );
+
+		final List< LabelRegion< Integer > > regionsBySize = new ArrayList<>();
+		for ( Integer label : new TreeSet<>( labelRegions.getExistingLabels() ) )
+			regionsBySize.add( labelRegions.getLabelRegion( label ) );
+		regionsBySize.sort( Comparator.comparingLong( ( LabelRegion< Integer > region ) -> region.size() ).reversed() );
+
+		final long minimalNumVoxels =
+				( long ) ( settings.minimalObjectSize / Math.pow( settings.registrationResolution, 3 ) );
+
+		final Set< Integer > groupedLabels = new HashSet<>();
+		final List< Set< LabelRegion< Integer > > > groups = new ArrayList<>();
+		for ( LabelRegion< Integer > region : regionsBySize )
+		{
+			if ( groupedLabels.contains( region.getLabel() ) ) continue;
+
+			final double[] centroid = new double[ 3 ];
+			region.getCenterOfMass().localize( centroid );
+
+			final Set< LabelRegion< Integer > > group = new HashSet<>();
+			group.add( region );
+			for ( LabelRegion< Integer > closeRegion : Regions.getCentralRegions(
+					labeling, centroid, ( int ) ( settings.centralRegionDistance / settings.registrationResolution ) ) )
+				if ( ! groupedLabels.contains( closeRegion.getLabel() ) )
+					group.add( closeRegion );
+
+			long numVoxels = 0;
+			for ( LabelRegion< Integer > groupRegion : group )
+			{
+				groupedLabels.add( groupRegion.getLabel() );
+				numVoxels += groupRegion.size();
+			}
+
+			if ( numVoxels >= minimalNumVoxels )
+				groups.add( group );
+		}
+
+		groups.sort( Comparator.comparingInt( FlyEmbryoNerveCordRegistration::getSmallestLabel ) );
+
+		return groups;
+	}
+
+	private static int getSmallestLabel( Set< LabelRegion< Integer > > regions )
+	{
+		int smallestLabel = Integer.MAX_VALUE;
+		for ( LabelRegion< Integer > region : regions )
+			smallestLabel = Math.min( smallestLabel, region.getLabel() );
+
+		return smallestLabel;
+	}
+
+	/**
+	 * @return registration of one embryo, sharing the images and segmentation of this registration
+	 */
+	private FlyEmbryoNerveCordRegistration< T > createEmbryoRegistration(
+			Set< LabelRegion< Integer > > regions,
+			ImgLabeling< Integer, IntType > labeling,
+			int embryoIndex )
+	{
+		final FlyEmbryoNerveCordRegistration< T > embryo = new FlyEmbryoNerveCordRegistration<>( settings, opService );
+		embryo.metrics = metrics.createChild( "embryo" + ( embryoIndex + 1 ) );
+		embryo.inputCalibration = inputCalibration;
+		embryo.correctedCalibration = correctedCalibration;
+		embryo.registrationCalibration = registrationCalibration;
+		embryo.isotropic = isotropic;
+		embryo.intensityCorrected = intensityCorrected;
+		embryo.axialEmbryoCenter = axialEmbryoCenter;
+		embryo.coverslipPosition = coverslipPosition;
+		embryo.threshold = threshold;
+		embryo.mask = mask;
+		embryo.watershedLabelImg = watershedLabelImg;
+		embryo.registration = new AffineTransform3D();
+		embryo.embryoMask = createCroppedEmbryoMask( regions, labeling );
+		return embryo;
+	}
+
+	private boolean registerSegmentedEmbryo()
+	{
+		smoothEmbryoMask();
+		return alignEmbryo();
+	}
+
+	private void preprocess( RandomAccessibleInterval< T > rai, double[] inputCalibration )
 	{
 		this.inputCalibration = inputCalibration;
 
@@ -112,37 +278,83 @@ public class FlyEmbryoNerveCordRegistration< T extends RealType< T > & NativeTyp
 
 		registration = new AffineTransform3D();
 
-		refractiveIndexScalingCorrection( rai, inputCalibration );
+		metrics.put( "inputVoxels", Intervals.numElements( rai ) );
+
+		metrics.measure( "refractiveIndexScalingCorrection", () -> refractiveIndexScalingCorrection( rai, inputCalibration ) );
 
-		createIsotropicImage( rai );
+		metrics.measure( "createIsotropicImage", () -> createIsotropicImage( rai ) );
 
-		refractiveIndexIntensityCorrection();
+		metrics.put( "registrationVoxels", Intervals.numElements( isotropic ) );
 
-		if ( ! segmentEmbryo() ) return false;
+		metrics.measure( "refractiveIndexIntensityCorrection", this::refractiveIndexIntensityCorrection );
+	}
 
-		computeEllipsoidParameters();
+	private boolean alignEmbryo()
+	{
+		metrics.measure( "computeEllipsoidParameters", this::computeEllipsoidParameters );
 
 		if ( settings.onlyComputeEllipsoidParameters ) return true;
 
-		applyYawAlignmentToImageAndMask();
+		metrics.measure( "applyYawAlignmentToImageAndMask", this::applyYawAlignmentToImageAndMask );
 
-		orientLongAxis();
+		metrics.measure( "orientLongAxis", this::orientLongAxis );
 
-		rollTransform();
+		metrics.measure( "rollTransform", this::rollTransform );
 
 		transformAtRegistrationResolution = registration;
 
 		return true;
 	}
 
+	/**
+	 * @param metrics
+	 * 				receives the timings and statistics of the following calls to {@link #run}
+	 */
+	public void setMetrics( RegistrationMetrics metrics )
+	{
+		this.metrics = metrics;
+	}
+
+	/**
+	 * @return everything needed to create the registered images, e.g. for caching
+	 */
+	public RegistrationResult getResult()
+	{
+		final RegistrationResult result = new RegistrationResult();
+		result.transformAtRegistrationResolution = transformAtRegistrationResolution.copy();
+		result.inputCalibration = inputCalibration.clone();
+		result.correctedCalibration = correctedCalibration.clone();
+		result.coverslipPosition = coverslipPosition;
+		result.ellipsoidCenter = ellipsoidCenter.clone();
+		result.ellipsoidEulerAnglesInDegrees = ellipsoidEulerAnglesInDegrees.clone();
+		result.embryoMask = embryoMask;
+		return result;
+	}
+
+	/**
+	 * Restores a previously computed registration, instead of calling {@link #run}.
+	 */
+	public void setResult( RegistrationResult result )
+	{
+		transformAtRegistrationResolution = result.transformAtRegistrationResolution.copy();
+		registration = transformAtRegistrationResolution;
+		inputCalibration = result.inputCalibration.clone();
+		correctedCalibration = result.correctedCalibration.clone();
+		coverslipPosition = result.coverslipPosition;
+		ellipsoidCenter = result.ellipsoidCenter.clone();
+		ellipsoidEulerAnglesInDegrees = result.ellipsoidEulerAnglesInDegrees.clone();
+		embryoMask = result.embryoMask;
+		registrationCalibration = Utils.as3dDoubleArray( settings.registrationResolution );
+	}
+
 	public double[] getElliposidEulerAnglesInDegrees()
 	{
-		return ellipsoidParameters.eulerAnglesInDegrees;
+		return ellipsoidEulerAnglesInDegrees;
 	}
 
 	public double[] getElliposidCentreInInputImagePixelUnits()
 	{
-		final double[] center = ellipsoidParameters.center;
+		final double[] center = ellipsoidCenter.clone();
 
 		for ( int d = 0; d < 3; d++ )
 			center[ d ] = center[ d ] * settings.registrationResolution / inputCalibration[ d ];
@@ -186,22 +398,10 @@ public class FlyEmbryoNerveCordRegistration< T extends RealType< T > & NativeTyp
 		 * 		   Feels kind of messy...better way?
 		 */
 
-		Logger.log( "Creating aligned mask..." );
-
-		final RandomAccessibleInterval< BitType > dilatedMask = Algorithms.dilate( embryoMask, 2 );
-
-		AffineTransform3D transform = transformAtRegistrationResolution.copy()
-				.preConcatenate( Transforms.getScalingTransform( settings.registrationResolution, resolution ) );
+		RegistrationLogger.log( "Creating aligned mask..." );
 
 		RandomAccessibleInterval< BitType > alignedMask =
-				Utils.copyAsArrayImg(
-						Transforms.createTransformedView(
-								dilatedMask,
-								transform,
-								interval, // after the transform we need to specify where we want to "crop"
-								new NearestNeighborInterpolatorFactory() // binary image => do not interpolate linearly!
-						)
-				);
+				Utils.copyAsArrayImg( getAlignedMaskView( resolution, interval ) );
 
 		if ( settings.showIntermediateResults )
 			show( alignedMask, "aligned mask at output resolution",
@@ -211,22 +411,48 @@ public class FlyEmbryoNerveCordRegistration< T extends RealType< T > & NativeTyp
 	}
 
 
+	/**
+	 * Lazy version of {@link #getAlignedMask}; the voxels are only computed when accessed.
+	 */
+	public RandomAccessibleInterval< BitType > getAlignedMaskView( double resolution, FinalInterval interval )
+	{
+		return Transforms.createTransformedView(
+						getDilatedEmbryoMask(),
+						getAlignedMaskTransform( resolution ),
+						interval, // after the transform we need to specify where we want to "crop"
+						new NearestNeighborInterpolatorFactory() // binary image => do not interpolate linearly!
+				);
+	}
+
+	/**
+	 * @return embryo mask, at registration resolution, dilated "a bit" (see {@link #getAlignedMask})
+	 */
+	public RandomAccessibleInterval< BitType > getDilatedEmbryoMask()
+	{
+		return FastMorphology.dilate( embryoMask, 2 );
+	}
+
+	/**
+	 * @return transformation from the embryo mask to the registered images at the given resolution
+	 */
+	public AffineTransform3D getAlignedMaskTransform( double resolution )
+	{
+		return transformAtRegistrationResolution.copy()
+				.preConcatenate( Transforms.getScalingTransform( settings.registrationResolution, resolution ) );
+	}
+
 	private void applyYawAlignmentToImageAndMask()
 	{
 		registration.preConcatenate(
 				EllipsoidsMLJ.createAlignmentTransform( ellipsoidParameters ) );
 
-		final RandomAccessibleInterval transformedView =
-				Transforms.createTransformedView(
-						embryoMask, registration, new NearestNeighborInterpolatorFactory() );
-
-		yawAlignedMask = Utils.copyAsArrayImg( transformedView );
-
-		yawAlignedIntensity = Utils.copyAsArrayImg(
-				Transforms.createTransformedView( isotropic, registration ) );
+		/**
+		 * The aligned intensities and mask are not copied; the subsequent
+		 * stages sample them through the registration (see {@link AlignedIntensitySampler})
+		 */
 
 		if ( settings.showIntermediateResults )
-			show( yawAlignedIntensity, "yaw aligned intensities",
+			show( Transforms.createTransformedView( isotropic, registration ), "yaw aligned intensities",
 					Transforms.origin(), registrationCalibration, false );
 	}
 
@@ -237,16 +463,24 @@ public class FlyEmbryoNerveCordRegistration< T extends RealType< T > & NativeTyp
 		 * - https://en.wikipedia.org/wiki/Euler_angles
 		 */
 
-		Logger.log( "Fit ellipsoid..." );
+		RegistrationLogger.log( "Fit ellipsoid..." );
+
+		ellipsoidParameters = EllipsoidsMLJ.computeParametersFromBinaryImage( Views.zeroMin( embryoMask ) );
+
+		// the embryo mask is cropped to the embryo
+		for ( int d = 0; d < 3; ++d )
+			ellipsoidParameters.center[ d ] += embryoMask.min( d );
 
-		ellipsoidParameters = EllipsoidsMLJ.computeParametersFromBinaryImage( embryoMask );
+		ellipsoidCenter = ellipsoidParameters.center.clone();
+		ellipsoidEulerAnglesInDegrees = ellipsoidParameters.eulerAnglesInDegrees.clone();
 	}
 
 	private void rollTransform()
 	{
 
 		final AffineTransform3D rollTransform =
-				computeIntensityBasedRollTransform( yawAndOrientationAlignedIntensity );
+				computeIntensityBasedRollTransform(
+						new AlignedIntensitySampler<>( isotropic, null, registration, true ) );
 
 		// changes whether the found structure should be at the top or bottom
 		rollTransform.rotate( X, Math.PI );
@@ -261,24 +495,17 @@ public class FlyEmbryoNerveCordRegistration< T extends RealType< T > & NativeTyp
 
 	private void orientLongAxis()
 	{
-		Logger.log( "Computing long axis orientation..." );
+		RegistrationLogger.log( "Computing long axis orientation..." );
 
 		final AffineTransform3D flippingTransform =
 				computeFlippingTransform(
-						yawAlignedMask,
-						yawAlignedIntensity,
+						new AlignedIntensitySampler<>( isotropic, embryoMask, registration, true ),
 						settings.registrationResolution );
 
 		registration = registration.preConcatenate( flippingTransform );
 
-		yawAndOrientationAlignedIntensity = Utils.copyAsArrayImg(
-				Transforms.createTransformedView(
-						yawAlignedIntensity,
-						flippingTransform,
-						new NearestNeighborInterpolatorFactory() ) );
-
 		if ( settings.showIntermediateResults )
-			show( yawAndOrientationAlignedIntensity, "long axis aligned and oriented",
+			show( Transforms.createTransformedView( isotropic, registration ), "long axis aligned and oriented",
 					Transforms.origin(), registrationCalibration, false );
 
 
@@ -286,34 +513,72 @@ public class FlyEmbryoNerveCordRegistration< T extends RealType< T > & NativeTyp
 
 	private boolean segmentEmbryo()
 	{
-		createMask();
+		threshold = metrics.measureResult( "computeThreshold", this::computeThreshold );
+
+		/**
+		 * Interval in which the embryo is segmented at registration resolution
+		 */
+		Interval segmentationInterval = intensityCorrected;
+		coarseEmbryoMask = null;
+
+		if ( settings.coarseToFineSegmentation )
+		{
+			segmentationInterval = metrics.measureResult( "coarseSegmentation", this::computeCoarseEmbryoInterval );
+			if ( segmentationInterval == null ) return false;
+			metrics.put( "segmentationVoxels", Intervals.numElements( segmentationInterval ) );
+		}
+
+		final ImgLabeling< Integer, IntType > labeling = segmentWatershedRegions( segmentationInterval );
+
+		if ( ! metrics.measureResult( "extractCentralEmbryoMask", () -> extractCentralEmbryoMask( labeling ) ) )
+			return false;
+
+		smoothEmbryoMask();
+
+		return true;
+	}
+
+	/**
+	 * Mask, distance transform and watershed within the given interval,
+	 * using the previously computed threshold.
+	 *
+	 * @return zero-min watershed labeling of the mask
+	 */
+	private ImgLabeling< Integer, IntType > segmentWatershedRegions( Interval interval )
+	{
+		metrics.measure( "createMask", () -> createMask( interval ) );
+
+		final RandomAccessibleInterval< FloatType > distances =
+				metrics.measureResult( "distanceTransform", this::distanceTransform );
 
-		final RandomAccessibleInterval< DoubleType > distances = distanceTransform();
+		final ImgLabeling< Integer, IntType > labeling =
+				metrics.measureResult( "watershed", () -> watershed( distances ) );
 
-		final ImgLabeling< Integer, IntType > labeling = watershed( distances );
+		metrics.put( "numWatershedRegions", labeling.getMapping().getLabels().size() );
 
-		if ( ! extractCentralEmbryoMask( labeling ) ) return false;
+		return labeling;
+	}
 
+	private void smoothEmbryoMask()
+	{
 		if ( ! settings.onlyComputeEllipsoidParameters )
-			morphologicalSmoothingOfEmbryoMask();
+			metrics.measure( "morphologicalSmoothingOfEmbryoMask", this::morphologicalSmoothingOfEmbryoMask );
 
 		if ( settings.showIntermediateResults )
 			show( embryoMask, "morphologically processed embryo mask",
 					null, registrationCalibration, false );
-
-		return true;
 	}
 
-	private RandomAccessibleInterval< DoubleType > distanceTransform()
+	private RandomAccessibleInterval< FloatType > distanceTransform()
 	{
 		/**
 		 * Distance transform
 		 * - Note: EUCLIDIAN distances are returned as squared distances
 		 */
 
-		Logger.log( "Distance transform..." );
+		RegistrationLogger.log( "Distance transform..." );
 
-		final RandomAccessibleInterval< DoubleType > distances = Algorithms.computeSquaredDistances( mask );
+		final RandomAccessibleInterval< FloatType > distances = SquaredDistanceTransform.squaredDistancesToBackground( mask );
 
 		if ( settings.showIntermediateResults )
 			show( distances, "squared distances", null,
@@ -322,10 +587,10 @@ public class FlyEmbryoNerveCordRegistration< T extends RealType< T > & NativeTyp
 	}
 
 	private ImgLabeling< Integer, IntType > watershed(
-			RandomAccessibleInterval< DoubleType > distances )
+			RandomAccessibleInterval< FloatType > distances )
 	{
 
-		final ImgLabeling< Integer, IntType > seedsLabelImg = createWatershedSeeds( distances );
+		final Img< IntType > seedsLabelImg = createWatershedSeeds( distances, settings.registrationResolution );
 
 		final ImgLabeling< Integer, IntType > imgLabeling =
 				computeWatershed( mask, distances, seedsLabelImg );
@@ -335,21 +600,16 @@ public class FlyEmbryoNerveCordRegistration< T extends RealType< T > & NativeTyp
 
 	private boolean extractCentralEmbryoMask( ImgLabeling< Integer, IntType > labeling )
 	{
-		Logger.log( "Extract central embryo..." );
-
-		final double[] center = getApproximateEmbryoCenter( labeling );
+		RegistrationLogger.log( "Extract central embryo..." );
 
 		final Set< LabelRegion< Integer > > centralRegions =
-				Regions.getCentralRegions(
-						labeling,
-						center,
-						(int) ( settings.centralRegionDistance / settings.registrationResolution ) );
+				getCentralRegions( labeling, Intervals.minAsLongArray( mask ), settings.registrationResolution );
 
 		if ( centralRegions.size() == 0 ) return false;
 
-		embryoMask = Regions.asMask(
-				centralRegions,
-				labeling );
+		embryoMask = createCroppedEmbryoMask( centralRegions, labeling );
+
+		metrics.put( "embryoMaskVoxels", Intervals.numElements( embryoMask ) );
 
 		if ( settings.showIntermediateResults )
 			show( Utils.copyAsArrayImg( embryoMask ),
@@ -360,45 +620,170 @@ public class FlyEmbryoNerveCordRegistration< T extends RealType< T > & NativeTyp
 
 	private void morphologicalSmoothingOfEmbryoMask()
 	{
-		Logger.log( "Smooth by morphological closing (slow)..." );
-		embryoMask = Algorithms.close( embryoMask, ( int ) ( 20.0 / settings.registrationResolution ) );
+		RegistrationLogger.log( "Smooth by morphological closing..." );
+		embryoMask = FastMorphology.close( embryoMask, ( int ) ( 20.0 / settings.registrationResolution ) );
 
 		// embryoMask = Algorithms.open( embryoMask, ( int ) ( 20.0 / settings.registrationResolution ) );
 	}
 
-	private double[] getApproximateEmbryoCenter( ImgLabeling< Integer, IntType > labeling )
+	/**
+	 * @param labeling
+	 * 				zero-min labeling
+	 * @param labelingMin
+	 * 				position of the labeling within the image at the given resolution
+	 * @param resolution
+	 * 				voxel size of the labeling
+	 * @return regions of the labeling close to the approximate embryo center
+	 */
+	private Set< LabelRegion< Integer > > getCentralRegions(
+			ImgLabeling< Integer, IntType > labeling,
+			long[] labelingMin,
+			double resolution )
 	{
+		final double[] center = getApproximateEmbryoCenter( resolution );
+
+		for ( int d = 0; d < 3; ++d )
+			center[ d ] -= labelingMin[ d ];
+
+		return Regions.getCentralRegions(
+				labeling,
+				center,
+				(int) ( settings.centralRegionDistance / resolution ) );
+	}
+
+	/**
+	 * Mask of the given regions, cropped to their bounding box
+	 * - the labeling starts at zero, the mask possibly not (see {@link #computeCoarseEmbryoInterval})
+	 * - all following stages only process this interval
+	 */
+	private RandomAccessibleInterval< BitType > createCroppedEmbryoMask(
+			Set< LabelRegion< Integer > > regions,
+			ImgLabeling< Integer, IntType > labeling )
+	{
+		final long[] maskMin = Intervals.minAsLongArray( mask );
+
+		return Utils.copyAsArrayImg(
+				Views.interval(
+						Views.translate( Regions.asMask( regions, labeling ), maskMin ),
+						Intervals.translate( getBoundingInterval( regions ), maskMin ) ) );
+	}
+
+	private static Interval getBoundingInterval( Set< LabelRegion< Integer > > regions )
+	{
+		Interval interval = null;
+		for ( LabelRegion< Integer > region : regions )
+			interval = interval == null ? region : Intervals.union( interval, region );
+
+		return interval;
+	}
+
+	private double[] getApproximateEmbryoCenter( double resolution )
+	{
+		final double scaling = settings.registrationResolution / resolution;
+
 		return new double[]{
-					labeling.dimension( 0 ) / 2.0 ,
-					labeling.dimension( 1 ) / 2.0,
-					axialEmbryoCenter.coordinate / settings.registrationResolution };
+					intensityCorrected.dimension( 0 ) * scaling / 2.0 ,
+					intensityCorrected.dimension( 1 ) * scaling / 2.0,
+					axialEmbryoCenter.coordinate / resolution };
 	}
 
-	private void createMask()
+	private double computeThreshold()
 	{
-		/**
-		 *  Compute threshold
-		 */
+		final double thresholdAfterIntensityCorrection = ImageStatistics.compute( intensityCorrected ).getHuangThreshold();
+		RegistrationLogger.log( "Threshold (after intensity correction): " + thresholdAfterIntensityCorrection );
+		metrics.put( "threshold", thresholdAfterIntensityCorrection );
+		return thresholdAfterIntensityCorrection;
+	}
 
-		double thresholdAfterIntensityCorrection = Algorithms.thresholdHuang( intensityCorrected );;
-		Logger.log( "Threshold (after intensity correction): " + thresholdAfterIntensityCorrection );
+	/**
+	 * Segments the central embryo at a coarser resolution,
+	 * such that the segmentation at registration resolution
+	 * can be restricted to its surrounding.
+	 *
+	 * - Same steps as the segmentation at registration resolution,
+	 *   with the same intensity threshold
+	 * - Neighbouring embryos touching the central one may reach into the returned interval,
+	 *   where, being cropped, they could end up in the central watershed regions;
+	 *   thus the central regions, dilated by the margin, are kept in {@link #coarseEmbryoMask}
+	 *   and {@link #createMask} only keeps foreground within them
+	 *
+	 * @return bounding interval of the central embryo plus margin, at registration resolution,
+	 * 		   or null, if there is no central embryo
+	 */
+	private Interval computeCoarseEmbryoInterval()
+	{
+		final double factor = settings.coarseSegmentationResolutionFactor;
+		final double coarseResolution = settings.registrationResolution * factor;
 
+		RegistrationLogger.log( "Coarse segmentation at " + coarseResolution + " micrometer..." );
+
+		final RandomAccessibleInterval< T > coarse =
+				createRescaledArrayImg( intensityCorrected, Utils.as3dDoubleArray( 1.0 / factor ) );
+
+		final RandomAccessibleInterval< BitType > coarseMask = Algorithms.createMask( coarse, threshold );
+		MaskComponents.removeSmallRegionsInMask( coarseMask, settings.minimalObjectSize, coarseResolution );
+		HoleFilling.fillHolesInSlices( coarseMask );
+
+		final RandomAccessibleInterval< FloatType > distances =
+				SquaredDistanceTransform.squaredDistancesToBackground( coarseMask );
+
+		final ImgLabeling< Integer, IntType > labeling =
+				computeWatershed( coarseMask, distances, createWatershedSeeds( distances, coarseResolution ) );
+
+		final Set< LabelRegion< Integer > > centralRegions =
+				getCentralRegions( labeling, Intervals.minAsLongArray( coarseMask ), coarseResolution );
+
+		if ( centralRegions.size() == 0 ) return null;
+
+		// one additional coarse voxel accounts for the rounding when upsampling
+		coarseEmbryoMask = FastMorphology.dilate(
+				Regions.asMask( centralRegions, labeling ),
+				( int ) Math.ceil( settings.coarseSegmentationMargin / coarseResolution ) + 1 );
+
+		final Interval coarseInterval = getBoundingInterval( centralRegions );
+
+		final long margin = ( long ) Math.ceil(
+				( settings.coarseSegmentationMargin + coarseResolution ) / settings.registrationResolution );
+
+		final long[] min = new long[ 3 ];
+		final long[] max = new long[ 3 ];
+		for ( int d = 0; d < 3; ++d )
+		{
+			min[ d ] = ( long ) Math.floor( coarseInterval.min( d ) * factor ) - margin;
+			max[ d ] = ( long ) Math.ceil( ( coarseInterval.max( d ) + 1 ) * factor ) + margin;
+		}
+
+		final FinalInterval interval = Intervals.intersect( new FinalInterval( min, max ), intensityCorrected );
+
+		RegistrationLogger.log( "Segmentation interval: " + Intervals.toString( interval ) );
+
+		return interval;
+	}
+
+	private void createMask( Interval interval )
+	{
 		/**
 		 * Create mask
+		 * - within the given interval, starting at its minimum
 		 */
 
-		mask = Algorithms.createMask( intensityCorrected, thresholdAfterIntensityCorrection );
+		mask = Views.translate(
+				Algorithms.createMask( Views.zeroMin( Views.interval( intensityCorrected, interval ) ), threshold ),
+				Intervals.minAsLongArray( interval ) );
 
 		if ( settings.showIntermediateResults )
 			show( Utils.copyAsArrayImg( mask ), "binary mask", null,
 					registrationCalibration, false );
+		if ( coarseEmbryoMask != null )
+			restrictToCoarseEmbryoMask();
+
 		/**
 		 * Process mask
 		 * - remove small objects
 		 * - close holes
 		 */
 
-		Regions.removeSmallRegionsInMask(
+		MaskComponents.removeSmallRegionsInMask(
 				mask,
 				settings.minimalObjectSize,
 				settings.registrationResolution );
@@ -407,10 +792,7 @@ public class FlyEmbryoNerveCordRegistration< T extends RealType< T > & NativeTyp
 			show( Utils.copyAsArrayImg( mask ), "small regions removed", null,
 					registrationCalibration, false );
 
-		for ( int d = 0; d < 3; ++d )
-		{
-			mask = Algorithms.fillHoles3Din2D( mask, d, opService );
-		}
+		HoleFilling.fillHolesInSlices( mask );
 
 		if ( settings.showIntermediateResults )
 			show( mask, "small regions removed and holes closed", null,
@@ -418,19 +800,45 @@ public class FlyEmbryoNerveCordRegistration< T extends RealType< T > & NativeTyp
 
 	}
 
+	/**
+	 * Removes all foreground outside of the upsampled {@link #coarseEmbryoMask},
+	 * i.e. the parts of neighbouring embryos that are not close to the central one.
+	 */
+	private void restrictToCoarseEmbryoMask()
+	{
+		final double factor = settings.coarseSegmentationResolutionFactor;
+
+		final RandomAccess< BitType > coarseAccess =
+				Views.extendZero( coarseEmbryoMask ).randomAccess();
+
+		final long[] position = new long[ 3 ];
+		final Cursor< BitType > cursor = Views.iterable( mask ).localizingCursor();
+		while ( cursor.hasNext() )
+		{
+			if ( ! cursor.next().get() ) continue;
+
+			cursor.localize( position );
+			for ( int d = 0; d < 3; ++d )
+				coarseAccess.setPosition( ( long ) Math.floor( position[ d ] / factor ), d );
+
+			if ( ! coarseAccess.get().get() )
+				cursor.get().setZero();
+		}
+	}
+
 	private void refractiveIndexIntensityCorrection()
 	{
 		/**
 		 *  Compute intensity offset (for refractive index mismatch corrections)
 		 */
 
-		Logger.log( "Offset and threshold..." );
+		RegistrationLogger.log( "Offset and threshold..." );
 
-		final IntensityHistogram histogram = new IntensityHistogram( isotropic, 65535.0, 1.0 );
+		final ImageStatistics statistics = ImageStatistics.compute( isotropic );
 
-		CoordinateAndValue histogramMode = histogram.getMode();
+		final double intensityOffset = Math.floor( statistics.getMode( 1 ) );
 
-		Logger.log( "Intensity offset: " + histogramMode.coordinate.intValue() );
+		RegistrationLogger.log( "Intensity offset: " + ( int ) intensityOffset );
 
 
 		/**
@@ -438,7 +846,7 @@ public class FlyEmbryoNerveCordRegistration< T extends RealType< T > & NativeTyp
 		 */
 
 		final CoordinatesAndValues averageIntensitiesAlongZ =
-				Utils.computeAverageIntensitiesAlongAxis( isotropic, 2, settings.registrationResolution );
+				statistics.getAverageIntensitiesAlongZ( settings.registrationResolution );
 
 		if ( settings.showIntermediateResults )
 			Plots.plot( averageIntensitiesAlongZ.coordinates, averageIntensitiesAlongZ.values,
@@ -448,23 +856,25 @@ public class FlyEmbryoNerveCordRegistration< T extends RealType< T > & NativeTyp
 		coverslipPosition = axialEmbryoCenter.coordinate
 				- FlyEmbryoRegistrationSettings.drosophilaWidth / 2.0;
 
-		Logger.log( "Approximate coverslip coordinate [um]: " + coverslipPosition );
-		Logger.log( "Approximate axial embryo center coordinate [um]: " + axialEmbryoCenter.coordinate );
+		RegistrationLogger.log( "Approximate coverslip coordinate [um]: " + coverslipPosition );
+		RegistrationLogger.log( "Approximate axial embryo center coordinate [um]: " + axialEmbryoCenter.coordinate );
 
 		/**
 		 *  Refractive index corrections
 		 */
 
-		Logger.log( "Refractive index intensity correction..." );
+		RegistrationLogger.log( "Refractive index intensity correction..." );
 
 		final RefractiveIndexMismatchCorrectionSettings correctionSettings = new RefractiveIndexMismatchCorrectionSettings();
-		correctionSettings.intensityOffset = Math.floor( histogramMode.coordinate );
+		correctionSettings.intensityOffset = intensityOffset;
 		correctionSettings.intensityDecayLengthMicrometer = settings.refractiveIndexIntensityCorrectionDecayLength;
 		correctionSettings.coverslipPositionMicrometer = coverslipPosition;
 		correctionSettings.pixelCalibrationMicrometer = settings.registrationResolution;
 
-		intensityCorrected = Utils.copyAsArrayImg( isotropic );
-		RefractiveIndexMismatchCorrections.correctIntensity( intensityCorrected, correctionSettings );
+		final IntensityCorrectionLut intensityCorrectionLut =
+				new IntensityCorrectionLut( correctionSettings, isotropic.min( 2 ), isotropic.max( 2 ) );
+
+		intensityCorrected = intensityCorrectionLut.createCorrectedView( isotropic );
 
 		if ( settings.showIntermediateResults )
 			show( intensityCorrected,
@@ -483,7 +893,7 @@ public class FlyEmbryoNerveCordRegistration< T extends RealType< T > & NativeTyp
 		 *  - TODO: bug: during down-sampling saturated pixels become zero
 		 */
 
-		Logger.log( "Down-sampling to registration resolution..." );
+		RegistrationLogger.log( "Down-sampling to registration resolution..." );
 
 		isotropic = createRescaledArrayImg( image,
 				getScalingFactors( correctedCalibration, settings.registrationResolution ) );
@@ -504,7 +914,7 @@ public class FlyEmbryoNerveCordRegistration< T extends RealType< T > & NativeTyp
 		 *  - We assume axial compression by factor ~1.6
 		 */
 
-		Logger.log( "Refractive index scaling correction..." );
+		RegistrationLogger.log( "Refractive index scaling correction..." );
 
 		correctedCalibration = RefractiveIndexMismatchCorrections.getAxiallyCorrectedCalibration(
 				inputCalibration, settings.refractiveIndexAxialCalibrationCorrectionFactor );
@@ -515,38 +925,31 @@ public class FlyEmbryoNerveCordRegistration< T extends RealType< T > & NativeTyp
 
 	private ImgLabeling< Integer, IntType > computeWatershed(
 			RandomAccessibleInterval< BitType > mask,
-			RandomAccessibleInterval< DoubleType > distances,
-			ImgLabeling< Integer, IntType > seedsLabelImg )
+			RandomAccessibleInterval< FloatType > distances,
+			RandomAccessibleInterval< IntType > seedsLabelImg )
 	{
 
-		Logger.log( "Watershed..." );
+		RegistrationLogger.log( "Watershed..." );
 
-		watershedLabelImg = ArrayImgs.ints( Intervals.dimensionsAsLongArray( mask ) );
-		final ImgLabeling< Integer, IntType > watershedLabeling =
-				new ImgLabeling<>( watershedLabelImg );
+		final ArrayImg< IntType, IntArray > labelImg = ArrayImgs.ints( Intervals.dimensionsAsLongArray( mask ) );
+		watershedLabelImg = labelImg;
 
 		if ( settings.showIntermediateResults )
 			show( watershedLabelImg, "watershed",
 					null, registrationCalibration, false );
 
-		opService.image().watershed(
-				watershedLabeling,
-				Utils.invertedView( distances ),
-				seedsLabelImg,
-				false,
-				false );
+		// only visits voxels within the mask, thus no masking of the result is needed
+		final int numLabels = SeededWatershed.compute( distances, mask, seedsLabelImg, labelImg );
 
-		Utils.applyMask( watershedLabelImg, mask );
-
-		return watershedLabeling;
+		return MaskComponents.asImgLabeling( watershedLabelImg, numLabels );
 	}
 
-	private  < T extends RealType< T > & NativeType< T > > AffineTransform3D computeIntensityBasedRollTransform( RandomAccessibleInterval< T > image )
+	private AffineTransform3D computeIntensityBasedRollTransform( AlignedIntensitySampler< T > alignedIntensities )
 	{
-		Logger.log( "Computing intensity based roll transform" );
+		RegistrationLogger.log( "Computing intensity based roll transform" );
 
 		final AffineTransform3D intensityBasedRollTransform = computeIntensityBasedRollTransform(
-				image,
+				alignedIntensities,
 				settings.projectionXMin,
 				settings.projectionXMax,
 				settings.projectionBlurSigma,
@@ -555,9 +958,9 @@ public class FlyEmbryoNerveCordRegistration< T extends RealType< T > & NativeTyp
 		return intensityBasedRollTransform;
 	}
 
-	private ImgLabeling< Integer, IntType > createWatershedSeeds( RandomAccessibleInterval< DoubleType > distance )
+	private Img< IntType > createWatershedSeeds( RandomAccessibleInterval< FloatType > distance, double resolution )
 	{
-		Logger.log( "Seeds for watershed...");
+		RegistrationLogger.log( "Seeds for watershed...");
 
 		/**
 		 * Watershed seeds
@@ -574,41 +977,39 @@ public class FlyEmbryoNerveCordRegistration< T extends RealType< T > & NativeTyp
 
 		double globalDistanceThreshold =
 				Math.pow( settings.watershedSeedsGlobalDistanceThreshold
-						/ settings.registrationResolution, 2 );
+						/ resolution, 2 );
 		double localMaximaDistanceThreshold =
 				Math.pow( settings.watershedSeedsLocalMaximaDistanceThreshold
-						/ settings.registrationResolution, 2 );
+						/ resolution, 2 );
 		int localMaximaSearchRadius =
 				(int) ( settings.watershedSeedsLocalMaximaSearchRadius
-						/ settings.registrationResolution );
+						/ resolution );
 
 		final RandomAccessibleInterval< BitType >  seeds = Algorithms.createWatershedSeeds(
-				distance,
+				Views.zeroMin( distance ),
 				new HyperSphereShape( localMaximaSearchRadius ),
 				globalDistanceThreshold,
 				localMaximaDistanceThreshold );
 
-		final ImgLabeling< Integer, IntType > seedsLabelImg =
-				Regions.asImgLabeling( seeds,
-						ConnectedComponents.StructuringElement.FOUR_CONNECTED );
+		final Img< IntType > seedsLabelImg =
+				new MaskComponents( seeds, ConnectedComponents.StructuringElement.FOUR_CONNECTED )
+						.createLabelImg();
 
 		if ( settings.showIntermediateResults )
-			show( Utils.asIntImg( seedsLabelImg ), "watershed seeds",
+			show( seedsLabelImg, "watershed seeds",
 					null,
-					Utils.as3dDoubleArray( settings.registrationResolution ),
+					Utils.as3dDoubleArray( resolution ),
 					false );
 
 		return seedsLabelImg;
 	}
 
 	private AffineTransform3D computeFlippingTransform(
-			RandomAccessibleInterval yawAlignedMask,
-			RandomAccessibleInterval yawAlignedIntensities,
+			AlignedIntensitySampler< T > yawAlignedIntensities,
 			double calibration )
 	{
 		final CoordinatesAndValues coordinatesAndValues =
-				Utils.computeAverageIntensitiesAlongAxisWithinMask(
-						yawAlignedIntensities, yawAlignedMask, X, calibration );
+				yawAlignedIntensities.averageIntensitiesAlongXWithinMask( calibration );
 
 		if ( settings.showIntermediateResults )
 			Plots.plot(
@@ -627,18 +1028,15 @@ public class FlyEmbryoNerveCordRegistration< T extends RealType< T > & NativeTyp
 		return affineTransform3D;
 	}
 
-	private < T extends RealType< T > & NativeType< T > >
-	AffineTransform3D computeIntensityBasedRollTransform(
-			RandomAccessibleInterval rai,
+	private AffineTransform3D computeIntensityBasedRollTransform(
+			AlignedIntensitySampler< T > alignedIntensities,
 			double xMin,
 			double xMax,
 			double blurSigma,
 			double[] registrationCalibration )
 	{
 		final RandomAccessibleInterval< T > longAxisProjection =
-				Utils.createAverageProjectionAlongAxis(
-					rai,
-					X,
+				alignedIntensities.averageProjectionAlongX(
 					xMin,
 					xMax,
 					settings.registrationResolution );
@@ -670,7 +1068,7 @@ public class FlyEmbryoNerveCordRegistration< T extends RealType< T > & NativeTyp
 		double angleToZAxisInDegrees = Angles.angle2DToCoordinateSystemsAxisInDegrees( maximum2DinYZPlane );
 		AffineTransform3D rollTransform = new AffineTransform3D();
 
-		Logger.log( "Roll angle: " + angleToZAxisInDegrees );
+		RegistrationLogger.log( "Roll angle: " + angleToZAxisInDegrees );
 		rollTransform.rotate( X, toRadians( angleToZAxisInDegrees ) );
 
 		return rollTransform;
@@ -0,0 +1,275 @@
+/*-
+ * #%L
+ * Fiji plugin for automated 3d spindle morphometry
+ * %%
+ * Copyright (C) 2018 - 2021 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.embl.cba.flyreg;
+
+import net.imagej.ops.OpService;
+import org.scijava.Context;
+import org.scijava.log.LogService;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs the {@link FlyEmbryoNerveCordRegistrationCommand} from the command line,
+ * without starting ImageJ; only the services that the registration needs are created.
+ *
+ * Usage: [--name value]... input...
+ * - inputs are files or directories (all files within)
+ * - with --watchFolder directory, no inputs are needed; files that appear
+ *   in the directory are registered until the idle timeout
+ * - name is any parameter of the command (e.g. outputDirectory, numWorkers)
+ *   or any field of {@link FlyEmbryoRegistrationSettings} (e.g. minimalObjectSize),
+ *   except for the settings that the command overwrites (see {@link #SETTINGS_SET_BY_COMMAND})
+ * - boolean parameters are given as --name, --name=value or --name true|false
+ */
+public class FlyEmbryoNerveCordRegistrationCLI
+{
+	/**
+	 * Settings that {@link FlyEmbryoNerveCordRegistrationCommand#setSettingsFromUI()}
+	 * overwrites, mapped to the command field they are set from; null, if they cannot be set
+	 */
+	private static final Map< String, String > SETTINGS_SET_BY_COMMAND = new HashMap<>();
+	static
+	{
+		SETTINGS_SET_BY_COMMAND.put( "rollAngleComputationMethod", "rollAngleAlignmentMethod" );
+		SETTINGS_SET_BY_COMMAND.put( "thresholdModality", null );
+	}
+
+	public static void main( String[] args )
+	{
+		System.setProperty( "java.awt.headless", "true" );
+
+		final FlyEmbryoNerveCordRegistrationCommand< ? > command = new FlyEmbryoNerveCordRegistrationCommand<>();
+		final List< File > files = new ArrayList<>();
+
+		for ( int i = 0; i < args.length; ++i )
+		{
+			final String arg = args[ i ];
+
+			if ( arg.equals( "--help" ) || arg.equals( "-h" ) )
+			{
+				printUsage( command );
+				return;
+			}
+
+			if ( ! arg.startsWith( "--" ) )
+			{
+				addInput( new File( arg ), files );
+				continue;
+			}
+
+			String name = arg.substring( 2 );
+			String value;
+			if ( name.contains( "=" ) )
+			{
+				value = name.substring( name.indexOf( "=" ) + 1 );
+				name = name.substring( 0, name.indexOf( "=" ) );
+			}
+			else if ( isBooleanParameter( name ) )
+			{
+				// a boolean flag only consumes an explicit true or false,
+				// such that e.g. "--streamOutput /data/a.czi" keeps the input
+				if ( i + 1 < args.length && isBooleanValue( args[ i + 1 ] ) )
+					value = args[ ++i ];
+				else
+					value = "true";
+			}
+			else if ( i + 1 < args.length && ! args[ i + 1 ].startsWith( "--" ) )
+			{
+				value = args[ ++i ];
+			}
+			else
+			{
+				throw new IllegalArgumentException( "Missing value for parameter: --" + name );
+			}
+
+			setParameter( command, name, value );
+		}
+
+		if ( ( files.isEmpty() && command.watchFolder == null ) || command.outputDirectory == null )
+		{
+			printUsage( command );
+			return;
+		}
+
+		command.files = files.toArray( new File[ 0 ] );
+		command.outputDirectory.mkdirs();
+
+		final Context context = new Context( OpService.class, LogService.class );
+		try
+		{
+			command.opService = context.service( OpService.class );
+			command.logService = context.service( LogService.class );
+			command.run();
+		}
+		finally
+		{
+			context.dispose();
+		}
+	}
+
+	private static void addInput( File input, List< File > files )
+	{
+		if ( ! input.exists() )
+			throw new IllegalArgumentException( "Input does not exist: " + input );
+
+		if ( input.isDirectory() )
+		{
+			final File[] children = input.listFiles();
+			if ( children == null ) return;
+			Arrays.sort( children );
+			for ( File child : children )
+				if ( child.isFile() )
+					files.add( child );
+		}
+		else
+		{
+			files.add( input );
+		}
+	}
+
+	/**
+	 * Sets a parameter of the command or, if the command has no
+	 * such parameter, a field of its settings.
+	 */
+	private static void setParameter( FlyEmbryoNerveCordRegistrationCommand< ? > command, String name, String value )
+	{
+		if ( SETTINGS_SET_BY_COMMAND.containsKey( name ) )
+		{
+			if ( SETTINGS_SET_BY_COMMAND.get( name ) == null )
+				throw new IllegalArgumentException( "Parameter cannot be set from the command line: --" + name );
+
+			name = SETTINGS_SET_BY_COMMAND.get( name );
+		}
+
+		try
+		{
+			Field field = getSettableField( FlyEmbryoNerveCordRegistrationCommand.class, name );
+			Object target = command;
+
+			if ( field == null )
+			{
+				field = getSettableField( FlyEmbryoRegistrationSettings.class, name );
+				target = command.settings;
+			}
+
+			if ( field == null )
+				throw new IllegalArgumentException( "Unknown parameter: --" + name );
+
+			field.set( target, parse( field.getType(), value ) );
+		}
+		catch ( IllegalAccessException e )
+		{
+			throw new IllegalArgumentException( "Cannot set parameter: --" + name, e );
+		}
+	}
+
+	private static boolean isBooleanParameter( String name )
+	{
+		if ( SETTINGS_SET_BY_COMMAND.containsKey( name ) )
+			name = SETTINGS_SET_BY_COMMAND.get( name );
+
+		if ( name == null ) return false;
+
+		Field field = getSettableField( FlyEmbryoNerveCordRegistrationCommand.class, name );
+		if ( field == null )
+			field = getSettableField( FlyEmbryoRegistrationSettings.class, name );
+
+		return field != null && field.getType() == boolean.class;
+	}
+
+	private static boolean isBooleanValue( String value )
+	{
+		return value.equalsIgnoreCase( "true" ) || value.equalsIgnoreCase( "false" );
+	}
+
+	private static Field getSettableField( Class< ? > clazz, String name )
+	{
+		for ( Field field : getSettableFields( clazz ) )
+			if ( field.getName().equals( name ) )
+				return field;
+
+		return null;
+	}
+
+	private static List< Field > getSettableFields( Class< ? > clazz )
+	{
+		final List< Field > fields = new ArrayList<>();
+		for ( Field field : clazz.getFields() )
+		{
+			if ( Modifier.isStatic( field.getModifiers() ) || Modifier.isFinal( field.getModifiers() ) ) continue;
+			if ( ! isSupported( field.getType() ) ) continue;
+			fields.add( field );
+		}
+		return fields;
+	}
+
+	private static boolean isSupported( Class< ? > type )
+	{
+		return type == double.class || type == int.class || type == long.class || type == boolean.class
+				|| type == String.class || type == File.class;
+	}
+
+	private static Object parse( Class< ? > type, String value )
+	{
+		if ( type == double.class ) return Double.parseDouble( value );
+		if ( type == int.class ) return Integer.parseInt( value );
+		if ( type == long.class ) return Long.parseLong( value );
+		if ( type == boolean.class ) return Boolean.parseBoolean( value );
+		if ( type == File.class ) return new File( value );
+		return value;
+	}
+
+	private static void printUsage( FlyEmbryoNerveCordRegistrationCommand< ? > command )
+	{
+		System.out.println( "Usage: FlyEmbryoNerveCordRegistrationCLI --outputDirectory <directory> [--name value]... <file or directory>..." );
+		System.out.println( "Parameters (default values):" );
+
+		try
+		{
+			for ( Field field : getSettableFields( FlyEmbryoNerveCordRegistrationCommand.class ) )
+				System.out.println( "  --" + field.getName() + " (" + field.get( command ) + ")" );
+
+			for ( Field field : getSettableFields( FlyEmbryoRegistrationSettings.class ) )
+				if ( getSettableField( FlyEmbryoNerveCordRegistrationCommand.class, field.getName() ) == null
+						&& ! SETTINGS_SET_BY_COMMAND.containsKey( field.getName() ) )
+					System.out.println( "  --" + field.getName() + " (" + field.get( command.settings ) + ")" );
+		}
+		catch ( IllegalAccessException e )
+		{
+			throw new RuntimeException( e );
+		}
+	}
+}
@@ -30,10 +30,7 @@ package de.embl.cba.flyreg;
 
 import de.embl.cba.abberation.RefractiveIndexMismatchCorrectionSettings;
 import de.embl.cba.abberation.RefractiveIndexMismatchCorrections;
-import de.embl.cba.morphometry.Logger;
-import de.embl.cba.morphometry.Projection;
 import de.embl.cba.morphometry.Utils;
-import de.embl.cba.transforms.utils.Transforms;
 import ij.ImagePlus;
 import ij.io.FileSaver;
 import net.imagej.DatasetService;
@@ -42,9 +39,8 @@ import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.display.imagej.ImageJFunctions;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.NativeType;
-import net.imglib2.type.logic.BitType;
 import net.imglib2.type.numeric.RealType;
-import net.imglib2.view.Views;
+import net.imglib2.util.Intervals;
 import org.scijava.app.StatusService;
 import org.scijava.command.Command;
 import org.scijava.log.LogService;
@@ -54,9 +50,12 @@ import org.scijava.ui.UIService;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Predicate;
 
 import static de.embl.cba.morphometry.Constants.Z;
-import static de.embl.cba.morphometry.Utils.openWithBioFormats;
 
 @Plugin(type = Command.class, menuPath = "Plugins>Registration>Fly>Embryo Nerve Cord Registration..." )
 public class FlyEmbryoNerveCordRegistrationCommand< T extends RealType< T > & NativeType< T > > implements Command
@@ -78,9 +77,15 @@ public class FlyEmbryoNerveCordRegistrationCommand< T extends RealType< T > & Na
 	@Parameter
 	public StatusService statusService;
 
-	@Parameter( label = "Images to be registered")
+	@Parameter( label = "Images to be registered", required = false )
 	public File[] files;
 
+	@Parameter( label = "Watch folder (registers new files while they are acquired)", style = "directory", required = false )
+	public File watchFolder;
+
+	@Parameter( label = "Watch folder idle timeout [min]" )
+	public double watchFolderIdleTimeoutMinutes = 60;
+
 	@Parameter( style = "directory" )
 	public File outputDirectory;
 
@@ -102,94 +107,493 @@ public class FlyEmbryoNerveCordRegistrationCommand< T extends RealType< T > & Na
 	@Parameter
 	public double refractiveIndexIntensityCorrectionDecayLength = settings.refractiveIndexIntensityCorrectionDecayLength;
 
+	@Parameter ( label = "Number of files registered in parallel" )
+	public int numWorkers = 1;
+
+	@Parameter ( label = "Memory factor (\u00d7 input file size, for parallel registration)" )
+	public double memoryPerInputByte = 4.0;
+
+	@Parameter ( label = "Stream output (computes and saves the registered images slab by slab)" )
+	public boolean streamOutput = settings.streamOutput;
+
+	@Parameter ( label = "Output format", choices = { FlyEmbryoRegistrationSettings.TIFF, FlyEmbryoRegistrationSettings.N5 } )
+	public String outputFormat = settings.outputFormat;
+
+	@Parameter ( label = "Memory map uncompressed TIFF input (instead of reading it onto the heap)" )
+	public boolean memoryMapInput = settings.memoryMapInput;
+
+	@Parameter ( label = "Save projections (top, bottom and full; maximum and mean)" )
+	public boolean saveProjections = settings.saveProjections;
+
+	@Parameter ( label = "Register at pyramid level (if available)" )
+	public boolean registerAtPyramidLevel = settings.registerAtPyramidLevel;
+
+	@Parameter ( label = "Cache registrations (skips re-registering unchanged inputs)" )
+	public boolean cacheRegistration = settings.cacheRegistration;
+
+	@Parameter ( label = "Register all embryos in the field of view (one output per embryo)" )
+	public boolean registerAllEmbryos = settings.registerAllEmbryos;
+
 	public String rollAngleAlignmentMethod = FlyEmbryoRegistrationSettings.INTENSITY;
 
+	private final List< RegistrationMetrics > batchMetrics = Collections.synchronizedList( new ArrayList<>() );
+
 	public void run()
 	{
 		setSettingsFromUI();
 
+		batchMetrics.clear();
+
+		if ( watchFolder != null )
+		{
+			registerWatchFolder();
+			writeBatchMetrics();
+			RegistrationLogger.log( "Done!" );
+			return;
+		}
+
+		final List< File > acceptedFiles = new ArrayList<>();
+		if ( files != null )
+			for( File file : files )
+				if ( acceptFile( fileNameEndsWith, file.toString() ) )
+					acceptedFiles.add( file );
+
+		if ( numWorkers > 1 )
+		{
+			final ThreadLocal< FlyEmbryoNerveCordRegistration > workerRegistration =
+					ThreadLocal.withInitial( () -> new FlyEmbryoNerveCordRegistration( settings, opService ) );
+
+			new FlyEmbryoRegistrationBatch( numWorkers, memoryPerInputByte ).run(
+					acceptedFiles,
+					file -> registerFile( file, workerRegistration.get() ) );
+		}
+		else
+		{
+			final FlyEmbryoNerveCordRegistration registration = new FlyEmbryoNerveCordRegistration( settings, opService );
+
+			for( File file : acceptedFiles )
+				registerFile( file, registration );
+
+			RegistrationLogger.closeLogFile();
+		}
+
+		writeBatchMetrics();
+
+		RegistrationLogger.log( "Done!" );
+	}
+
+	private void writeBatchMetrics()
+	{
+		final List< RegistrationMetrics > metricsList;
+		synchronized ( batchMetrics )
+		{
+			metricsList = new ArrayList<>( batchMetrics );
+		}
+
+		RegistrationMetrics.writeCsv( metricsList, outputDirectory + File.separator + "registration-metrics.csv" );
+	}
+
+	public void registerFile( File file, FlyEmbryoNerveCordRegistration registration )
+	{
+		final String outputFilePathStump = outputDirectory + File.separator + file.getName();
+
+		RegistrationLogger.setNewLogFilePath( outputFilePathStump + ".log.txt" );
+
+		final RegistrationMetrics metrics = new RegistrationMetrics( file.getName() );
+		batchMetrics.add( metrics );
+		registration.setMetrics( metrics );
+
+		// a file that cannot be registered does not stop the registration of the others
+		final boolean success = metrics.measureResult( "total", () -> {
+			try
+			{
+				return registerFile( file, registration, metrics, outputFilePathStump );
+			}
+			catch ( Exception e )
+			{
+				RegistrationLogger.log( "ERROR: Could not register: " + file + ": " + e );
+				return false;
+			}
+		} );
+
+		metrics.put( "success", success );
+		metrics.writeJson( outputFilePathStump + "-metrics.json" );
+	}
+
+	private boolean registerFile( File file, FlyEmbryoNerveCordRegistration registration, RegistrationMetrics metrics, String outputFilePathStump )
+	{
+		if ( settings.registerAllEmbryos )
+			return registerAllEmbryos( file, registration, metrics, outputFilePathStump );
+
+		final RegistrationJob job = new RegistrationJob( file, registration, metrics, outputFilePathStump );
+
+		return readInput( job ) && register( job ) && writeOutput( job );
+	}
+
+	/**
+	 * Registers the files that appear in the watch folder, e.g. while the microscope acquires them
+	 * - reading, registration and writing run in separate threads, such that
+	 *   consecutive files are processed concurrently
+	 * - stops once no new file appeared for the idle timeout
+	 */
+	private void registerWatchFolder()
+	{
+		RegistrationLogger.setLogFilePerThread( true );
+
+		final List< Predicate< RegistrationJob > > stages = settings.registerAllEmbryos
+				? Collections.singletonList( job -> registerAllEmbryos( job.file, job.registration, job.metrics, job.outputFilePathStump ) )
+				: Arrays.asList( this::readInput, this::register, this::writeOutput );
+
+		final List< Predicate< RegistrationJob > > loggedStages = new ArrayList<>();
+		for ( int s = 0; s < stages.size(); ++s )
+		{
+			final Predicate< RegistrationJob > stage = stages.get( s );
+			final boolean isFirstStage = s == 0;
+			loggedStages.add( job -> runWithLogFile( job, isFirstStage, stage ) );
+		}
+
+		try
+		{
+			new WatchFolderPipeline< RegistrationJob >(
+					watchFolder,
+					file -> acceptFile( fileNameEndsWith, file.toString() ),
+					( long ) ( settings.watchFolderPollSeconds * 1000 ),
+					( long ) ( settings.watchFolderSettleSeconds * 1000 ),
+					( long ) ( watchFolderIdleTimeoutMinutes * 60 * 1000 ),
+					settings.watchFolderQueueCapacity ).run(
+							this::createRegistrationJob,
+							loggedStages,
+							this::finishRegistrationJob );
+		}
+		catch ( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+		}
+		finally
+		{
+			RegistrationLogger.setLogFilePerThread( false );
+		}
+	}
+
+	private RegistrationJob createRegistrationJob( File file )
+	{
+		final RegistrationMetrics metrics = new RegistrationMetrics( file.getName() );
+		batchMetrics.add( metrics );
+
+		// each job has its own registration, because consecutive files are processed concurrently
 		final FlyEmbryoNerveCordRegistration registration = new FlyEmbryoNerveCordRegistration( settings, opService );
+		registration.setMetrics( metrics );
+
+		return new RegistrationJob( file, registration, metrics, outputDirectory + File.separator + file.getName() );
+	}
+
+	private boolean runWithLogFile( RegistrationJob job, boolean isFirstStage, Predicate< RegistrationJob > stage )
+	{
+		RegistrationLogger.setNewLogFilePath( job.outputFilePathStump + ".log.txt", ! isFirstStage );
 
-		for( File file : files )
+		try
+		{
+			return stage.test( job );
+		}
+		finally
 		{
-			if ( acceptFile( fileNameEndsWith, file.toString() ) )
+			RegistrationLogger.closeThreadLogFile();
+		}
+	}
+
+	private void finishRegistrationJob( RegistrationJob job, boolean success )
+	{
+		job.metrics.put( "detectionToOutputMillis", System.currentTimeMillis() - job.creationMillis );
+		job.metrics.put( "success", success );
+		job.metrics.writeJson( job.outputFilePathStump + "-metrics.json" );
+
+		RegistrationLogger.log( ( success ? "Registered: " : "ERROR: Could not register: " ) + job.file );
+	}
+
+	/**
+	 * State of the registration of one file, passed from the read to the register and write stage
+	 */
+	private class RegistrationJob
+	{
+		final File file;
+		final FlyEmbryoNerveCordRegistration registration;
+		final RegistrationMetrics metrics;
+		final String outputFilePathStump;
+		final long creationMillis = System.currentTimeMillis();
+
+		RegistrationResultCache cache;
+		String cacheKey;
+		boolean isRegistered;
+		InputImages< T > registrationImages;
+		InputImages< T > inputImages;
+
+		RegistrationJob( File file, FlyEmbryoNerveCordRegistration registration, RegistrationMetrics metrics, String outputFilePathStump )
+		{
+			this.file = file;
+			this.registration = registration;
+			this.metrics = metrics;
+			this.outputFilePathStump = outputFilePathStump;
+		}
+	}
+
+	private boolean readInput( RegistrationJob job )
+	{
+		final String inputPath = job.file.getAbsolutePath();
+		RegistrationLogger.log( " " );
+		RegistrationLogger.log( "Reading: " + inputPath + "..." );
+
+		/**
+		 * Reuse a previously computed registration
+		 * - the cache key depends on the file size, modification time, first and last megabyte
+		 *   and all registration settings
+		 */
+
+		job.cache = settings.cacheRegistration && ! settings.onlyComputeEllipsoidParameters
+						? new RegistrationResultCache( new File( outputDirectory, "registration-cache" ) )
+						: null;
+
+		if ( job.cache != null )
+		{
+			job.cacheKey = job.metrics.measureResult( "registrationCacheKey", () -> job.cache.getKey( job.file, settings ) );
+			final RegistrationResult cachedResult = job.cache.load( job.cacheKey );
+
+			if ( cachedResult != null )
 			{
-				final String outputFilePathStump = outputDirectory + File.separator + file.getName();
+				RegistrationLogger.log( "Using cached registration: " + job.cacheKey );
+				job.registration.setResult( cachedResult );
+				job.isRegistered = true;
+				return true;
+			}
+		}
+
+		/**
+		 * Open images for registration
+		 * - if available, at the pyramid level closest to the registration resolution
+		 */
+
+		if ( settings.registerAtPyramidLevel )
+		{
+			final ImagePlus pyramidLevel = job.metrics.measureResult( "openPyramidLevel",
+					() -> PyramidLevelOpener.openClosestLevel( inputPath, settings.registrationResolution ) );
 
-				Utils.setNewLogFilePath( outputFilePathStump + ".log.txt" );
+			if ( pyramidLevel != null )
+				job.registrationImages = InputImages.of( pyramidLevel );
+		}
 
-				/**
-				 * Open images
-				 */
+		if ( job.registrationImages == null )
+		{
+			job.inputImages = job.metrics.measureResult( "openInput", () -> openInput( inputPath ) );
+			job.registrationImages = job.inputImages;
+		}
 
-				final String inputPath = file.getAbsolutePath();
-				Logger.log( " " );
-				Logger.log( "Reading: " + inputPath + "..." );
-				final ImagePlus inputImagePlus = openWithBioFormats( inputPath );
+		if ( job.registrationImages == null )
+		{
+			logService.error( "Error opening file: " + inputPath );
+			return false;
+		}
 
-				if ( inputImagePlus == null )
-				{
-					logService.error( "Error opening file: " + inputPath );
-					continue;
-				}
+		return true;
+	}
 
-				/**
-				 * Register
-				 */
+	private boolean register( RegistrationJob job )
+	{
+		if ( job.isRegistered ) return true;
 
-				RandomAccessibleInterval< T > registeredImages =
-						createAlignedImages( inputImagePlus, registration );
+		if ( ! job.metrics.measureResult( "registration", () -> computeRegistration( job.registrationImages, job.registration ) ) )
+		{
+			RegistrationLogger.log( "ERROR: Could not find central embryo" );
+			return false;
+		}
 
-				if ( registeredImages == null )
-				{
-					Logger.log( "ERROR: Could not find central embryo" );
-					continue;
-				}
+		// only the full resolution input is needed from here on
+		job.registrationImages = null;
+		job.isRegistered = true;
 
-				/**
-				 * Save registered images
-				 */
+		if ( job.cache != null )
+			job.cache.save( job.cacheKey, job.registration.getResult() );
 
-				saveResults( outputFilePathStump, registeredImages );
+		return true;
+	}
 
-//					RandomAccessibleInterval< T > watershed = (RandomAccessibleInterval) registration.getWatershedLabelImg();
-//					new FileSaver( ImageJFunctions.wrap( watershed, "" ) ).saveAsTiff( outputFilePathStump + "-watershed.tif" );
+	private boolean writeOutput( RegistrationJob job )
+	{
+		/**
+		 * Open full resolution images for the output
+		 */
+
+		if ( job.inputImages == null )
+		{
+			final String inputPath = job.file.getAbsolutePath();
+			job.inputImages = job.metrics.measureResult( "openInput", () -> openInput( inputPath ) );
+
+			if ( job.inputImages == null )
+			{
+				logService.error( "Error opening file: " + inputPath );
+				return false;
+			}
+		}
+
+		job.metrics.put( "inputImageBytes", job.inputImages.getSizeInBytes() );
+
+		saveRegisteredImages( createRegisteredPlaneSampler( job.inputImages, job.registration ), job.metrics, job.outputFilePathStump );
+
+		// release the input, while the job may still be queued
+		job.inputImages = null;
+
+//		RandomAccessibleInterval< T > watershed = (RandomAccessibleInterval) registration.getWatershedLabelImg();
+//		new FileSaver( ImageJFunctions.wrap( watershed, "" ) ).saveAsTiff( outputFilePathStump + "-watershed.tif" );
 //
-//					Utils.log( "Creating projections..." );
-//					final ArrayList< ImagePlus > projections = createProjections( registeredImages );
+//		Utils.log( "Creating projections..." );
+//		final ArrayList< ImagePlus > projections = createProjections( registeredImages );
 //
-//					Utils.log( "Saving projections..." );
-//					saveImages( outputFilePathStump, projections );
+//		Utils.log( "Saving projections..." );
+//		saveImages( outputFilePathStump, projections );
 //
-//					// Save ch1 non-registered projection
-//					RandomAccessibleInterval< T > channel1Image = getChannelImage( getChannelImages( inputImagePlus ) );
-//					RandomAccessibleInterval shavenbabyMaximum = new Projection( channel1Image, Z ).maximum();
-//					new FileSaver( ImageJFunctions.wrap( shavenbabyMaximum, "" ) ).saveAsTiff( outputFilePathStump + "-projection-ch1-raw.tif" );
+//		// Save ch1 non-registered projection
+//		RandomAccessibleInterval< T > channel1Image = getChannelImage( getChannelImages( inputImagePlus ) );
+//		RandomAccessibleInterval shavenbabyMaximum = new Projection( channel1Image, Z ).maximum();
+//		new FileSaver( ImageJFunctions.wrap( shavenbabyMaximum, "" ) ).saveAsTiff( outputFilePathStump + "-projection-ch1-raw.tif" );
 //
-//					// Save ch2 non-registered projection
-//					RandomAccessibleInterval< T > channel2Image = getChannel2Image( getChannelImages( inputImagePlus ) );
-//					RandomAccessibleInterval ch2Maximum = new Projection( channel2Image, Z ).maximum();
-//					new FileSaver( ImageJFunctions.wrap( ch2Maximum, "" ) ).saveAsTiff( outputFilePathStump + "-projection-ch2-raw.tif" );
-			}
+//		// Save ch2 non-registered projection
+//		RandomAccessibleInterval< T > channel2Image = getChannel2Image( getChannelImages( inputImagePlus ) );
+//		RandomAccessibleInterval ch2Maximum = new Projection( channel2Image, Z ).maximum();
+//		new FileSaver( ImageJFunctions.wrap( ch2Maximum, "" ) ).saveAsTiff( outputFilePathStump + "-projection-ch2-raw.tif" );
+
+		return true;
+	}
+
+	/**
+	 * Registers each embryo in the field of view separately
+	 * - the input is opened once, at full resolution; the registration cache
+	 *   and pyramid levels are not used in this mode
+	 * - one set of output images is saved per embryo, with suffix "-embryoN"
+	 */
+	private boolean registerAllEmbryos( File file, FlyEmbryoNerveCordRegistration registration, RegistrationMetrics metrics, String outputFilePathStump )
+	{
+		final String inputPath = file.getAbsolutePath();
+		RegistrationLogger.log( " " );
+		RegistrationLogger.log( "Reading: " + inputPath + "..." );
+
+		final InputImages< T > inputImages = metrics.measureResult( "openInput", () -> openInput( inputPath ) );
+
+		if ( inputImages == null )
+		{
+			logService.error( "Error opening file: " + inputPath );
+			return false;
+		}
+
+		metrics.put( "inputImageBytes", inputImages.getSizeInBytes() );
+
+		final RandomAccessibleInterval< T > image = Utils.getChannelImage( inputImages.getChannelImages(), alignmentChannelIndexOneBased - 1 );
+
+		RegistrationLogger.log( "Computing registrations of all embryos...." );
+		final List< FlyEmbryoNerveCordRegistration< T > > embryoRegistrations =
+				metrics.measureResult( "registration",
+						() -> registration.runForAllEmbryos( image, inputImages.getCalibration() ) );
+
+		if ( embryoRegistrations.isEmpty() )
+		{
+			RegistrationLogger.log( "ERROR: Could not find any embryo" );
+			return false;
 		}
 
-		Logger.log( "Done!" );
+		for ( int i = 0; i < embryoRegistrations.size(); i++ )
+		{
+			RegistrationLogger.log( "Saving embryo " + ( i + 1 ) + " of " + embryoRegistrations.size() + "..." );
+			saveRegisteredImages(
+					createRegisteredPlaneSampler( inputImages, embryoRegistrations.get( i ) ),
+					metrics,
+					outputFilePathStump + "-embryo" + ( i + 1 ) );
+		}
+
+		return true;
+	}
+
+	/**
+	 * Opens the input at full resolution
+	 * - uncompressed TIFF files are memory mapped, if enabled
+	 */
+	private InputImages< T > openInput( String inputPath )
+	{
+		return InputImages.open( inputPath, settings.memoryMapInput );
+	}
+
+	private void saveRegisteredImages( RegisteredPlaneSampler< T > registeredPlaneSampler, RegistrationMetrics metrics, String outputFilePathStump )
+	{
+		final long outputVoxels = Intervals.numElements( registeredPlaneSampler.getInterval() ) * registeredPlaneSampler.getNumChannels();
+		metrics.put( "outputVoxels", outputVoxels );
+		metrics.put( "outputImageBytes", outputVoxels * registeredPlaneSampler.getType().getBitsPerPixel() / 8 );
+
+		// projections are computed while the registered images are sampled
+		final ProjectingPlaneSampler< T > projectingSampler = settings.saveProjections
+				? new ProjectingPlaneSampler<>( registeredPlaneSampler, getProjectionMinDistanceToCenter() )
+				: null;
+		final RegisteredPlaneSampler< T > sampler = projectingSampler != null ? projectingSampler : registeredPlaneSampler;
+
+		if ( settings.streamOutput )
+		{
+			metrics.measure( "outputResamplingAndSave", () -> saveResults( outputFilePathStump, sampler ) );
+		}
+		else
+		{
+			RegistrationLogger.log( "Creating registered and masked images (can take some time)..." );
+			final RandomAccessibleInterval< T > registeredImages =
+					metrics.measureResult( "outputResampling", sampler::sampleAllPlanes );
+
+			/**
+			 * Save registered images
+			 */
+
+			metrics.measure( "save", () -> saveResults( outputFilePathStump, registeredImages ) );
+		}
+
+		if ( projectingSampler != null )
+		{
+			RegistrationLogger.log( "Saving projections..." );
+			metrics.measure( "saveProjections", () -> saveImages( outputFilePathStump, projectingSampler.getProjections() ) );
+		}
 	}
 
 	public void saveResults( String outputFilePathStump, RandomAccessibleInterval< T > registeredImages )
 	{
-		// 3D image stack
-		//
-		final RandomAccessibleInterval< T > registeredWithImagePlusDimensionOrder =
-				Utils.copyAsArrayImg( Views.permute( registeredImages, 2, 3 ) );
-		final ImagePlus registered = ImageJFunctions.wrap( registeredWithImagePlusDimensionOrder, "transformed" );
+		if ( settings.outputFormat.equals( FlyEmbryoRegistrationSettings.N5 ) )
+		{
+			final String outputPath = outputFilePathStump + "-registered.n5";
+			RegistrationLogger.log( "Saving registered image: " + outputPath );
+			new N5ImagesWriter< T >( outputPath, settings.outputResolution, settings.outputBlockSize ).write( registeredImages );
+			return;
+		}
+
+		// the planes are copied one by one, in ImageJ's XYCZ order, while being written,
+		// thus the registered images are not duplicated
+		saveResults( outputFilePathStump, new RegisteredImagesVirtualStack<>( RegisteredPlaneSampler.of( registeredImages ), settings.outputSlabDepth ) );
+	}
+
+	public void saveResults( String outputFilePathStump, RegisteredPlaneSampler< T > sampler )
+	{
+		if ( settings.outputFormat.equals( FlyEmbryoRegistrationSettings.N5 ) )
+		{
+			final String outputPath = outputFilePathStump + "-registered.n5";
+			RegistrationLogger.log( "Saving registered image (streaming): " + outputPath );
+			new N5ImagesWriter< T >( outputPath, settings.outputResolution, settings.outputBlockSize ).write( sampler );
+			return;
+		}
+
+		saveResults( outputFilePathStump, new RegisteredImagesVirtualStack<>( sampler, settings.outputSlabDepth ) );
+	}
+
+	public void saveResults( String outputFilePathStump, RegisteredImagesVirtualStack< T > registeredStack )
+	{
+		final ImagePlus registered = new ImagePlus( "transformed", registeredStack );
+		registered.setDimensions( registeredStack.getNumChannels(), registeredStack.getNumSlices(), 1 );
+		registered.setOpenAsHyperStack( true );
 		registered.getCalibration().setUnit( "micrometer" );
 		registered.getCalibration().pixelWidth = settings.outputResolution;
 		registered.getCalibration().pixelHeight = settings.outputResolution;
 		registered.getCalibration().pixelDepth = settings.outputResolution;
 
 		final String outputPath = outputFilePathStump + "-registered.tif";
-		Logger.log( "Saving registered image: " + outputPath );
+		RegistrationLogger.log( "Saving registered image: " + outputPath );
 		new FileSaver( registered ).saveAsTiff( outputPath );
 	}
 
@@ -219,107 +623,125 @@ public class FlyEmbryoNerveCordRegistrationCommand< T extends RealType< T > & Na
 		}
 	}
 
+	/**
+	 * Computes top, bottom and full maximum and mean projections
+	 * of all channels in one pass over the images.
+	 *
+	 * @param images
+	 * 				XYZC registered images
+	 */
 	public ArrayList< ImagePlus > createProjections( RandomAccessibleInterval< T > images )
 	{
-		int Z = 2;
-
-		ArrayList< ImagePlus > projections = new ArrayList<>(  );
+		final ProjectingPlaneSampler< T > projectingSampler =
+				new ProjectingPlaneSampler<>( RegisteredPlaneSampler.of( images ), getProjectionMinDistanceToCenter() );
 
-		for ( int channelId = 0; channelId < images.dimension( 3 ); ++channelId )
-		{
-			RandomAccessibleInterval channel = Utils.getChannelImage( images, channelId );
-
-			// top
-			long rangeMin = (long) ( settings.finalProjectionMinDistanceToCenter / settings.outputResolution );
-			long rangeMax = images.max( Z );
-			Projection projection = new Projection( channel, Z, rangeMin, rangeMax );
-			RandomAccessibleInterval maximum = projection.maximum();
-			ImagePlus wrap = ImageJFunctions.wrap( maximum, "top-projection-ch" + ( channelId + 1 ) );
-			projections.add( wrap );
-
-			// bottom
-			rangeMin = images.min( Z );
-			rangeMax = - (long) ( settings.finalProjectionMinDistanceToCenter / settings.outputResolution );
-			projection = new Projection( channel, Z, rangeMin, rangeMax );
-			maximum = projection.maximum();
-			wrap = ImageJFunctions.wrap( maximum, "bottom-projection-ch" + ( channelId + 1 ) );
-			projections.add( wrap );
-
-			// full
-			rangeMin = images.min( Z );
-			rangeMax = images.max( Z );
-			projection = new Projection( channel, Z, rangeMin, rangeMax );
-			maximum = projection.maximum();
-			wrap = ImageJFunctions.wrap( maximum, "projection-ch" + ( channelId + 1 ) );
-			projections.add( wrap );
-		}
+		projectingSampler.projectAllPlanes();
 
-		return projections;
+		return projectingSampler.getProjections();
 	}
 
+	private long getProjectionMinDistanceToCenter()
+	{
+		return ( long ) ( settings.finalProjectionMinDistanceToCenter / settings.outputResolution );
+	}
 	public RandomAccessibleInterval< T > createAlignedImages( ImagePlus imagePlus, FlyEmbryoNerveCordRegistration registration )
 	{
-		final double[] inputCalibration = Utils.getCalibration( imagePlus );
-		RandomAccessibleInterval< T > images = Utils.getChannelImages( imagePlus );
-		RandomAccessibleInterval< T > image = Utils.getChannelImage( images, alignmentChannelIndexOneBased - 1  );
+		if ( ! computeRegistration( imagePlus, registration ) ) return null;
 
-		/**
-		 * Compute registration
-		 */
-		Logger.log( "Computing registration...." );
-		registration.run( image, inputCalibration );
+		RegistrationLogger.log( "Creating registered and masked images (can take some time)..." );
+		return createRegisteredPlaneSampler( imagePlus, registration ).sampleAllPlanes();
+	}
 
-		/**
-		 * Apply intensity correction
-		 */
-		Logger.log( "Applying intensity correction to all channels...." );
-		final RandomAccessibleInterval< T > intensityCorrectedImages =
-				createIntensityCorrectedImages(
-						images,
-						registration.getCorrectedCalibration()[ Z ],
-						registration.getCoverslipPosition()  );
+	public boolean computeRegistration( ImagePlus imagePlus, FlyEmbryoNerveCordRegistration registration )
+	{
+		return computeRegistration( InputImages.< T >of( imagePlus ), registration );
+	}
 
+	public boolean computeRegistration( InputImages< T > inputImages, FlyEmbryoNerveCordRegistration registration )
+	{
+		RandomAccessibleInterval< T > image = Utils.getChannelImage( inputImages.getChannelImages(), alignmentChannelIndexOneBased - 1  );
 
-		/**
-		 * Create transformation for desired output resolution
-		 */
-		final AffineTransform3D registrationTransform =
-				registration.getRegistrationTransform(
-						registration.getCorrectedCalibration(), settings.outputResolution );
-		if ( registrationTransform == null ) return null;
+		RegistrationLogger.log( "Computing registration...." );
+		return registration.run( image, inputImages.getCalibration() );
+	}
 
-		/**
-		 * Apply transformation
-		 */
-		Logger.log( "Creating registered and masked images (can take some time)..." );
-		ArrayList< RandomAccessibleInterval< T > > registeredImages =
-				Transforms.transformAllChannels(
-						intensityCorrectedImages,
-						registrationTransform,
-						settings.getOutputImageInterval()
-				);
+	/**
+	 * Creates the sampler for the registered images.
+	 * The registration must have been computed before, possibly
+	 * on a lower resolution version of the same image.
+	 *
+	 * @param imagePlus
+	 * 				the (full resolution) input image
+	 * @param registration
+	 * 				the computed registration
+	 * @return sampler of the registered images at the output resolution
+	 */
+	public RegisteredPlaneSampler< T > createRegisteredPlaneSampler( ImagePlus imagePlus, FlyEmbryoNerveCordRegistration registration )
+	{
+		return createRegisteredPlaneSampler( InputImages.< T >of( imagePlus ), registration );
+	}
+
+	/**
+	 * @see #createRegisteredPlaneSampler(ImagePlus, FlyEmbryoNerveCordRegistration)
+	 */
+	public RegisteredPlaneSampler< T > createRegisteredPlaneSampler( InputImages< T > inputImages, FlyEmbryoNerveCordRegistration registration )
+	{
+		RandomAccessibleInterval< T > images = inputImages.getChannelImages();
+
+		final double[] correctedCalibration =
+				RefractiveIndexMismatchCorrections.getAxiallyCorrectedCalibration(
+						inputImages.getCalibration(),
+						settings.refractiveIndexAxialCalibrationCorrectionFactor );
 
 		/**
-		 * Apply masking ( in order to remove other, potentially touching, embryos )
+		 * Intensity correction, transformation for desired output resolution and masking
+		 * - all applied on the fly, per output voxel
+		 * - masking removes other, potentially touching, embryos
 		 */
-		final RandomAccessibleInterval< BitType > alignedMaskAtOutputResolution
-				= registration.getAlignedMask( settings.outputResolution, settings.getOutputImageInterval() );
-		registeredImages = Utils.maskAllChannels( registeredImages, alignedMaskAtOutputResolution, settings.showIntermediateResults );
+		final IntensityCorrectionLut intensityCorrectionLut =
+				new IntensityCorrectionLut(
+						createIntensityCorrectionSettings(
+								correctedCalibration[ Z ],
+								registration.getCoverslipPosition() ),
+						images.min( Z ),
+						images.max( Z ) );
 
-		return Views.stack( registeredImages );
+		final AffineTransform3D registrationTransform =
+				registration.getRegistrationTransform( correctedCalibration, settings.outputResolution );
+
+		final ArrayList< RandomAccessibleInterval< T > > channels = new ArrayList<>();
+		for ( int c = 0; c < images.dimension( 3 ); ++c )
+			channels.add( Utils.getChannelImage( images, c ) );
+
+		return new FusedRegistrationPlaneSampler<>(
+				channels,
+				intensityCorrectionLut,
+				registrationTransform,
+				registration.getDilatedEmbryoMask(),
+				registration.getAlignedMaskTransform( settings.outputResolution ),
+				settings.getOutputImageInterval() );
 	}
 
 	public RandomAccessibleInterval< T > createIntensityCorrectedImages( RandomAccessibleInterval< T > images,
 																		 double axialCalibration,
 																		 double coverslipPosition )
 	{
+		final IntensityCorrectionLut intensityCorrectionLut =
+				new IntensityCorrectionLut(
+						createIntensityCorrectionSettings( axialCalibration, coverslipPosition ),
+						images.min( Z ),
+						images.max( Z ) );
+
+		return intensityCorrectionLut.createCorrectedView( images );
+	}
 
+	private RefractiveIndexMismatchCorrectionSettings createIntensityCorrectionSettings( double axialCalibration, double coverslipPosition )
+	{
 		final RefractiveIndexMismatchCorrectionSettings correctionSettings = new RefractiveIndexMismatchCorrectionSettings();
 		correctionSettings.pixelCalibrationMicrometer = axialCalibration;
 		correctionSettings.coverslipPositionMicrometer = coverslipPosition;
 		correctionSettings.intensityDecayLengthMicrometer = settings.refractiveIndexIntensityCorrectionDecayLength;
-
-		return RefractiveIndexMismatchCorrections.createIntensityCorrectedImages( images, correctionSettings  );
+		return correctionSettings;
 	}
 
 	public void setSettingsFromUI()
@@ -331,6 +753,13 @@ public class FlyEmbryoNerveCordRegistrationCommand< T extends RealType< T > & Na
 		settings.thresholdModality = "";
 		settings.rollAngleComputationMethod = rollAngleAlignmentMethod;
 		settings.alignmentChannelIndexOneBased = alignmentChannelIndexOneBased;
+		settings.streamOutput = streamOutput;
+		settings.outputFormat = outputFormat;
+		settings.saveProjections = saveProjections;
+		settings.registerAtPyramidLevel = registerAtPyramidLevel;
+		settings.memoryMapInput = memoryMapInput;
+		settings.cacheRegistration = cacheRegistration;
+		settings.registerAllEmbryos = registerAllEmbryos;
 	}
 
 }
@@ -0,0 +1,144 @@
+/*-
+ * #%L
+ * Fiji plugin for automated 3d spindle morphometry
+ * %%
+ * Copyright (C) 2018 - 2021 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.embl.cba.flyreg;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Registers several files concurrently.
+ *
+ * - Each file is processed by one of numWorkers threads.
+ * - Before a file is processed, memory is reserved according to its
+ *   size on disk times memoryPerInputByte. Files are only admitted if the
+ *   reservation fits into the memory budget, such that large stacks are
+ *   not all opened at the same time.
+ * - A file that cannot be registered is logged and the others are still registered.
+ */
+public class FlyEmbryoRegistrationBatch
+{
+	private static final long MEGABYTE = 1024 * 1024;
+
+	private final int numWorkers;
+	private final double memoryPerInputByte;
+	private final int memoryBudgetMegabytes;
+	private final Semaphore memory;
+
+	public FlyEmbryoRegistrationBatch( int numWorkers, double memoryPerInputByte, long memoryBudgetBytes )
+	{
+		this.numWorkers = Math.max( 1, numWorkers );
+		this.memoryPerInputByte = memoryPerInputByte;
+		this.memoryBudgetMegabytes = ( int ) Math.max( 1, memoryBudgetBytes / MEGABYTE );
+		this.memory = new Semaphore( memoryBudgetMegabytes, true );
+	}
+
+	public FlyEmbryoRegistrationBatch( int numWorkers, double memoryPerInputByte )
+	{
+		this( numWorkers, memoryPerInputByte, ( long ) ( 0.8 * Runtime.getRuntime().maxMemory() ) );
+	}
+
+	public void run( List< File > files, Consumer< File > registration )
+	{
+		final ExecutorService executorService = Executors.newFixedThreadPool( numWorkers );
+
+		RegistrationLogger.setLogFilePerThread( true );
+
+		try
+		{
+			final List< Future< ? > > futures = new ArrayList<>();
+
+			for ( File file : files )
+				futures.add( executorService.submit( () -> register( file, registration ) ) );
+
+			for ( Future< ? > future : futures )
+				future.get();
+		}
+		catch ( InterruptedException | ExecutionException e )
+		{
+			throw new RuntimeException( e );
+		}
+		finally
+		{
+			// no file may still be logging to its thread's log file, once the logger is reset
+			executorService.shutdownNow();
+			awaitTermination( executorService );
+			RegistrationLogger.setLogFilePerThread( false );
+		}
+	}
+
+	private void register( File file, Consumer< File > registration )
+	{
+		final int megabytes = getRequiredMegabytes( file );
+
+		memory.acquireUninterruptibly( megabytes );
+
+		try
+		{
+			registration.accept( file );
+		}
+		catch ( Exception e )
+		{
+			RegistrationLogger.log( "ERROR: Could not register: " + file + ": " + e );
+		}
+		finally
+		{
+			RegistrationLogger.closeThreadLogFile();
+			memory.release( megabytes );
+		}
+	}
+
+	private static void awaitTermination( ExecutorService executorService )
+	{
+		try
+		{
+			while ( ! executorService.awaitTermination( 1, TimeUnit.MINUTES ) )
+				RegistrationLogger.log( "Waiting for the registration of the remaining files to stop..." );
+		}
+		catch ( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private int getRequiredMegabytes( File file )
+	{
+		final long megabytes = ( long ) Math.ceil( memoryPerInputByte * file.length() / MEGABYTE );
+
+		// a file that does not fit the budget is processed on its own
+		return ( int ) Math.max( 1, Math.min( megabytes, memoryBudgetMegabytes ) );
+	}
+}
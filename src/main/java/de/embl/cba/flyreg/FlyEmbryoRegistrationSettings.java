@@ -38,6 +38,8 @@ public class FlyEmbryoRegistrationSettings
 	public static final String PROJECTION_SHAPE_BASED_ROLL_TRANSFORM = "Shape - Projection";
 	public static final String MOMENTS = "Moments";
 	public static final String INTENSITY =  "Intensity";
+	public static final String TIFF = "Tiff";
+	public static final String N5 = "N5";
 
 	// all spatial values are in micrometer
 
@@ -82,6 +84,40 @@ public class FlyEmbryoRegistrationSettings
 	public double centralRegionDistance = drosophilaWidth * 0.5;
 	public boolean onlyComputeEllipsoidParameters = false;
 
+	// segment at a coarser resolution first and at registration resolution
+	// only within the bounding box of the central embryo plus margin
+	public boolean coarseToFineSegmentation = false;
+	public double coarseSegmentationResolutionFactor = 2.5;
+	public double coarseSegmentationMargin = 20.0;
+
+	// read uncompressed TIFF input through memory mapped planes instead of onto the heap
+	public boolean memoryMapInput = true;
+
+	// watch folder mode: a new file is registered once it did not change for the settle time
+	public double watchFolderPollSeconds = 2;
+	public double watchFolderSettleSeconds = 10;
+	public int watchFolderQueueCapacity = 2;
+
+	// register at the pyramid level closest to the registration resolution
+	public boolean registerAtPyramidLevel = true;
+
+	// compute and write the registered images z-slab by z-slab
+	public boolean streamOutput = false;
+	public int outputSlabDepth = 16;
+
+	// save the registered images as one TIFF or as chunked and compressed N5
+	public String outputFormat = TIFF;
+	public int outputBlockSize = 64;
+
+	// save z-projections of the registered images, computed while sampling them
+	public boolean saveProjections = false;
+
+	// reuse registrations that were computed before with the same input and settings
+	public boolean cacheRegistration = false;
+
+	// register every embryo in the field of view, not only the central one
+	public boolean registerAllEmbryos = false;
+
 	public FinalInterval getOutputImageInterval()
 	{
 		final long[] min = new long[ 3 ];
@@ -46,9 +46,10 @@ import net.imglib2.RealPoint;
 import net.imglib2.algorithm.labeling.ConnectedComponents;
 import net.imglib2.algorithm.neighborhood.HyperSphereShape;
 import net.imglib2.converter.Converters;
-import net.imglib2.histogram.Histogram1d;
 import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
 import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.IntArray;
 import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.roi.labeling.ImgLabeling;
@@ -61,12 +62,16 @@ import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.IntType;
 import net.imglib2.type.numeric.integer.UnsignedByteType;
 import net.imglib2.type.numeric.integer.UnsignedIntType;
-import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.Intervals;
 import net.imglib2.view.Views;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static de.embl.cba.morphometry.Constants.*;
 import static de.embl.cba.morphometry.viewing.BdvViewer.show;
@@ -91,8 +96,8 @@ public class FlyEmbryoTwoChannelRegistration< T extends RealType< T > & NativeTy
 	private RandomAccessibleInterval< T > isotropicCh2;
 	private RandomAccessibleInterval< T > intensityCorrectedChannel1;
 	private RandomAccessibleInterval< BitType > mask;
-	private RandomAccessibleInterval< BitType > yawAlignedMask;
-	private RandomAccessibleInterval yawAlignedIntensities;
+	private RegistrationMetrics metrics = new RegistrationMetrics( "" );
+	private ExecutorService executorService;
 
 	public FlyEmbryoTwoChannelRegistration( FlyEmbryoRegistrationSettings settings, OpService opService )
 	{
@@ -108,23 +113,42 @@ public class FlyEmbryoTwoChannelRegistration< T extends RealType< T > & NativeTy
 
 		registration = new AffineTransform3D();
 
-		refractiveIndexScalingCorrection( ch1, inputCalibration );
+		metrics.measure( "refractiveIndexScalingCorrection", () -> refractiveIndexScalingCorrection( ch1, inputCalibration ) );
 
-		createIsotropicImages( ch1, ch2 );
+		metrics.measure( "createIsotropicImages", () -> createIsotropicImages( ch1, ch2 ) );
 
-		refractiveIndexIntensityCorrection();
+		metrics.measure( "refractiveIndexIntensityCorrection", this::refractiveIndexIntensityCorrection );
 
-		if ( ! segmentEmbryo() ) return;
+		if ( ! metrics.measureResult( "segmentEmbryo", this::segmentEmbryo ) ) return;
 
-		yawAlignment();
+		metrics.measure( "yawAlignment", this::yawAlignment );
 
-		orientLongAxis();
+		metrics.measure( "orientLongAxis", this::orientLongAxis );
 
-		rollTransform();
+		metrics.measure( "rollTransform", this::rollTransform );
 
 		transformAtRegistrationResolution = registration;
 	}
 
+	/**
+	 * @param metrics
+	 * 				receives the timings of the following calls to {@link #run}
+	 */
+	public void setMetrics( RegistrationMetrics metrics )
+	{
+		this.metrics = metrics;
+	}
+
+	/**
+	 * @param executorService
+	 * 				runs the channel 2 down-sampling, concurrently to the channel 1 down-sampling;
+	 * 				by default a thread that is created for each call to {@link #run}
+	 */
+	public void setExecutorService( ExecutorService executorService )
+	{
+		this.executorService = executorService;
+	}
+
 	public void rollTransform()
 	{
 		/**
@@ -152,13 +176,16 @@ public class FlyEmbryoTwoChannelRegistration< T extends RealType< T > & NativeTy
 		 *  Long axis orientation
 		 */
 
-		Logger.log( "Computing long axis orientation..." );
+		RegistrationLogger.log( "Computing long axis orientation..." );
 
-		final AffineTransform3D orientationTransform = computeFlippingTransform( yawAlignedMask, yawAlignedIntensities, settings.registrationResolution );
+		final AffineTransform3D orientationTransform = computeFlippingTransform(
+				new AlignedIntensitySampler<>( isotropicCh1, embryoMask, registration, true ),
+				settings.registrationResolution );
 
 		registration = registration.preConcatenate( orientationTransform );
 
-		yawAndOrientationAlignedMask = Utils.copyAsArrayImg( Transforms.createTransformedView( embryoMask, registration, new NearestNeighborInterpolatorFactory() ) );
+		// lazy; only copied if needed for the shape based roll transforms
+		yawAndOrientationAlignedMask = Transforms.createTransformedView( embryoMask, registration, new NearestNeighborInterpolatorFactory() );
 
 		if ( settings.showIntermediateResults ) show( yawAndOrientationAlignedMask, "long axis aligned and oriented", Transforms.origin(), registrationCalibration, false );
 	}
@@ -170,15 +197,15 @@ public class FlyEmbryoTwoChannelRegistration< T extends RealType< T > & NativeTy
 		 * - https://en.wikipedia.org/wiki/Euler_angles
 		 */
 
-		Logger.log( "Fit ellipsoid..." );
-
-		final EllipsoidMLJ ellipsoidParameters = EllipsoidsMLJ.computeParametersFromBinaryImage( embryoMask );
+		RegistrationLogger.log( "Fit ellipsoid..." );
 
-		registration.preConcatenate( EllipsoidsMLJ.createAlignmentTransform( ellipsoidParameters ) );
+		final EllipsoidMLJ ellipsoidParameters = EllipsoidsMLJ.computeParametersFromBinaryImage( Views.zeroMin( embryoMask ) );
 
-		yawAlignedMask = Utils.copyAsArrayImg( Transforms.createTransformedView( embryoMask, registration, new NearestNeighborInterpolatorFactory() ) );
+		// the embryo mask is cropped to the embryo
+		for ( int d = 0; d < 3; ++d )
+			ellipsoidParameters.center[ d ] += embryoMask.min( d );
 
-		yawAlignedIntensities = Utils.copyAsArrayImg( Transforms.createTransformedView( isotropicCh1, registration ) );
+		registration.preConcatenate( EllipsoidsMLJ.createAlignmentTransform( ellipsoidParameters ) );
 	}
 
 	public boolean segmentEmbryo()
@@ -191,9 +218,9 @@ public class FlyEmbryoTwoChannelRegistration< T extends RealType< T > & NativeTy
 		 * - Note: EUCLIDIAN distances are returned as squared distances
 		 */
 
-		Logger.log( "Distance transform..." );
+		RegistrationLogger.log( "Distance transform..." );
 
-		final RandomAccessibleInterval< DoubleType > distances = Algorithms.computeSquaredDistances( mask );
+		final RandomAccessibleInterval< FloatType > distances = SquaredDistanceTransform.squaredDistancesToBackground( mask );
 
 		if ( settings.showIntermediateResults )
 			show( distances, "squared distances", null, registrationCalibration, false );
@@ -210,7 +237,7 @@ public class FlyEmbryoTwoChannelRegistration< T extends RealType< T > & NativeTy
 		 * - due to the elongated shape of the embryos there might not be a clear maximum => use also a global threshold
 		 */
 
-		final ImgLabeling< Integer, IntType > seedsLabelImg = createWatershedSeeds( distances );
+		final Img< IntType > seedsLabelImg = createWatershedSeeds( distances );
 
 		/**
 		 * Watershed
@@ -226,13 +253,14 @@ public class FlyEmbryoTwoChannelRegistration< T extends RealType< T > & NativeTy
 		 * - TODO: replace by largest rather than central
 		 */
 
-		Logger.log( "Extract main embryo..." );
+		RegistrationLogger.log( "Extract main embryo..." );
 
 		final LabelRegion< Integer > centralObjectRegion = getCentralObjectLabelRegion( watershedLabeling );
 
 		if ( centralObjectRegion == null ) return false;
 
-		embryoMask = Algorithms.createMaskFromLabelRegion( centralObjectRegion, Intervals.dimensionsAsLongArray( isotropicCh1 ) );
+		// cropped to the embryo, such that all following stages only process this interval
+		embryoMask = createCroppedMaskFromLabelRegion( centralObjectRegion );
 
 		if ( settings.showIntermediateResults ) show( Utils.copyAsArrayImg( embryoMask ), "embryo mask", null, registrationCalibration, false );
 
@@ -241,7 +269,7 @@ public class FlyEmbryoTwoChannelRegistration< T extends RealType< T > & NativeTy
 		 * - TODO: put the currently hard-coded values into settings
 		 */
 
-		embryoMask = Algorithms.close( embryoMask, ( int ) ( 20.0 / settings.registrationResolution ) );
+		embryoMask = FastMorphology.close( embryoMask, ( int ) ( 20.0 / settings.registrationResolution ) );
 
 		// embryoMask = Algorithms.open( embryoMask, ( int ) ( 20.0 / settings.registrationResolution ) );
 
@@ -260,11 +288,11 @@ public class FlyEmbryoTwoChannelRegistration< T extends RealType< T > & NativeTy
 		 *  - TODO: find some more scientific method to determine threshold...
 		 */
 
-		final double huang = Algorithms.thresholdHuang( intensityCorrectedChannel1 );
+		final double huang = ImageStatistics.compute( intensityCorrectedChannel1 ).getHuangThreshold();
 
 		double thresholdAfterIntensityCorrection = huang;
 
-		Logger.log( "Threshold (after intensity correction): " + thresholdAfterIntensityCorrection );
+		RegistrationLogger.log( "Threshold (after intensity correction): " + thresholdAfterIntensityCorrection );
 
 		/**
 		 * Create mask
@@ -283,12 +311,9 @@ public class FlyEmbryoTwoChannelRegistration< T extends RealType< T > & NativeTy
 		 * - close holes
 		 */
 
-		Regions.removeSmallRegionsInMask( mask, settings.minimalObjectSize, settings.registrationResolution );
+		MaskComponents.removeSmallRegionsInMask( mask, settings.minimalObjectSize, settings.registrationResolution );
 
-		for ( int d = 0; d < 3; ++d )
-		{
-			mask = Algorithms.fillHoles3Din2D( mask, d, opService );
-		}
+		HoleFilling.fillHolesInSlices( mask );
 
 		if ( settings.showIntermediateResults ) show( mask, "small objects removed and holes closed", null, registrationCalibration, false );
 
@@ -300,14 +325,13 @@ public class FlyEmbryoTwoChannelRegistration< T extends RealType< T > & NativeTy
 		 *  Compute intensity offset (for refractive index mismatch corrections)
 		 */
 
-		Logger.log( "Offset and threshold..." );
+		RegistrationLogger.log( "Offset and threshold..." );
 
-		final IntensityHistogram downscaledSvbIntensityHistogram =
-				new IntensityHistogram( isotropicCh1, 65535.0, 5.0 );
+		final ImageStatistics statistics = ImageStatistics.compute( isotropicCh1 );
 
-		CoordinateAndValue intensityHistogramMode = downscaledSvbIntensityHistogram.getMode();
+		final double intensityOffset = statistics.getMode( 5 );
 
-		Logger.log( "Intensity offset: " + intensityHistogramMode.coordinate );
+		RegistrationLogger.log( "Intensity offset: " + intensityOffset );
 
 
 		/**
@@ -315,8 +339,7 @@ public class FlyEmbryoTwoChannelRegistration< T extends RealType< T > & NativeTy
 		 */
 
 		final CoordinatesAndValues averageSvbIntensitiesAlongZ =
-				Utils.computeAverageIntensitiesAlongAxis(
-						isotropicCh1, 2, settings.registrationResolution );
+				statistics.getAverageIntensitiesAlongZ( settings.registrationResolution );
 
 		if ( settings.showIntermediateResults )
 			Plots.plot(
@@ -330,26 +353,28 @@ public class FlyEmbryoTwoChannelRegistration< T extends RealType< T > & NativeTy
 		coverslipPosition =
 				embryoCenterPosition - FlyEmbryoRegistrationSettings.drosophilaWidth / 2.0;
 
-		Logger.log( "Approximate coverslip coordinate [um]: " + coverslipPosition );
-		Logger.log( "Approximate axial embryo center coordinate [um]: " + embryoCenterPosition );
+		RegistrationLogger.log( "Approximate coverslip coordinate [um]: " + coverslipPosition );
+		RegistrationLogger.log( "Approximate axial embryo center coordinate [um]: " + embryoCenterPosition );
 
 		/**
 		 *  Refractive index corrections
 		 */
 
-		Logger.log( "Refractive index intensity correction..." );
+		RegistrationLogger.log( "Refractive index intensity correction..." );
 
 		final RefractiveIndexMismatchCorrectionSettings correctionSettings = new RefractiveIndexMismatchCorrectionSettings();
-		correctionSettings.intensityOffset = intensityHistogramMode.coordinate;
+		correctionSettings.intensityOffset = intensityOffset;
 		correctionSettings.intensityDecayLengthMicrometer = settings.refractiveIndexIntensityCorrectionDecayLength;
 		correctionSettings.coverslipPositionMicrometer = coverslipPosition;
 		correctionSettings.pixelCalibrationMicrometer = settings.registrationResolution;
 
-		intensityCorrectedChannel1 = Utils.copyAsArrayImg( isotropicCh1 );
-		RefractiveIndexMismatchCorrections.correctIntensity( intensityCorrectedChannel1, correctionSettings );
+		final IntensityCorrectionLut intensityCorrectionLut =
+				new IntensityCorrectionLut( correctionSettings, isotropicCh1.min( 2 ), isotropicCh1.max( 2 ) );
+
+		intensityCorrectedChannel1 = intensityCorrectionLut.createCorrectedView( isotropicCh1 );
 
-		intensityCorrectedChannel2 = Utils.copyAsArrayImg( isotropicCh2 );
-		RefractiveIndexMismatchCorrections.correctIntensity( intensityCorrectedChannel2, correctionSettings );
+		// only sampled by the intensity based roll transform, through the alignment transform
+		intensityCorrectedChannel2 = intensityCorrectionLut.createCorrectedView( isotropicCh2 );
 
 		if ( settings.showIntermediateResults ) show( intensityCorrectedChannel1, "intensity corrected channel 1", null, registrationCalibration, false );
 	}
@@ -364,15 +389,28 @@ public class FlyEmbryoTwoChannelRegistration< T extends RealType< T > & NativeTy
 		 *  - TODO: bug: during down-sampling saturated pixels become zero
 		 */
 
-		Logger.log( "Down-sampling to registration resolution..." );
+		RegistrationLogger.log( "Down-sampling to registration resolution..." );
 
-		isotropicCh1 = createRescaledArrayImg(
-				ch1,
-				getScalingFactors( correctedCalibration, settings.registrationResolution ) );
+		final double[] scalingFactors = getScalingFactors( correctedCalibration, settings.registrationResolution );
 
-		isotropicCh2 = createRescaledArrayImg(
-				ch2,
-				getScalingFactors( correctedCalibration, settings.registrationResolution ) );
+		// the channels are independent, thus channel 2 is down-sampled concurrently
+		final ExecutorService channel2Executor =
+				executorService != null ? executorService : Executors.newSingleThreadExecutor();
+
+		try
+		{
+			final Future< RandomAccessibleInterval< T > > isotropicCh2Future =
+					channel2Executor.submit( () -> createRescaledArrayImg( ch2, scalingFactors ) );
+
+			isotropicCh1 = createRescaledArrayImg( ch1, scalingFactors );
+
+			isotropicCh2 = getResult( isotropicCh2Future );
+		}
+		finally
+		{
+			if ( channel2Executor != executorService )
+				channel2Executor.shutdown();
+		}
 
 		registrationCalibration = Utils.as3dDoubleArray( settings.registrationResolution );
 
@@ -382,6 +420,18 @@ public class FlyEmbryoTwoChannelRegistration< T extends RealType< T > & NativeTy
 					null, registrationCalibration, false );
 	}
 
+	private static < R > R getResult( Future< R > future )
+	{
+		try
+		{
+			return future.get();
+		}
+		catch ( InterruptedException | ExecutionException e )
+		{
+			throw new RuntimeException( e );
+		}
+	}
+
 	public < T extends RealType< T > & NativeType< T > > void refractiveIndexScalingCorrection( RandomAccessibleInterval< T > svb, double[] inputCalibration )
 	{
 		/**
@@ -391,30 +441,25 @@ public class FlyEmbryoTwoChannelRegistration< T extends RealType< T > & NativeTy
 		 *  - We assume axial compression by factor ~1.6
 		 */
 
-		Logger.log( "Refractive index scaling correction..." );
+		RegistrationLogger.log( "Refractive index scaling correction..." );
 
 		correctedCalibration = RefractiveIndexMismatchCorrections.getAxiallyCorrectedCalibration( inputCalibration, settings.refractiveIndexAxialCalibrationCorrectionFactor );
 
 		if ( settings.showIntermediateResults ) show( svb, "corrected calibration", null, correctedCalibration, false );
 	}
 
-	public ImgLabeling< Integer, IntType > computeWatershed( RandomAccessibleInterval< BitType > mask, RandomAccessibleInterval< DoubleType > distances, ImgLabeling< Integer, IntType > seedsLabelImg )
+	public ImgLabeling< Integer, IntType > computeWatershed( RandomAccessibleInterval< BitType > mask, RandomAccessibleInterval< FloatType > distances, RandomAccessibleInterval< IntType > seedsLabelImg )
 	{
-		Logger.log( "Watershed..." );
+		RegistrationLogger.log( "Watershed..." );
 
 		// prepare result label image
-		watershedLabelImg = ArrayImgs.ints( Intervals.dimensionsAsLongArray( mask ) );
-		final ImgLabeling< Integer, IntType > watershedLabeling = new ImgLabeling<>( watershedLabelImg );
+		final ArrayImg< IntType, IntArray > labelImg = ArrayImgs.ints( Intervals.dimensionsAsLongArray( mask ) );
+		watershedLabelImg = labelImg;
 
-		opService.image().watershed(
-				watershedLabeling,
-				Utils.invertedView( distances ),
-				seedsLabelImg,
-				false,
-				false );
+		// only visits voxels within the mask, thus no masking of the result is needed
+		final int numLabels = SeededWatershed.compute( distances, mask, seedsLabelImg, labelImg );
 
-		Utils.applyMask( watershedLabelImg, mask );
-		return watershedLabeling;
+		return MaskComponents.asImgLabeling( watershedLabelImg, numLabels );
 	}
 
 
@@ -453,9 +498,9 @@ public class FlyEmbryoTwoChannelRegistration< T extends RealType< T > & NativeTy
 		 * 		   Feels kind of messy...better way?
 		 */
 
-		Logger.log( "Creating aligned mask..." );
+		RegistrationLogger.log( "Creating aligned mask..." );
 
-		final RandomAccessibleInterval< BitType > dilatedMask = Algorithms.dilate( embryoMask, 2 );
+		final RandomAccessibleInterval< BitType > dilatedMask = FastMorphology.dilate( embryoMask, 2 );
 
 		AffineTransform3D transform = transformAtRegistrationResolution.copy()
 				.preConcatenate( Transforms.getScalingTransform( settings.registrationResolution, resolution ) );
@@ -484,16 +529,18 @@ public class FlyEmbryoTwoChannelRegistration< T extends RealType< T > & NativeTy
 			RandomAccessibleInterval< BitType > yawAndOrientationAlignedMask,
 			String rollAngleComputationMethod )
 	{
-		Logger.log( "Computing roll transform, using method: " + rollAngleComputationMethod );
+		RegistrationLogger.log( "Computing roll transform, using method: " + rollAngleComputationMethod );
 
 		if ( rollAngleComputationMethod.equals( FlyEmbryoRegistrationSettings.INTENSITY ) )
 		{
-			final RandomAccessibleInterval yawAndOrientationAlignedCh2 = Utils.copyAsArrayImg( Transforms.createTransformedView( intensityCorrectedCh2, registration.copy(), new NearestNeighborInterpolatorFactory() ) );
+			final AlignedIntensitySampler< T > yawAndOrientationAlignedCh2 =
+					new AlignedIntensitySampler<>( intensityCorrectedCh2, null, registration.copy(), false );
 
 			final AffineTransform3D intensityBasedRollTransform = computeIntensityBasedRollTransform(
-					yawAndOrientationAlignedCh2,
-					settings.projectionXMin,
-					settings.projectionXMax,
+					yawAndOrientationAlignedCh2.averageProjectionAlongX(
+							settings.projectionXMin,
+							settings.projectionXMax,
+							settings.registrationResolution ),
 					settings.projectionBlurSigma,
 					registrationCalibration );
 
@@ -502,6 +549,8 @@ public class FlyEmbryoTwoChannelRegistration< T extends RealType< T > & NativeTy
 		}
 		else if ( rollAngleComputationMethod.equals( FlyEmbryoRegistrationSettings.CENTROID_SHAPE_BASED_ROLL_TRANSFORM ) )
 		{
+			yawAndOrientationAlignedMask = Utils.copyAsArrayImg( yawAndOrientationAlignedMask );
+
 			final CentroidsParameters centroidsParameters = Utils.computeCentroidsParametersAlongXAxis( yawAndOrientationAlignedMask, settings.registrationResolution, settings.rollAngleMaxDistanceToCenter );
 
 			if ( settings.showIntermediateResults )
@@ -522,14 +571,17 @@ public class FlyEmbryoTwoChannelRegistration< T extends RealType< T > & NativeTy
 		{
 
 			final RandomAccessibleInterval< UnsignedIntType > intMask =
-					Converters.convert( yawAndOrientationAlignedMask,
+					Converters.convert( Utils.copyAsArrayImg( yawAndOrientationAlignedMask ),
 							( i, o ) -> o.set( i.getRealDouble() > 0 ? 1000 : 0 ),
 							new UnsignedIntType() );
 
 			final AffineTransform3D intensityBasedRollTransform = computeIntensityBasedRollTransform(
-					intMask,
-					intMask.min( X ) * settings.registrationResolution,
-					intMask.max( X ) * settings.registrationResolution,
+					Utils.createAverageProjectionAlongAxis(
+							intMask,
+							X,
+							intMask.min( X ) * settings.registrationResolution,
+							intMask.max( X ) * settings.registrationResolution,
+							settings.registrationResolution ),
 					12.0, registrationCalibration );
 
 			return intensityBasedRollTransform;
@@ -546,12 +598,7 @@ public class FlyEmbryoTwoChannelRegistration< T extends RealType< T > & NativeTy
 
 		if ( settings.thresholdModality.equals( FlyEmbryoRegistrationSettings.HUANG_AUTO_THRESHOLD ) )
 		{
-			final Histogram1d< T > histogram = opService.image().histogram( Views.iterable( downscaled ) );
-
-			double huang = opService.threshold().huang( histogram ).getRealDouble();
-			double yen = opService.threshold().yen( histogram ).getRealDouble();
-
-			threshold = huang;
+			threshold = ImageStatistics.compute( downscaled ).getHuangThreshold();
 		}
 		else
 		{
@@ -560,9 +607,9 @@ public class FlyEmbryoTwoChannelRegistration< T extends RealType< T > & NativeTy
 		return threshold;
 	}
 
-	public ImgLabeling< Integer, IntType > createWatershedSeeds( RandomAccessibleInterval< DoubleType > distance )
+	public Img< IntType > createWatershedSeeds( RandomAccessibleInterval< FloatType > distance )
 	{
-		Logger.log( "Seeds for watershed...");
+		RegistrationLogger.log( "Seeds for watershed...");
 
 		double globalDistanceThreshold = Math.pow( settings.watershedSeedsGlobalDistanceThreshold / settings.registrationResolution, 2 );
 		double localMaximaDistanceThreshold = Math.pow( settings.watershedSeedsLocalMaximaDistanceThreshold / settings.registrationResolution, 2 );
@@ -574,16 +621,16 @@ public class FlyEmbryoTwoChannelRegistration< T extends RealType< T > & NativeTy
 				globalDistanceThreshold,
 				localMaximaDistanceThreshold );
 
-		final ImgLabeling< Integer, IntType > seedsLabelImg = Regions.asImgLabeling( seeds, ConnectedComponents.StructuringElement.FOUR_CONNECTED );
+		final Img< IntType > seedsLabelImg = new MaskComponents( seeds, ConnectedComponents.StructuringElement.FOUR_CONNECTED ).createLabelImg();
 
-		if ( settings.showIntermediateResults ) show( Utils.asIntImg( seedsLabelImg ), "watershed seeds", null, Utils.as3dDoubleArray( settings.registrationResolution ), false );
+		if ( settings.showIntermediateResults ) show( seedsLabelImg, "watershed seeds", null, Utils.as3dDoubleArray( settings.registrationResolution ), false );
 
 		return seedsLabelImg;
 	}
 
-	public AffineTransform3D computeFlippingTransform( RandomAccessibleInterval yawAlignedMask, RandomAccessibleInterval yawAlignedIntensities, double calibration )
+	public AffineTransform3D computeFlippingTransform( AlignedIntensitySampler< T > yawAlignedIntensities, double calibration )
 	{
-		final CoordinatesAndValues coordinatesAndValues = Utils.computeAverageIntensitiesAlongAxisWithinMask( yawAlignedIntensities, yawAlignedMask, X, calibration );
+		final CoordinatesAndValues coordinatesAndValues = yawAlignedIntensities.averageIntensitiesAlongXWithinMask( calibration );
 
 		if ( settings.showIntermediateResults ) Plots.plot( coordinatesAndValues.coordinates, coordinatesAndValues.values, "x", "average intensity" );
 
@@ -600,19 +647,10 @@ public class FlyEmbryoTwoChannelRegistration< T extends RealType< T > & NativeTy
 
 	public < T extends RealType< T > & NativeType< T > >
 	AffineTransform3D computeIntensityBasedRollTransform(
-			RandomAccessibleInterval rai,
-			double xMin,
-			double xMax,
+			RandomAccessibleInterval longAxisProjection,
 			double blurSigma,
 			double[] registrationCalibration )
 	{
-		final RandomAccessibleInterval< T > longAxisProjection = Utils.createAverageProjectionAlongAxis(
-				rai,
-				X,
-				xMin,
-				xMax,
-				settings.registrationResolution );
-
 		if ( settings.showIntermediateResults ) show( longAxisProjection, "channel2 projection", null, registrationCalibration, false );
 
 		final RandomAccessibleInterval< T > blurred = Utils.createBlurredRai(
@@ -648,7 +686,7 @@ public class FlyEmbryoTwoChannelRegistration< T extends RealType< T > & NativeTy
 	{
 		final double rollAngle = computeRollAngle( centroidsParameters, settings.rollAngleMinDistanceToAxis, settings.rollAngleMinDistanceToCenter, settings.rollAngleMaxDistanceToCenter );
 
-		Logger.log( "Roll angle " + rollAngle );
+		RegistrationLogger.log( "Roll angle " + rollAngle );
 
 		AffineTransform3D rollTransform = new AffineTransform3D();
 
@@ -694,6 +732,25 @@ public class FlyEmbryoTwoChannelRegistration< T extends RealType< T > & NativeTy
 		return centralObjectImg;
 	}
 
+	/**
+	 * @return mask of the region, on the bounding interval of the region
+	 */
+	private static RandomAccessibleInterval< BitType > createCroppedMaskFromLabelRegion( LabelRegion< Integer > region )
+	{
+		final RandomAccessibleInterval< BitType > mask =
+				Views.translate( ArrayImgs.bits( Intervals.dimensionsAsLongArray( region ) ), Intervals.minAsLongArray( region ) );
+
+		final Cursor< Void > regionCursor = region.cursor();
+		final net.imglib2.RandomAccess< BitType > access = mask.randomAccess();
+		while ( regionCursor.hasNext() )
+		{
+			regionCursor.fwd();
+			access.setPosition( regionCursor );
+			access.get().set( true );
+		}
+		return mask;
+	}
+
 	private Img< UnsignedByteType > createUnsignedByteTypeMaskFromLabelRegion( LabelRegion< Integer > centralObjectRegion, long[] dimensions )
 	{
 		final Img< UnsignedByteType > centralObjectImg = ArrayImgs.unsignedBytes( dimensions );
@@ -746,7 +803,7 @@ public class FlyEmbryoTwoChannelRegistration< T extends RealType< T > & NativeTy
 		double angleToZAxisInDegrees = Angles.angle2DToCoordinateSystemsAxisInDegrees( maximum2DinYZPlane );
 		AffineTransform3D rollTransform = new AffineTransform3D();
 
-		Logger.log( "Roll angle: " + angleToZAxisInDegrees );
+		RegistrationLogger.log( "Roll angle: " + angleToZAxisInDegrees );
 		rollTransform.rotate( X, toRadians( angleToZAxisInDegrees ) );
 
 		return rollTransform;
@@ -0,0 +1,243 @@
+/*-
+ * #%L
+ * Fiji plugin for automated 3d spindle morphometry
+ * %%
+ * Copyright (C) 2018 - 2021 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.embl.cba.flyreg;
+
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Util;
+
+import java.util.List;
+
+/**
+ * Computes the registered images in a single pass, directly from the input channels.
+ *
+ * For each output voxel:
+ * - check the embryo mask (nearest neighbor), skip the voxel if it is outside
+ * - map into the input image and interpolate (n-linear) all channels,
+ *   applying the refractive index intensity correction to the neighboring voxels
+ *
+ * This is equivalent to correcting the intensities, transforming and masking
+ * all channels, but neither the intensity corrected nor the transformed
+ * images need to be stored.
+ */
+public class FusedRegistrationPlaneSampler< T extends RealType< T > & NativeType< T > > implements RegisteredPlaneSampler< T >
+{
+	private final List< RandomAccessibleInterval< T > > channels;
+	private final IntensityCorrectionLut intensityCorrectionLut;
+	private final double[][] outputToInput;
+	private final RandomAccessibleInterval< BitType > mask;
+	private final double[][] outputToMask;
+	private final Interval outputInterval;
+	private final T type;
+
+	/**
+	 * @param channels
+	 * 				XYZ input channels (not intensity corrected)
+	 * @param intensityCorrectionLut
+	 * 				refractive index intensity correction along the z-axis of the input
+	 * @param inputToOutput
+	 * 				transformation from input voxels to output voxels
+	 * @param mask
+	 * 				embryo mask
+	 * @param maskToOutput
+	 * 				transformation from mask voxels to output voxels
+	 * @param outputInterval
+	 * 				XYZ interval of the registered images
+	 */
+	public FusedRegistrationPlaneSampler(
+			List< RandomAccessibleInterval< T > > channels,
+			IntensityCorrectionLut intensityCorrectionLut,
+			AffineTransform3D inputToOutput,
+			RandomAccessibleInterval< BitType > mask,
+			AffineTransform3D maskToOutput,
+			Interval outputInterval )
+	{
+		this.channels = channels;
+		this.intensityCorrectionLut = intensityCorrectionLut;
+		this.outputToInput = asMatrix( inputToOutput.inverse() );
+		this.mask = mask;
+		this.outputToMask = asMatrix( maskToOutput.inverse() );
+		this.outputInterval = outputInterval;
+		this.type = Util.getTypeFromInterval( channels.get( 0 ) ).createVariable();
+	}
+
+	@Override
+	public Interval getInterval()
+	{
+		return outputInterval;
+	}
+
+	@Override
+	public int getNumChannels()
+	{
+		return channels.size();
+	}
+
+	@Override
+	public T getType()
+	{
+		return type;
+	}
+
+	@Override
+	public void samplePlane( long z, List< RandomAccessibleInterval< T > > channelPlanes )
+	{
+		final int numChannels = channels.size();
+		final RandomAccess< BitType > maskAccess = mask.randomAccess();
+		final RandomAccess< T >[] inputAccesses = new RandomAccess[ numChannels ];
+		final RandomAccess< T >[] outputAccesses = new RandomAccess[ numChannels ];
+		for ( int c = 0; c < numChannels; ++c )
+		{
+			inputAccesses[ c ] = channels.get( c ).randomAccess();
+			outputAccesses[ c ] = channelPlanes.get( c ).randomAccess();
+		}
+
+		final T corrected = type.createVariable();
+		final double[] input = new double[ 3 ];
+		final double[] maskPosition = new double[ 3 ];
+		final double[] output = new double[ 3 ];
+		output[ 2 ] = z;
+
+		final long width = outputInterval.dimension( 0 );
+		final long height = outputInterval.dimension( 1 );
+
+		for ( long y = 0; y < height; ++y )
+		{
+			output[ 0 ] = outputInterval.min( 0 );
+			output[ 1 ] = outputInterval.min( 1 ) + y;
+			apply( outputToInput, output, input );
+			apply( outputToMask, output, maskPosition );
+
+			for ( int c = 0; c < numChannels; ++c )
+				outputAccesses[ c ].setPosition( y, 1 );
+
+			for ( long x = 0; x < width; ++x )
+			{
+				if ( isInsideMask( maskAccess, maskPosition ) )
+				{
+					for ( int c = 0; c < numChannels; ++c )
+					{
+						outputAccesses[ c ].setPosition( x, 0 );
+						outputAccesses[ c ].get().setReal( interpolate( inputAccesses[ c ], channels.get( c ), input, corrected ) );
+					}
+				}
+
+				// the transforms are affine => moving along x is a constant step
+				for ( int d = 0; d < 3; ++d )
+				{
+					input[ d ] += outputToInput[ d ][ 0 ];
+					maskPosition[ d ] += outputToMask[ d ][ 0 ];
+				}
+			}
+		}
+	}
+
+	private boolean isInsideMask( RandomAccess< BitType > maskAccess, double[] position )
+	{
+		for ( int d = 0; d < 3; ++d )
+		{
+			final long rounded = Math.round( position[ d ] );
+			if ( rounded < mask.min( d ) || rounded > mask.max( d ) ) return false;
+			maskAccess.setPosition( rounded, d );
+		}
+
+		return maskAccess.get().get();
+	}
+
+	private double interpolate( RandomAccess< T > access, Interval interval, double[] position, T corrected )
+	{
+		final long x0 = ( long ) Math.floor( position[ 0 ] );
+		final long y0 = ( long ) Math.floor( position[ 1 ] );
+		final long z0 = ( long ) Math.floor( position[ 2 ] );
+		final double fx = position[ 0 ] - x0;
+		final double fy = position[ 1 ] - y0;
+		final double fz = position[ 2 ] - z0;
+
+		double value = 0;
+
+		for ( int corner = 0; corner < 8; ++corner )
+		{
+			final int dx = corner & 1;
+			final int dy = ( corner >> 1 ) & 1;
+			final int dz = ( corner >> 2 ) & 1;
+
+			final double weight =
+					( dx == 0 ? 1.0 - fx : fx )
+					* ( dy == 0 ? 1.0 - fy : fy )
+					* ( dz == 0 ? 1.0 - fz : fz );
+
+			if ( weight == 0 ) continue;
+
+			value += weight * getCorrectedValue( access, interval, x0 + dx, y0 + dy, z0 + dz, corrected );
+		}
+
+		return value;
+	}
+
+	private double getCorrectedValue( RandomAccess< T > access, Interval interval, long x, long y, long z, T corrected )
+	{
+		// outside of the input image the intensity is zero
+		if ( x < interval.min( 0 ) || x > interval.max( 0 )
+				|| y < interval.min( 1 ) || y > interval.max( 1 )
+				|| z < interval.min( 2 ) || z > interval.max( 2 ) )
+			return 0;
+
+		access.setPosition( x, 0 );
+		access.setPosition( y, 1 );
+		access.setPosition( z, 2 );
+
+		// store in the image type, as the intensity corrected images would
+		corrected.setReal( intensityCorrectionLut.correct( access.get().getRealDouble(), z ) );
+
+		return corrected.getRealDouble();
+	}
+
+	private static double[][] asMatrix( AffineTransform3D transform )
+	{
+		final double[][] matrix = new double[ 3 ][ 4 ];
+		for ( int r = 0; r < 3; ++r )
+			for ( int c = 0; c < 4; ++c )
+				matrix[ r ][ c ] = transform.get( r, c );
+		return matrix;
+	}
+
+	private static void apply( double[][] matrix, double[] source, double[] target )
+	{
+		for ( int r = 0; r < 3; ++r )
+			target[ r ] = matrix[ r ][ 0 ] * source[ 0 ]
+					+ matrix[ r ][ 1 ] * source[ 1 ]
+					+ matrix[ r ][ 2 ] * source[ 2 ]
+					+ matrix[ r ][ 3 ];
+	}
+}
@@ -0,0 +1,200 @@
+/*-
+ * #%L
+ * Fiji plugin for automated 3d spindle morphometry
+ * %%
+ * Copyright (C) 2018 - 2021 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.embl.cba.flyreg;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Fills holes of a 3D mask within its 2D slices, in place.
+ *
+ * - Same result as Algorithms.fillHoles3Din2D along the x, y and z axis, one after the other:
+ *   within each slice, background that is not 8-connected to the slice border becomes foreground
+ * - The mask is copied once into a byte array, on which the slices of each axis are filled in parallel,
+ *   each task reusing its own flood fill buffers
+ * - Only the filled voxels are written back into the mask
+ */
+public class HoleFilling
+{
+	private static final int SLICES_PER_TASK = 4;
+
+	private static final byte BACKGROUND = 0;
+	private static final byte FOREGROUND = 1;
+
+	/**
+	 * @param mask
+	 * 				3D binary mask, modified in place
+	 */
+	public static void fillHolesInSlices( RandomAccessibleInterval< BitType > mask )
+	{
+		if ( mask.numDimensions() != 3 )
+			throw new IllegalArgumentException( "Hole filling requires a 3D mask: " + Intervals.toString( mask ) );
+
+		final int[] dimensions = new int[ 3 ];
+		long numElements = 1;
+		for ( int d = 0; d < 3; ++d )
+		{
+			dimensions[ d ] = ( int ) mask.dimension( d );
+			numElements *= dimensions[ d ];
+		}
+
+		if ( numElements > Integer.MAX_VALUE )
+			throw new IllegalArgumentException( "Mask is too large for hole filling: " + Intervals.toString( mask ) );
+
+		final byte[] values = read( mask, dimensions );
+
+		for ( int d = 0; d < 3; ++d )
+			fillHolesInSlices( values, dimensions, d );
+
+		write( values, mask );
+	}
+
+	private static byte[] read( RandomAccessibleInterval< BitType > mask, int[] dimensions )
+	{
+		final int planeSize = dimensions[ 0 ] * dimensions[ 1 ];
+		final byte[] values = new byte[ planeSize * dimensions[ 2 ] ];
+
+		IntStream.range( 0, dimensions[ 2 ] ).parallel().forEach( z ->
+		{
+			final Cursor< BitType > cursor =
+					Views.flatIterable( Views.hyperSlice( mask, 2, mask.min( 2 ) + z ) ).cursor();
+
+			int index = z * planeSize;
+			while ( cursor.hasNext() )
+				values[ index++ ] = cursor.next().get() ? FOREGROUND : BACKGROUND;
+		} );
+
+		return values;
+	}
+
+	/**
+	 * Sequential, because neighboring voxels of a bit mask
+	 * share the same storage word.
+	 */
+	private static void write( byte[] values, RandomAccessibleInterval< BitType > mask )
+	{
+		final Cursor< BitType > cursor = Views.flatIterable( mask ).cursor();
+
+		int index = 0;
+		while ( cursor.hasNext() )
+		{
+			final BitType value = cursor.next();
+			if ( values[ index++ ] == FOREGROUND && ! value.get() )
+				value.set( true );
+		}
+	}
+
+	private static void fillHolesInSlices( byte[] values, int[] dimensions, int axis )
+	{
+		/**
+		 * The slice spans the two other axes, a (faster) and b
+		 */
+		final int a = axis == 0 ? 1 : 0;
+		final int b = axis == 2 ? 1 : 2;
+
+		final int[] strides = { 1, dimensions[ 0 ], dimensions[ 0 ] * dimensions[ 1 ] };
+
+		final int na = dimensions[ a ];
+		final int nb = dimensions[ b ];
+		final int numSlices = dimensions[ axis ];
+		final int numTasks = ( numSlices + SLICES_PER_TASK - 1 ) / SLICES_PER_TASK;
+
+		IntStream.range( 0, numTasks ).parallel().forEach( task ->
+		{
+			final boolean[] outside = new boolean[ na * nb ];
+			final int[] stack = new int[ na * nb ];
+
+			final int lastSlice = Math.min( numSlices, ( task + 1 ) * SLICES_PER_TASK );
+			for ( int slice = task * SLICES_PER_TASK; slice < lastSlice; ++slice )
+			{
+				final int offset = slice * strides[ axis ];
+				fillHoles( values, offset, strides[ a ], strides[ b ], na, nb, outside, stack );
+			}
+		} );
+	}
+
+	/**
+	 * Flood fills the background from the slice border and sets all
+	 * background voxels that were not reached to foreground.
+	 */
+	private static void fillHoles( byte[] values, int offset, int strideA, int strideB, int na, int nb, boolean[] outside, int[] stack )
+	{
+		Arrays.fill( outside, false );
+
+		int stackSize = 0;
+		for ( int v = 0; v < nb; ++v )
+			for ( int u = 0; u < na; ++u )
+			{
+				if ( u != 0 && u != na - 1 && v != 0 && v != nb - 1 ) continue;
+
+				final int i = u + v * na;
+				if ( values[ offset + u * strideA + v * strideB ] == BACKGROUND )
+				{
+					outside[ i ] = true;
+					stack[ stackSize++ ] = i;
+				}
+			}
+
+		while ( stackSize > 0 )
+		{
+			final int i = stack[ --stackSize ];
+			final int u = i % na;
+			final int v = i / na;
+
+			for ( int dv = -1; dv <= 1; ++dv )
+			{
+				final int nv = v + dv;
+				if ( nv < 0 || nv >= nb ) continue;
+
+				for ( int du = -1; du <= 1; ++du )
+				{
+					final int nu = u + du;
+					if ( nu < 0 || nu >= na ) continue;
+
+					final int j = nu + nv * na;
+					if ( outside[ j ] || values[ offset + nu * strideA + nv * strideB ] != BACKGROUND ) continue;
+
+					outside[ j ] = true;
+					stack[ stackSize++ ] = j;
+				}
+			}
+		}
+
+		for ( int v = 0; v < nb; ++v )
+			for ( int u = 0; u < na; ++u )
+				if ( ! outside[ u + v * na ] )
+					values[ offset + u * strideA + v * strideB ] = FOREGROUND;
+	}
+}
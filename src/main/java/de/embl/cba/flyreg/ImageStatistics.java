@@ -0,0 +1,254 @@
+/*-
+ * #%L
+ * Fiji plugin for automated 3d spindle morphometry
+ * %%
+ * Copyright (C) 2018 - 2021 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.embl.cba.flyreg;
+
+import de.embl.cba.morphometry.geometry.CoordinatesAndValues;
+import ij.process.AutoThresholder;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+import java.util.stream.IntStream;
+
+/**
+ * Intensity statistics of a 3D image, computed in one parallel pass.
+ *
+ * - Histogram with unit bin width for the values 0 to 65535, values outside are clamped;
+ *   used for the histogram mode and, for integer images within that range, the Huang threshold
+ * - Average intensity of each z-plane
+ * - Minimum and maximum
+ * - The z-planes are distributed onto tasks, each accumulating into its own primitive arrays,
+ *   which are summed up at the end
+ */
+public class ImageStatistics
+{
+	public static final int NUM_BINS = 65536;
+
+	private static final int PLANES_PER_TASK = 8;
+
+	private static final int NUM_THRESHOLD_BINS = 256;
+
+	private final RandomAccessibleInterval< ? extends RealType< ? > > image;
+	private final long[] histogram;
+	private final double[] planeSums;
+	private final long planeSize;
+	private final long zMin;
+	private double min;
+	private double max;
+
+	private ImageStatistics( RandomAccessibleInterval< ? extends RealType< ? > > image, int numPlanes, long planeSize, long zMin )
+	{
+		this.image = image;
+		this.histogram = new long[ NUM_BINS ];
+		this.planeSums = new double[ numPlanes ];
+		this.planeSize = planeSize;
+		this.zMin = zMin;
+		this.min = Double.POSITIVE_INFINITY;
+		this.max = Double.NEGATIVE_INFINITY;
+	}
+
+	public static < T extends RealType< T > > ImageStatistics compute( RandomAccessibleInterval< T > rai )
+	{
+		final int numPlanes = ( int ) rai.dimension( 2 );
+		final long planeSize = rai.dimension( 0 ) * rai.dimension( 1 );
+		final int numTasks = ( numPlanes + PLANES_PER_TASK - 1 ) / PLANES_PER_TASK;
+
+		return IntStream.range( 0, numTasks ).parallel().mapToObj( task ->
+		{
+			final ImageStatistics statistics = new ImageStatistics( rai, numPlanes, planeSize, rai.min( 2 ) );
+
+			final int lastPlane = Math.min( numPlanes, ( task + 1 ) * PLANES_PER_TASK );
+			for ( int z = task * PLANES_PER_TASK; z < lastPlane; ++z )
+				statistics.addPlane( Views.hyperSlice( rai, 2, rai.min( 2 ) + z ), z );
+
+			return statistics;
+		} ).reduce( ImageStatistics::add ).orElseGet( () -> new ImageStatistics( rai, numPlanes, planeSize, rai.min( 2 ) ) );
+	}
+
+	private < T extends RealType< T > > void addPlane( RandomAccessibleInterval< T > plane, int z )
+	{
+		final Cursor< T > cursor = Views.flatIterable( plane ).cursor();
+
+		double sum = 0;
+		while ( cursor.hasNext() )
+		{
+			final double value = cursor.next().getRealDouble();
+			sum += value;
+			if ( value < min ) min = value;
+			if ( value > max ) max = value;
+			histogram[ bin( value ) ]++;
+		}
+
+		planeSums[ z ] = sum;
+	}
+
+	private static int bin( double value )
+	{
+		if ( value <= 0 ) return 0;
+		if ( value >= NUM_BINS - 1 ) return NUM_BINS - 1;
+		return ( int ) value;
+	}
+
+	private ImageStatistics add( ImageStatistics other )
+	{
+		for ( int i = 0; i < NUM_BINS; ++i )
+			histogram[ i ] += other.histogram[ i ];
+
+		for ( int z = 0; z < planeSums.length; ++z )
+			planeSums[ z ] += other.planeSums[ z ];
+
+		min = Math.min( min, other.min );
+		max = Math.max( max, other.max );
+
+		return this;
+	}
+
+	public long[] getHistogram()
+	{
+		return histogram;
+	}
+
+	public double getMin()
+	{
+		return min;
+	}
+
+	public double getMax()
+	{
+		return max;
+	}
+
+	/**
+	 * @param binWidth
+	 * 				width of the histogram bins, in intensity units
+	 * @return center of the most frequent bin, e.g. 100.5 for the values 100 to 100.999... and a bin width of 1
+	 */
+	public double getMode( int binWidth )
+	{
+		long maxCount = -1;
+		int mode = 0;
+		for ( int start = 0; start < NUM_BINS; start += binWidth )
+		{
+			long count = 0;
+			for ( int i = start; i < Math.min( NUM_BINS, start + binWidth ); ++i )
+				count += histogram[ i ];
+
+			if ( count > maxCount )
+			{
+				maxCount = count;
+				mode = start;
+			}
+		}
+
+		return mode + 0.5 * binWidth;
+	}
+
+	/**
+	 * @param calibration
+	 * 				voxel size along z
+	 * @return z-coordinates, in calibrated units, and average intensities of all z-planes
+	 */
+	public CoordinatesAndValues getAverageIntensitiesAlongZ( double calibration )
+	{
+		final CoordinatesAndValues averages = new CoordinatesAndValues();
+
+		for ( int z = 0; z < planeSums.length; ++z )
+		{
+			averages.coordinates.add( ( zMin + z ) * calibration );
+			averages.values.add( planeSums[ z ] / planeSize );
+		}
+
+		return averages;
+	}
+
+	/**
+	 * Huang threshold on a histogram with 256 bins between minimum and maximum,
+	 * like the default histogram of the ops threshold methods.
+	 *
+	 * - For integer images within 0 to 65535, the threshold histogram is rebinned from the unit width histogram
+	 * - Otherwise, e.g. for real-valued or negative intensities, the image is binned again, in a second pass
+	 *
+	 * @return the center value of the threshold bin
+	 */
+	public double getHuangThreshold()
+	{
+		if ( max <= min ) return min;
+
+		final double binWidth = ( max - min ) / NUM_THRESHOLD_BINS;
+
+		final int[] thresholdHistogram = isUnitBinned()
+				? rebinThresholdHistogram( binWidth )
+				: computeThresholdHistogram( binWidth );
+
+		final int thresholdBin = new AutoThresholder().getThreshold( AutoThresholder.Method.Huang, thresholdHistogram );
+
+		return min + ( thresholdBin + 0.5 ) * binWidth;
+	}
+
+	/**
+	 * @return whether each value has its own bin in the unit width histogram
+	 */
+	private boolean isUnitBinned()
+	{
+		return Views.iterable( image ).firstElement() instanceof IntegerType && min >= 0 && max <= NUM_BINS - 1;
+	}
+
+	private int[] rebinThresholdHistogram( double binWidth )
+	{
+		final int[] thresholdHistogram = new int[ NUM_THRESHOLD_BINS ];
+		for ( int i = bin( min ); i <= bin( max ); ++i )
+			thresholdHistogram[ thresholdBin( i, binWidth ) ] += histogram[ i ];
+
+		return thresholdHistogram;
+	}
+
+	private int[] computeThresholdHistogram( double binWidth )
+	{
+		return IntStream.range( 0, planeSums.length ).parallel().mapToObj( z ->
+		{
+			final int[] thresholdHistogram = new int[ NUM_THRESHOLD_BINS ];
+			for ( RealType< ? > value : Views.flatIterable( Views.hyperSlice( image, 2, zMin + z ) ) )
+				thresholdHistogram[ thresholdBin( value.getRealDouble(), binWidth ) ]++;
+
+			return thresholdHistogram;
+		} ).reduce( ( a, b ) ->
+		{
+			for ( int i = 0; i < NUM_THRESHOLD_BINS; ++i )
+				a[ i ] += b[ i ];
+			return a;
+		} ).orElseGet( () -> new int[ NUM_THRESHOLD_BINS ] );
+	}
+
+	private int thresholdBin( double value, double binWidth )
+	{
+		return ( int ) Math.min( NUM_THRESHOLD_BINS - 1, Math.max( 0, ( value - min ) / binWidth ) );
+	}
+}
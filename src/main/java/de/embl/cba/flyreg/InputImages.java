@@ -0,0 +1,123 @@
+/*-
+ * #%L
+ * Fiji plugin for automated 3d spindle morphometry
+ * %%
+ * Copyright (C) 2018 - 2021 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.embl.cba.flyreg;
+
+import de.embl.cba.morphometry.Utils;
+import ij.ImagePlus;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Channel images of an input file, with their voxel size.
+ */
+public class InputImages< T extends RealType< T > & NativeType< T > >
+{
+	private final RandomAccessibleInterval< T > channelImages;
+	private final double[] calibration;
+	private final long sizeInBytes;
+
+	/**
+	 * @param channelImages
+	 * 				XYZC images
+	 * @param calibration
+	 * 				voxel size in micrometer
+	 * @param sizeInBytes
+	 * 				size of the voxel data
+	 */
+	public InputImages( RandomAccessibleInterval< T > channelImages, double[] calibration, long sizeInBytes )
+	{
+		this.channelImages = channelImages;
+		this.calibration = calibration;
+		this.sizeInBytes = sizeInBytes;
+	}
+
+	public static < T extends RealType< T > & NativeType< T > > InputImages< T > of( ImagePlus imagePlus )
+	{
+		final RandomAccessibleInterval< T > channelImages = Utils.getChannelImages( imagePlus );
+
+		return new InputImages<>(
+				channelImages,
+				Utils.getCalibration( imagePlus ),
+				( long ) imagePlus.getSizeInBytes() );
+	}
+
+	/**
+	 * Opens an image file.
+	 *
+	 * @param path
+	 * 				image file
+	 * @param memoryMap
+	 * 				whether to memory map uncompressed TIFF files (see {@link MemoryMappedTiff}),
+	 * 				instead of reading them onto the heap
+	 * @return the input images; null, if the file could not be opened
+	 */
+	public static < T extends RealType< T > & NativeType< T > > InputImages< T > open( String path, boolean memoryMap )
+	{
+		if ( memoryMap && ( path.endsWith( ".tif" ) || path.endsWith( ".tiff" ) ) )
+		{
+			try
+			{
+				final InputImages< T > mapped = MemoryMappedTiff.open( new File( path ) );
+
+				if ( mapped != null )
+				{
+					RegistrationLogger.log( "Memory mapped: " + path );
+					return mapped;
+				}
+			}
+			catch ( IOException e )
+			{
+				RegistrationLogger.log( "Could not memory map " + path + ": " + e.getMessage() );
+			}
+		}
+
+		final ImagePlus imagePlus = Utils.openWithBioFormats( path );
+
+		return imagePlus == null ? null : of( imagePlus );
+	}
+
+	public RandomAccessibleInterval< T > getChannelImages()
+	{
+		return channelImages;
+	}
+
+	public double[] getCalibration()
+	{
+		return calibration;
+	}
+
+	public long getSizeInBytes()
+	{
+		return sizeInBytes;
+	}
+}
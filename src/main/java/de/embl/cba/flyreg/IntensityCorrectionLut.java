@@ -0,0 +1,151 @@
+/*-
+ * #%L
+ * Fiji plugin for automated 3d spindle morphometry
+ * %%
+ * Copyright (C) 2018 - 2021 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.embl.cba.flyreg;
+
+import de.embl.cba.abberation.RefractiveIndexMismatchCorrectionSettings;
+import de.embl.cba.abberation.RefractiveIndexMismatchCorrections;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.Converters;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.position.FunctionRandomAccessible;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.LongType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+/**
+ * Per z-plane lookup table of the refractive index intensity correction.
+ *
+ * The correction only depends on z and is affine in the intensity.
+ * The lookup table is obtained by applying
+ * {@link RefractiveIndexMismatchCorrections#correctIntensity} to
+ * single voxel columns, such that it is consistent with the
+ * library implementation.
+ *
+ * Corrected images can be obtained as views, which apply the
+ * lookup table on read, such that the corrected intensities
+ * never need to be stored.
+ */
+public class IntensityCorrectionLut
+{
+	private final long zMin;
+	private final double offset;
+	private final double[] gains;
+	private final double[] intercepts;
+	private final boolean[] clampBelowOffset;
+
+	public IntensityCorrectionLut( RefractiveIndexMismatchCorrectionSettings correctionSettings, long zMin, long zMax )
+	{
+		this.zMin = zMin;
+		this.offset = correctionSettings.intensityOffset;
+
+		final int numPlanes = ( int ) ( zMax - zMin + 1 );
+
+		final double[] atOffset = probe( correctionSettings, zMin, numPlanes, offset );
+		final double[] aboveOffset = probe( correctionSettings, zMin, numPlanes, offset + 1.0 );
+		final double[] belowOffset = probe( correctionSettings, zMin, numPlanes, offset - 1.0 );
+
+		gains = new double[ numPlanes ];
+		intercepts = new double[ numPlanes ];
+		clampBelowOffset = new boolean[ numPlanes ];
+
+		for ( int z = 0; z < numPlanes; ++z )
+		{
+			gains[ z ] = aboveOffset[ z ] - atOffset[ z ];
+			intercepts[ z ] = atOffset[ z ];
+			clampBelowOffset[ z ] = belowOffset[ z ] != intercepts[ z ] - gains[ z ];
+		}
+	}
+
+	public double correct( double value, long z )
+	{
+		final int i = ( int ) ( z - zMin );
+
+		if ( value < offset && clampBelowOffset[ i ] ) return 0;
+
+		return intercepts[ i ] + gains[ i ] * ( value - offset );
+	}
+
+	/**
+	 * Intensity corrected view of an image, computed on read.
+	 *
+	 * @param image
+	 * 				image with z along dimension 2, within the z-range of this lookup table;
+	 * 				further dimensions, e.g. channels, share the same lookup table
+	 * @return corrected view, of the same type as the image
+	 */
+	public < T extends RealType< T > & NativeType< T > > RandomAccessibleInterval< T > createCorrectedView( RandomAccessibleInterval< T > image )
+	{
+		final RandomAccessible< LongType > zPositions = new FunctionRandomAccessible<>(
+				image.numDimensions(),
+				( position, z ) -> z.set( position.getLongPosition( 2 ) ),
+				LongType::new );
+
+		return Converters.convert(
+				image,
+				Views.interval( zPositions, image ),
+				( value, z, corrected ) -> corrected.setReal( correct( value.getRealDouble(), z.get() ) ),
+				Util.getTypeFromInterval( image ).createVariable() );
+	}
+
+	public long getZMin()
+	{
+		return zMin;
+	}
+
+	public long getZMax()
+	{
+		return zMin + gains.length - 1;
+	}
+
+	private static double[] probe( RefractiveIndexMismatchCorrectionSettings correctionSettings, long zMin, int numPlanes, double value )
+	{
+		final Img< DoubleType > column = ArrayImgs.doubles( 1, 1, numPlanes );
+
+		for ( DoubleType voxel : column )
+			voxel.set( value );
+
+		RefractiveIndexMismatchCorrections.correctIntensity( Views.translate( column, 0, 0, zMin ), correctionSettings );
+
+		final double[] corrected = new double[ numPlanes ];
+		final Cursor< DoubleType > cursor = column.localizingCursor();
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+			corrected[ cursor.getIntPosition( 2 ) ] = cursor.get().get();
+		}
+
+		return corrected;
+	}
+}
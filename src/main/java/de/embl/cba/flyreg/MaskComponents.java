@@ -0,0 +1,486 @@
+/*-
+ * #%L
+ * Fiji plugin for automated 3d spindle morphometry
+ * %%
+ * Copyright (C) 2018 - 2021 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.embl.cba.flyreg;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.labeling.ConnectedComponents;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.roi.labeling.ImgLabeling;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.IntStream;
+
+/**
+ * Connected components of 2D or 3D binary masks.
+ *
+ * - The mask is read once into runs (x-intervals of foreground voxels along each row)
+ * - The runs are connected with a union-find on primitive arrays,
+ *   in parallel within z-slabs, followed by merging the slab borders
+ * - The components are numbered 1, 2, ... in the order of their first voxel
+ * - Size, bounding box and centroid of each component are computed from the runs
+ */
+public class MaskComponents
+{
+	private final int numDimensions;
+	private final long[] min;
+	private final int nx, ny, nz;
+	private final boolean fullyConnected;
+
+	// runs, sorted by row ( y + z * ny ) and x
+	private final int[] runRowStart;
+	private int[] runStart;
+	private int[] runEnd;
+	private int[] runLabel;
+
+	private int numComponents;
+	private long[] sizes;
+	private long[][] boundingBoxMin;
+	private long[][] boundingBoxMax;
+	private double[][] centroids;
+
+	/**
+	 * @param mask
+	 * 				2D or 3D mask
+	 * @param structuringElement
+	 * 				FOUR_CONNECTED: neighbors share a face; EIGHT_CONNECTED: neighbors share at least a corner
+	 */
+	public MaskComponents( RandomAccessibleInterval< BitType > mask, ConnectedComponents.StructuringElement structuringElement )
+	{
+		final RandomAccessibleInterval< BitType > mask3D = as3D( mask );
+
+		this.numDimensions = mask.numDimensions();
+		this.min = Intervals.minAsLongArray( mask3D );
+		this.nx = ( int ) mask3D.dimension( 0 );
+		this.ny = ( int ) mask3D.dimension( 1 );
+		this.nz = ( int ) mask3D.dimension( 2 );
+		this.fullyConnected = structuringElement == ConnectedComponents.StructuringElement.EIGHT_CONNECTED;
+		this.runRowStart = new int[ ny * nz + 1 ];
+
+		readRuns( mask3D );
+		labelRuns();
+		computeStatistics();
+	}
+
+	/**
+	 * Removes components that are smaller than the given size.
+	 *
+	 * @param mask
+	 * 				2D or 3D mask
+	 * @param sizeInCalibratedUnits
+	 * 				minimal area or volume
+	 * @param calibration
+	 * 				(isotropic) voxel size
+	 */
+	public static void removeSmallRegionsInMask(
+			RandomAccessibleInterval< BitType > mask,
+			double sizeInCalibratedUnits,
+			double calibration )
+	{
+		final long minimalNumVoxels =
+				( long ) ( sizeInCalibratedUnits / Math.pow( calibration, mask.numDimensions() ) );
+
+		new MaskComponents( mask, ConnectedComponents.StructuringElement.FOUR_CONNECTED )
+				.removeSmallComponents( mask, minimalNumVoxels );
+	}
+
+	/**
+	 * Labeling of the connected components, with label i stored as index i.
+	 */
+	public static ImgLabeling< Integer, IntType > asImgLabeling(
+			RandomAccessibleInterval< BitType > mask,
+			ConnectedComponents.StructuringElement structuringElement )
+	{
+		return new MaskComponents( mask, structuringElement ).createImgLabeling();
+	}
+
+	public int getNumComponents()
+	{
+		return numComponents;
+	}
+
+	/**
+	 * @return number of voxels of component label, at index label - 1
+	 */
+	public long[] getSizes()
+	{
+		return sizes;
+	}
+
+	/**
+	 * @return minimal coordinates of component label, at index label - 1
+	 */
+	public long[][] getBoundingBoxMin()
+	{
+		return boundingBoxMin;
+	}
+
+	/**
+	 * @return maximal coordinates of component label, at index label - 1
+	 */
+	public long[][] getBoundingBoxMax()
+	{
+		return boundingBoxMax;
+	}
+
+	/**
+	 * @return centroid of component label, at index label - 1
+	 */
+	public double[][] getCentroids()
+	{
+		return centroids;
+	}
+
+	/**
+	 * Sets all voxels of components with less than minimalNumVoxels to false.
+	 *
+	 * @param mask
+	 * 				the mask from which the components were computed
+	 * @param minimalNumVoxels
+	 * 				minimal number of voxels of a component
+	 */
+	public void removeSmallComponents( RandomAccessibleInterval< BitType > mask, long minimalNumVoxels )
+	{
+		final RandomAccessibleInterval< BitType > mask3D = as3D( mask );
+
+		IntStream.range( 0, nz ).parallel().forEach( z ->
+		{
+			final RandomAccess< BitType > access = mask3D.randomAccess();
+			for ( int y = 0; y < ny; ++y )
+			{
+				final int row = y + z * ny;
+				for ( int run = runRowStart[ row ]; run < runRowStart[ row + 1 ]; ++run )
+				{
+					if ( sizes[ runLabel[ run ] - 1 ] >= minimalNumVoxels ) continue;
+
+					access.setPosition( min[ 1 ] + y, 1 );
+					access.setPosition( min[ 2 ] + z, 2 );
+					for ( int x = runStart[ run ]; x <= runEnd[ run ]; ++x )
+					{
+						access.setPosition( min[ 0 ] + x, 0 );
+						access.get().setZero();
+					}
+				}
+			}
+		} );
+	}
+
+	/**
+	 * @return zero-min label image, with 0 as background and the components numbered 1, 2, ...
+	 */
+	public Img< IntType > createLabelImg()
+	{
+		final int[] labels = new int[ nx * ny * nz ];
+
+		IntStream.range( 0, ny * nz ).parallel().forEach( row ->
+		{
+			for ( int run = runRowStart[ row ]; run < runRowStart[ row + 1 ]; ++run )
+				Arrays.fill( labels, row * nx + runStart[ run ], row * nx + runEnd[ run ] + 1, runLabel[ run ] );
+		} );
+
+		if ( numDimensions == 2 ) return ArrayImgs.ints( labels, nx, ny );
+		return ArrayImgs.ints( labels, nx, ny, nz );
+	}
+
+	/**
+	 * @return labeling on {@link #createLabelImg()}, with the same interval as the mask
+	 */
+	public ImgLabeling< Integer, IntType > createImgLabeling()
+	{
+		return asImgLabeling(
+				Views.translate( createLabelImg(), Arrays.copyOf( min, numDimensions ) ),
+				numComponents );
+	}
+
+	/**
+	 * Wraps a label image into a labeling, without copying.
+	 *
+	 * @param labelImg
+	 * 				label image with labels 0 (background), 1, ..., numLabels
+	 * @return labeling, where label i is stored as index i
+	 */
+	public static ImgLabeling< Integer, IntType > asImgLabeling( RandomAccessibleInterval< IntType > labelImg, int numLabels )
+	{
+		final ImgLabeling< Integer, IntType > labeling = new ImgLabeling<>( labelImg );
+
+		final List< Set< Integer > > labelSets = new ArrayList<>();
+		labelSets.add( Collections.emptySet() );
+		for ( int label = 1; label <= numLabels; ++label )
+			labelSets.add( new HashSet<>( Collections.singletonList( label ) ) );
+		labeling.getMapping().setLabelSets( labelSets );
+
+		return labeling;
+	}
+
+	private void readRuns( RandomAccessibleInterval< BitType > mask )
+	{
+		final IntList[] planeStarts = new IntList[ nz ];
+		final IntList[] planeEnds = new IntList[ nz ];
+
+		IntStream.range( 0, nz ).parallel().forEach( z ->
+		{
+			final IntList starts = new IntList();
+			final IntList ends = new IntList();
+			final Cursor< BitType > cursor =
+					Views.flatIterable( Views.hyperSlice( mask, 2, min[ 2 ] + z ) ).cursor();
+
+			for ( int y = 0; y < ny; ++y )
+			{
+				int start = -1;
+				for ( int x = 0; x < nx; ++x )
+				{
+					final boolean foreground = cursor.next().get();
+					if ( foreground && start < 0 ) start = x;
+					else if ( ! foreground && start >= 0 )
+					{
+						starts.add( start );
+						ends.add( x - 1 );
+						start = -1;
+					}
+				}
+
+				if ( start >= 0 )
+				{
+					starts.add( start );
+					ends.add( nx - 1 );
+				}
+
+				runRowStart[ y + z * ny + 1 ] = starts.size(); // within plane, made global below
+			}
+
+			planeStarts[ z ] = starts;
+			planeEnds[ z ] = ends;
+		} );
+
+		int numRuns = 0;
+		for ( int z = 0; z < nz; ++z )
+		{
+			for ( int y = 0; y < ny; ++y )
+				runRowStart[ y + z * ny + 1 ] += numRuns;
+			numRuns += planeStarts[ z ].size();
+		}
+
+		runStart = new int[ numRuns ];
+		runEnd = new int[ numRuns ];
+		for ( int z = 0; z < nz; ++z )
+		{
+			System.arraycopy( planeStarts[ z ].values, 0, runStart, runRowStart[ z * ny ], planeStarts[ z ].size() );
+			System.arraycopy( planeEnds[ z ].values, 0, runEnd, runRowStart[ z * ny ], planeEnds[ z ].size() );
+		}
+	}
+
+	private void labelRuns()
+	{
+		final int[] parent = new int[ runStart.length ];
+		for ( int i = 0; i < parent.length; ++i )
+			parent[ i ] = i;
+
+		/**
+		 * Connect within z-slabs in parallel (the slabs have disjoint runs),
+		 * then the first plane of each slab with the last plane of the previous slab
+		 */
+		final int numSlabs = Math.max( 1, Math.min( nz, Runtime.getRuntime().availableProcessors() ) );
+		final int slabDepth = ( nz + numSlabs - 1 ) / numSlabs;
+
+		IntStream.range( 0, numSlabs ).parallel().forEach( slab ->
+		{
+			final int zMax = Math.min( nz, ( slab + 1 ) * slabDepth );
+			for ( int z = slab * slabDepth; z < zMax; ++z )
+				connectPlane( parent, z, z > slab * slabDepth );
+		} );
+
+		for ( int z = slabDepth; z < nz; z += slabDepth )
+			connectToPreviousPlane( parent, z );
+
+		/**
+		 * Number the components in the order of their first run;
+		 * the root of each component is its first run
+		 */
+		runLabel = new int[ runStart.length ];
+		numComponents = 0;
+		for ( int run = 0; run < runStart.length; ++run )
+		{
+			final int root = find( parent, run );
+			runLabel[ run ] = root == run ? ++numComponents : runLabel[ root ];
+		}
+	}
+
+	private void connectPlane( int[] parent, int z, boolean includingPreviousPlane )
+	{
+		for ( int y = 0; y < ny; ++y )
+		{
+			final int row = y + z * ny;
+			if ( y > 0 ) connectRows( parent, row, row - 1 );
+		}
+
+		if ( includingPreviousPlane ) connectToPreviousPlane( parent, z );
+	}
+
+	private void connectToPreviousPlane( int[] parent, int z )
+	{
+		for ( int y = 0; y < ny; ++y )
+		{
+			final int row = y + z * ny;
+			final int previousPlaneRow = row - ny;
+
+			connectRows( parent, row, previousPlaneRow );
+
+			if ( fullyConnected )
+			{
+				if ( y > 0 ) connectRows( parent, row, previousPlaneRow - 1 );
+				if ( y < ny - 1 ) connectRows( parent, row, previousPlaneRow + 1 );
+			}
+		}
+	}
+
+	/**
+	 * Unites all overlapping (or, if fully connected, diagonally touching) runs of two rows.
+	 */
+	private void connectRows( int[] parent, int row, int otherRow )
+	{
+		final int tolerance = fullyConnected ? 1 : 0;
+
+		int i = runRowStart[ row ];
+		int j = runRowStart[ otherRow ];
+		final int iEnd = runRowStart[ row + 1 ];
+		final int jEnd = runRowStart[ otherRow + 1 ];
+
+		while ( i < iEnd && j < jEnd )
+		{
+			if ( runStart[ i ] <= runEnd[ j ] + tolerance && runStart[ j ] <= runEnd[ i ] + tolerance )
+				union( parent, i, j );
+
+			if ( runEnd[ i ] < runEnd[ j ] ) i++;
+			else j++;
+		}
+	}
+
+	private void computeStatistics()
+	{
+		sizes = new long[ numComponents ];
+		boundingBoxMin = new long[ numComponents ][ 3 ];
+		boundingBoxMax = new long[ numComponents ][ 3 ];
+		centroids = new double[ numComponents ][ 3 ];
+
+		for ( int c = 0; c < numComponents; ++c )
+		{
+			Arrays.fill( boundingBoxMin[ c ], Long.MAX_VALUE );
+			Arrays.fill( boundingBoxMax[ c ], Long.MIN_VALUE );
+		}
+
+		for ( int row = 0; row < ny * nz; ++row )
+		{
+			final long y = min[ 1 ] + row % ny;
+			final long z = min[ 2 ] + row / ny;
+
+			for ( int run = runRowStart[ row ]; run < runRowStart[ row + 1 ]; ++run )
+			{
+				final int c = runLabel[ run ] - 1;
+				final long xStart = min[ 0 ] + runStart[ run ];
+				final long xEnd = min[ 0 ] + runEnd[ run ];
+				final long length = xEnd - xStart + 1;
+
+				sizes[ c ] += length;
+
+				centroids[ c ][ 0 ] += ( xStart + xEnd ) * length / 2.0;
+				centroids[ c ][ 1 ] += y * length;
+				centroids[ c ][ 2 ] += z * length;
+
+				boundingBoxMin[ c ][ 0 ] = Math.min( boundingBoxMin[ c ][ 0 ], xStart );
+				boundingBoxMin[ c ][ 1 ] = Math.min( boundingBoxMin[ c ][ 1 ], y );
+				boundingBoxMin[ c ][ 2 ] = Math.min( boundingBoxMin[ c ][ 2 ], z );
+				boundingBoxMax[ c ][ 0 ] = Math.max( boundingBoxMax[ c ][ 0 ], xEnd );
+				boundingBoxMax[ c ][ 1 ] = Math.max( boundingBoxMax[ c ][ 1 ], y );
+				boundingBoxMax[ c ][ 2 ] = Math.max( boundingBoxMax[ c ][ 2 ], z );
+			}
+		}
+
+		for ( int c = 0; c < numComponents; ++c )
+			for ( int d = 0; d < 3; ++d )
+				centroids[ c ][ d ] /= sizes[ c ];
+	}
+
+	private static int find( int[] parent, int i )
+	{
+		while ( parent[ i ] != i )
+		{
+			parent[ i ] = parent[ parent[ i ] ]; // path halving
+			i = parent[ i ];
+		}
+		return i;
+	}
+
+	/**
+	 * The smaller run index becomes the root, such that
+	 * the root is always the first run of a component.
+	 */
+	private static void union( int[] parent, int i, int j )
+	{
+		final int rootI = find( parent, i );
+		final int rootJ = find( parent, j );
+
+		if ( rootI < rootJ ) parent[ rootJ ] = rootI;
+		else if ( rootJ < rootI ) parent[ rootI ] = rootJ;
+	}
+
+	private static RandomAccessibleInterval< BitType > as3D( RandomAccessibleInterval< BitType > mask )
+	{
+		if ( mask.numDimensions() == 3 ) return mask;
+		if ( mask.numDimensions() == 2 ) return Views.addDimension( mask, 0, 0 );
+		throw new IllegalArgumentException( "Only 2D and 3D masks are supported: " + mask.numDimensions() + "D" );
+	}
+
+	private static class IntList
+	{
+		int[] values = new int[ 16 ];
+		int size = 0;
+
+		void add( int value )
+		{
+			if ( size == values.length ) values = Arrays.copyOf( values, 2 * size );
+			values[ size++ ] = value;
+		}
+
+		int size()
+		{
+			return size;
+		}
+	}
+}
@@ -0,0 +1,470 @@
+/*-
+ * #%L
+ * Fiji plugin for automated 3d spindle morphometry
+ * %%
+ * Copyright (C) 2018 - 2021 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.embl.cba.flyreg;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.basictypeaccess.ByteAccess;
+import net.imglib2.img.basictypeaccess.FloatAccess;
+import net.imglib2.img.basictypeaccess.ShortAccess;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.img.cell.LazyCellImg;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Opens uncompressed, single time point TIFF stacks (e.g. saved by ImageJ)
+ * as memory mapped images, without copying the voxels onto the heap.
+ *
+ * Each z-plane of each channel is one cell, which is mapped with
+ * {@link FileChannel#map} when the file is opened. The voxels thus live
+ * in the page cache of the operating system, are shared between all
+ * processes reading the same file, and only the planes that are
+ * accessed are read from disk.
+ *
+ * Compressed, tiled, BigTIFF and multi time point files are not supported,
+ * nor are files whose spatial unit cannot be converted to micrometer;
+ * for those {@link #open} returns null, such that they can be
+ * opened otherwise, e.g. with Bio-Formats.
+ */
+public class MemoryMappedTiff
+{
+	private static final int IMAGE_WIDTH = 256;
+	private static final int IMAGE_LENGTH = 257;
+	private static final int BITS_PER_SAMPLE = 258;
+	private static final int COMPRESSION = 259;
+	private static final int IMAGE_DESCRIPTION = 270;
+	private static final int STRIP_OFFSETS = 273;
+	private static final int SAMPLES_PER_PIXEL = 277;
+	private static final int STRIP_BYTE_COUNTS = 279;
+	private static final int X_RESOLUTION = 282;
+	private static final int Y_RESOLUTION = 283;
+	private static final int RESOLUTION_UNIT = 296;
+	private static final int SAMPLE_FORMAT = 339;
+
+	private static final int SHORT = 3;
+	private static final int SAMPLE_FORMAT_FLOAT = 3;
+	private static final int RESOLUTION_UNIT_INCH = 2;
+	private static final int RESOLUTION_UNIT_CENTIMETER = 3;
+
+	/**
+	 * @param file
+	 * 				TIFF file
+	 * @return the memory mapped channel images and their calibration in micrometer;
+	 * 		   null, if the file is not an uncompressed TIFF stack
+	 */
+	public static < T extends RealType< T > & NativeType< T > > InputImages< T > open( File file ) throws IOException
+	{
+		try ( FileChannel channel = FileChannel.open( file.toPath(), StandardOpenOption.READ ) )
+		{
+			final ByteBuffer header = read( channel, 0, 8, ByteOrder.BIG_ENDIAN );
+
+			final ByteOrder byteOrder;
+			if ( header.get( 0 ) == 'I' && header.get( 1 ) == 'I' )
+				byteOrder = ByteOrder.LITTLE_ENDIAN;
+			else if ( header.get( 0 ) == 'M' && header.get( 1 ) == 'M' )
+				byteOrder = ByteOrder.BIG_ENDIAN;
+			else
+				return null;
+
+			header.order( byteOrder );
+			if ( header.getShort( 2 ) != 42 ) return null; // also excludes BigTIFF
+
+			final List< Map< Integer, long[] > > directories = readDirectories( channel, header.getInt( 4 ) & 0xFFFFFFFFL, byteOrder );
+			if ( directories.isEmpty() ) return null;
+
+			final Map< Integer, long[] > first = directories.get( 0 );
+			final int width = ( int ) getValue( first, IMAGE_WIDTH, 0 );
+			final int height = ( int ) getValue( first, IMAGE_LENGTH, 0 );
+			final int bitsPerSample = ( int ) getValue( first, BITS_PER_SAMPLE, 1 );
+			final boolean isFloat = getValue( first, SAMPLE_FORMAT, 1 ) == SAMPLE_FORMAT_FLOAT;
+
+			if ( ! isSupported( bitsPerSample, isFloat ) ) return null;
+
+			final String description = readDescription( channel, first );
+			final Map< String, String > imageJProperties = getImageJProperties( description );
+
+			final int numChannels = Integer.parseInt( imageJProperties.getOrDefault( "channels", "1" ) );
+			final int numFrames = Integer.parseInt( imageJProperties.getOrDefault( "frames", "1" ) );
+			final int numImages = Integer.parseInt( imageJProperties.getOrDefault( "images", "" + directories.size() ) );
+			if ( numFrames != 1 || numImages % numChannels != 0 ) return null;
+			final int numSlices = numImages / numChannels;
+
+			final long planeBytes = ( long ) width * height * bitsPerSample / 8;
+			final long[] planeOffsets = getPlaneOffsets( directories, numImages, width, height, bitsPerSample, isFloat, planeBytes );
+			if ( planeOffsets == null || planeOffsets[ numImages - 1 ] + planeBytes > channel.size() ) return null;
+
+			final double micrometersPerUnit = getMicrometersPerUnit( first, imageJProperties );
+			if ( Double.isNaN( micrometersPerUnit ) ) return null;
+
+			/**
+			 * Map the planes
+			 * - ImageJ stores the planes in XYCZ order
+			 * - the cells are in XYZC order, i.e. cell index = z + c * numSlices
+			 */
+
+			final Function< ByteBuffer, ? > accessFactory = getAccessFactory( bitsPerSample, isFloat );
+			final List< Cell< Object > > cells = new ArrayList<>();
+			final int[] cellDimensions = new int[]{ width, height, 1, 1 };
+
+			for ( int c = 0; c < numChannels; ++c )
+				for ( int z = 0; z < numSlices; ++z )
+				{
+					final ByteBuffer plane = channel.map( FileChannel.MapMode.READ_ONLY, planeOffsets[ z * numChannels + c ], planeBytes ).order( byteOrder );
+					cells.add( new Cell<>( cellDimensions, new long[]{ 0, 0, z, c }, accessFactory.apply( plane ) ) );
+				}
+
+			final CellGrid grid = new CellGrid( new long[]{ width, height, numSlices, numChannels }, cellDimensions );
+			final RandomAccessibleInterval< T > channelImages = new LazyCellImg<>( grid, MemoryMappedTiff.< T >createType( bitsPerSample, isFloat ), index -> cells.get( ( int ) index ) );
+
+			final double[] calibration = new double[]{
+					getPixelSize( channel, first, X_RESOLUTION, byteOrder ) * micrometersPerUnit,
+					getPixelSize( channel, first, Y_RESOLUTION, byteOrder ) * micrometersPerUnit,
+					Double.parseDouble( imageJProperties.getOrDefault( "spacing", "1.0" ) ) * micrometersPerUnit };
+
+			return new InputImages<>( channelImages, calibration, numImages * planeBytes );
+		}
+	}
+
+	private static boolean isSupported( int bitsPerSample, boolean isFloat )
+	{
+		return isFloat ? bitsPerSample == 32 : ( bitsPerSample == 8 || bitsPerSample == 16 );
+	}
+
+	/**
+	 * @return the file offsets of all planes; null, if a plane is compressed or not contiguous
+	 */
+	private static long[] getPlaneOffsets( List< Map< Integer, long[] > > directories, int numImages, int width, int height, int bitsPerSample, boolean isFloat, long planeBytes )
+	{
+		final long[] planeOffsets = new long[ numImages ];
+
+		for ( int i = 0; i < numImages; ++i )
+		{
+			if ( i >= directories.size() )
+			{
+				// ImageJ only writes the first directories of stacks larger than 4 GB,
+				// the planes are contiguous
+				planeOffsets[ i ] = planeOffsets[ i - 1 ] + planeBytes;
+				continue;
+			}
+
+			final Map< Integer, long[] > directory = directories.get( i );
+
+			if ( getValue( directory, COMPRESSION, 1 ) != 1
+					|| getValue( directory, SAMPLES_PER_PIXEL, 1 ) != 1
+					|| getValue( directory, IMAGE_WIDTH, 0 ) != width
+					|| getValue( directory, IMAGE_LENGTH, 0 ) != height
+					|| getValue( directory, BITS_PER_SAMPLE, 1 ) != bitsPerSample
+					|| ( getValue( directory, SAMPLE_FORMAT, 1 ) == SAMPLE_FORMAT_FLOAT ) != isFloat )
+				return null;
+
+			final long[] stripOffsets = directory.get( STRIP_OFFSETS );
+			final long[] stripByteCounts = directory.get( STRIP_BYTE_COUNTS );
+			if ( stripOffsets == null || stripByteCounts == null || stripOffsets.length != stripByteCounts.length ) return null;
+
+			long numBytes = 0;
+			for ( int s = 0; s < stripOffsets.length; ++s )
+			{
+				if ( stripOffsets[ s ] != stripOffsets[ 0 ] + numBytes ) return null;
+				numBytes += stripByteCounts[ s ];
+			}
+
+			if ( numBytes < planeBytes ) return null;
+
+			planeOffsets[ i ] = stripOffsets[ 0 ];
+		}
+
+		return planeOffsets;
+	}
+
+	/**
+	 * Reads all image file directories.
+	 * Values that do not fit into the entry are kept as offset and count,
+	 * except for the strip offsets and byte counts, which are always read.
+	 */
+	private static List< Map< Integer, long[] > > readDirectories( FileChannel channel, long offset, ByteOrder byteOrder ) throws IOException
+	{
+		final List< Map< Integer, long[] > > directories = new ArrayList<>();
+
+		while ( offset != 0 && offset < channel.size() )
+		{
+			final int numEntries = read( channel, offset, 2, byteOrder ).getShort( 0 ) & 0xFFFF;
+			final ByteBuffer entries = read( channel, offset + 2, numEntries * 12 + 4, byteOrder );
+
+			final Map< Integer, long[] > directory = new HashMap<>();
+			for ( int e = 0; e < numEntries; ++e )
+			{
+				final int tag = entries.getShort( e * 12 ) & 0xFFFF;
+				final int type = entries.getShort( e * 12 + 2 ) & 0xFFFF;
+				final int count = entries.getInt( e * 12 + 4 );
+				final int valueSize = type == SHORT ? 2 : 4; // or LONG
+
+				if ( tag == STRIP_OFFSETS || tag == STRIP_BYTE_COUNTS )
+				{
+					final ByteBuffer values = count * valueSize > 4
+							? read( channel, entries.getInt( e * 12 + 8 ) & 0xFFFFFFFFL, count * valueSize, byteOrder )
+							: ByteBuffer.wrap( entries.array(), e * 12 + 8, 4 ).slice().order( byteOrder );
+					final long[] array = new long[ count ];
+					for ( int i = 0; i < count; ++i )
+						array[ i ] = valueSize == 2 ? values.getShort( i * 2 ) & 0xFFFF : values.getInt( i * 4 ) & 0xFFFFFFFFL;
+					directory.put( tag, array );
+				}
+				else if ( type == SHORT && count == 1 )
+				{
+					directory.put( tag, new long[]{ entries.getShort( e * 12 + 8 ) & 0xFFFF } );
+				}
+				else
+				{
+					// LONG value, or offset of the values
+					directory.put( tag, new long[]{ entries.getInt( e * 12 + 8 ) & 0xFFFFFFFFL, count } );
+				}
+			}
+
+			directories.add( directory );
+			offset = entries.getInt( numEntries * 12 ) & 0xFFFFFFFFL;
+		}
+
+		return directories;
+	}
+
+	private static long getValue( Map< Integer, long[] > directory, int tag, long defaultValue )
+	{
+		final long[] values = directory.get( tag );
+		return values == null ? defaultValue : values[ 0 ];
+	}
+
+	private static String readDescription( FileChannel channel, Map< Integer, long[] > directory ) throws IOException
+	{
+		final long[] entry = directory.get( IMAGE_DESCRIPTION );
+		if ( entry == null || entry.length < 2 || entry[ 1 ] <= 4 ) return "";
+
+		final ByteBuffer bytes = read( channel, entry[ 0 ], ( int ) entry[ 1 ], ByteOrder.BIG_ENDIAN );
+		return new String( bytes.array(), StandardCharsets.ISO_8859_1 ).trim();
+	}
+
+	/**
+	 * @return the key=value lines of an ImageJ image description, e.g. channels, slices, spacing
+	 */
+	private static Map< String, String > getImageJProperties( String description )
+	{
+		final Map< String, String > properties = new HashMap<>();
+		if ( ! description.startsWith( "ImageJ" ) ) return properties;
+
+		for ( String line : description.split( "\n" ) )
+		{
+			final int separator = line.indexOf( '=' );
+			if ( separator > 0 )
+				properties.put( line.substring( 0, separator ).trim(), line.substring( separator + 1 ).trim() );
+		}
+
+		return properties;
+	}
+
+	/**
+	 * The unit of the pixel sizes is the ImageJ unit, if given,
+	 * otherwise the TIFF resolution unit (inch, if not given).
+	 *
+	 * @return micrometers per unit; NaN, if the unit is unknown
+	 */
+	private static double getMicrometersPerUnit( Map< Integer, long[] > directory, Map< String, String > imageJProperties )
+	{
+		final String unit = imageJProperties.get( "unit" );
+
+		if ( unit != null )
+		{
+			// e.g. z may have a different unit than x and y
+			for ( String otherUnit : new String[]{ "yunit", "zunit" } )
+				if ( imageJProperties.containsKey( otherUnit ) && ! imageJProperties.get( otherUnit ).equals( unit ) )
+					return Double.NaN;
+
+			return getMicrometersPerUnit( unit );
+		}
+
+		if ( ! directory.containsKey( X_RESOLUTION ) ) return Double.NaN;
+
+		switch ( ( int ) getValue( directory, RESOLUTION_UNIT, RESOLUTION_UNIT_INCH ) )
+		{
+			case RESOLUTION_UNIT_INCH: return 25400.0;
+			case RESOLUTION_UNIT_CENTIMETER: return 10000.0;
+			default: return Double.NaN;
+		}
+	}
+
+	/**
+	 * @param unit
+	 * 				spatial unit as written by ImageJ, which escapes the micro sign
+	 */
+	private static double getMicrometersPerUnit( String unit )
+	{
+		switch ( unit.replace( "\\u00B5", "\u00B5" ).replace( "\\u03BC", "\u00B5" ).replace( "\u03BC", "\u00B5" ) )
+		{
+			case "nm":
+			case "nanometer":
+				return 0.001;
+			case "um":
+			case "\u00B5m":
+			case "micron":
+			case "microns":
+			case "micrometer":
+				return 1.0;
+			case "mm":
+			case "millimeter":
+				return 1000.0;
+			case "cm":
+			case "centimeter":
+				return 10000.0;
+			case "inch":
+				return 25400.0;
+			default:
+				return Double.NaN;
+		}
+	}
+
+	private static double getPixelSize( FileChannel channel, Map< Integer, long[] > directory, int tag, ByteOrder byteOrder ) throws IOException
+	{
+		final long[] entry = directory.get( tag );
+		if ( entry == null ) return 1.0;
+
+		// RATIONAL, pixels per unit
+		final ByteBuffer rational = read( channel, entry[ 0 ], 8, byteOrder );
+		final double pixelsPerUnit = ( rational.getInt( 0 ) & 0xFFFFFFFFL ) / ( double ) ( rational.getInt( 4 ) & 0xFFFFFFFFL );
+
+		return pixelsPerUnit > 0 && ! Double.isInfinite( pixelsPerUnit ) ? 1.0 / pixelsPerUnit : 1.0;
+	}
+
+	private static ByteBuffer read( FileChannel channel, long position, int numBytes, ByteOrder byteOrder ) throws IOException
+	{
+		final ByteBuffer buffer = ByteBuffer.allocate( numBytes ).order( byteOrder );
+		while ( buffer.hasRemaining() )
+			if ( channel.read( buffer, position + buffer.position() ) < 0 )
+				throw new IOException( "Unexpected end of file" );
+		return buffer;
+	}
+
+	@SuppressWarnings( "unchecked" )
+	private static < T extends RealType< T > & NativeType< T > > T createType( int bitsPerSample, boolean isFloat )
+	{
+		if ( isFloat ) return ( T ) new FloatType();
+		if ( bitsPerSample == 8 ) return ( T ) new UnsignedByteType();
+		return ( T ) new UnsignedShortType();
+	}
+
+	private static Function< ByteBuffer, ? > getAccessFactory( int bitsPerSample, boolean isFloat )
+	{
+		if ( isFloat ) return MappedFloatAccess::new;
+		if ( bitsPerSample == 8 ) return MappedByteAccess::new;
+		return MappedShortAccess::new;
+	}
+
+	/**
+	 * Read-only accesses to memory mapped planes
+	 */
+
+	static class MappedByteAccess implements ByteAccess
+	{
+		private final ByteBuffer buffer;
+
+		MappedByteAccess( ByteBuffer buffer )
+		{
+			this.buffer = buffer;
+		}
+
+		@Override
+		public byte getValue( int index )
+		{
+			return buffer.get( index );
+		}
+
+		@Override
+		public void setValue( int index, byte value )
+		{
+			throw new UnsupportedOperationException( "Memory mapped input images are read-only" );
+		}
+	}
+
+	static class MappedShortAccess implements ShortAccess
+	{
+		private final ByteBuffer buffer;
+
+		MappedShortAccess( ByteBuffer buffer )
+		{
+			this.buffer = buffer;
+		}
+
+		@Override
+		public short getValue( int index )
+		{
+			return buffer.getShort( index << 1 );
+		}
+
+		@Override
+		public void setValue( int index, short value )
+		{
+			throw new UnsupportedOperationException( "Memory mapped input images are read-only" );
+		}
+	}
+
+	static class MappedFloatAccess implements FloatAccess
+	{
+		private final ByteBuffer buffer;
+
+		MappedFloatAccess( ByteBuffer buffer )
+		{
+			this.buffer = buffer;
+		}
+
+		@Override
+		public float getValue( int index )
+		{
+			return buffer.getFloat( index << 2 );
+		}
+
+		@Override
+		public void setValue( int index, float value )
+		{
+			throw new UnsupportedOperationException( "Memory mapped input images are read-only" );
+		}
+	}
+}
@@ -0,0 +1,309 @@
+/*-
+ * #%L
+ * Fiji plugin for automated 3d spindle morphometry
+ * %%
+ * Copyright (C) 2018 - 2021 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.embl.cba.flyreg;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.view.Views;
+import org.janelia.saalfeldlab.n5.ByteArrayDataBlock;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.FloatArrayDataBlock;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.ShortArrayDataBlock;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * Writes XYZC images as an N5 container on the local file system,
+ * with one gzip compressed 3D dataset per channel ("ch1", "ch2", ...).
+ *
+ * The blocks are compressed and written in parallel. Blocks that only
+ * contain zeros, e.g. outside of the embryo mask, are not written,
+ * which N5 readers interpret as zeros.
+ *
+ * The voxel size is stored as "pixelResolution" (N5 Viewer) and
+ * "resolution" (BigDataViewer) attributes of each dataset.
+ */
+public class N5ImagesWriter< T extends RealType< T > & NativeType< T > >
+{
+	private final String path;
+	private final double resolution;
+	private final int blockSize;
+
+	/**
+	 * @param path
+	 * 				path of the N5 container, typically ending with ".n5"
+	 * @param resolution
+	 * 				voxel size in micrometer, along all axes
+	 * @param blockSize
+	 * 				edge length of the (cubic) blocks in voxels
+	 */
+	public N5ImagesWriter( String path, double resolution, int blockSize )
+	{
+		this.path = path;
+		this.resolution = resolution;
+		this.blockSize = Math.max( 1, blockSize );
+	}
+
+	/**
+	 * @param images
+	 * 				XYZC images
+	 */
+	public void write( RandomAccessibleInterval< T > images )
+	{
+		final RandomAccessibleInterval< T > zeroMinImages = Views.zeroMin( images );
+		final T type = Views.iterable( images ).firstElement();
+
+		final N5FSWriter n5 = createN5Writer();
+		final DatasetAttributes attributes = createDatasets( n5, zeroMinImages, type );
+		writeBlocks( n5, attributes, zeroMinImages, 0 );
+	}
+
+	/**
+	 * Samples and writes the registered images slab by slab,
+	 * where the slab depth is the block size; only the current slab is kept in memory.
+	 *
+	 * @param sampler
+	 * 				computes the planes of the registered channels
+	 */
+	public void write( RegisteredPlaneSampler< T > sampler )
+	{
+		final Interval interval = sampler.getInterval();
+		final FinalInterval dimensions = new FinalInterval(
+				interval.dimension( 0 ),
+				interval.dimension( 1 ),
+				interval.dimension( 2 ),
+				sampler.getNumChannels() );
+
+		final N5FSWriter n5 = createN5Writer();
+		final DatasetAttributes attributes = createDatasets( n5, dimensions, sampler.getType() );
+
+		for ( long zMin = 0; zMin < interval.dimension( 2 ); zMin += blockSize )
+		{
+			final int depth = ( int ) Math.min( blockSize, interval.dimension( 2 ) - zMin );
+			writeBlocks( n5, attributes, sampleSlab( sampler, zMin, depth ), zMin / blockSize );
+		}
+	}
+
+	private RandomAccessibleInterval< T > sampleSlab( RegisteredPlaneSampler< T > sampler, long zMin, int depth )
+	{
+		final Interval interval = sampler.getInterval();
+
+		final Img< T > slab = new ArrayImgFactory<>( sampler.getType() ).create(
+				interval.dimension( 0 ),
+				interval.dimension( 1 ),
+				depth,
+				sampler.getNumChannels() );
+
+		IntStream.range( 0, depth ).parallel().forEach( z ->
+		{
+			final List< RandomAccessibleInterval< T > > planes = new ArrayList<>();
+			for ( int c = 0; c < sampler.getNumChannels(); ++c )
+				planes.add( Views.hyperSlice( Views.hyperSlice( slab, 3, c ), 2, z ) );
+
+			sampler.samplePlane( interval.min( 2 ) + zMin + z, planes );
+		} );
+
+		return slab;
+	}
+
+	private N5FSWriter createN5Writer()
+	{
+		try
+		{
+			return new N5FSWriter( path );
+		}
+		catch ( IOException e )
+		{
+			throw new RuntimeException( "Could not create N5 container: " + path, e );
+		}
+	}
+
+	/**
+	 * @return the attributes, which are the same for all channels
+	 */
+	private DatasetAttributes createDatasets( N5FSWriter n5, Interval images, T type )
+	{
+		final DatasetAttributes attributes = new DatasetAttributes(
+				new long[]{ images.dimension( 0 ), images.dimension( 1 ), images.dimension( 2 ) },
+				new int[]{ blockSize, blockSize, blockSize },
+				getDataType( type ),
+				new GzipCompression() );
+
+		final double[] resolutions = { resolution, resolution, resolution };
+
+		final Map< String, Object > pixelResolution = new LinkedHashMap<>();
+		pixelResolution.put( "unit", "micrometer" );
+		pixelResolution.put( "dimensions", resolutions );
+
+		try
+		{
+			for ( int c = 0; c < images.dimension( 3 ); ++c )
+			{
+				n5.createDataset( getDataset( c ), attributes );
+				n5.setAttribute( getDataset( c ), "pixelResolution", pixelResolution );
+				n5.setAttribute( getDataset( c ), "resolution", resolutions );
+			}
+		}
+		catch ( IOException e )
+		{
+			throw new RuntimeException( "Could not create N5 datasets: " + path, e );
+		}
+
+		return attributes;
+	}
+
+	/**
+	 * Writes all blocks of a slab of the images in parallel.
+	 *
+	 * @param slab
+	 * 				zero-min XYZC images, with a depth of at most one block
+	 * 				or covering the whole z extent
+	 * @param zBlockOffset
+	 * 				z grid position of the first block of the slab
+	 */
+	private void writeBlocks( N5FSWriter n5, DatasetAttributes attributes, RandomAccessibleInterval< T > slab, long zBlockOffset )
+	{
+		final long[] numBlocks = new long[ 3 ];
+		for ( int d = 0; d < 3; ++d )
+			numBlocks[ d ] = ( slab.dimension( d ) + blockSize - 1 ) / blockSize;
+
+		final long numBlocksPerChannel = numBlocks[ 0 ] * numBlocks[ 1 ] * numBlocks[ 2 ];
+
+		IntStream.range( 0, ( int ) ( numBlocksPerChannel * slab.dimension( 3 ) ) ).parallel().forEach( i ->
+		{
+			final int c = ( int ) ( i / numBlocksPerChannel );
+			final long blockIndex = i % numBlocksPerChannel;
+
+			final long[] gridPosition = new long[]{
+					blockIndex % numBlocks[ 0 ],
+					blockIndex / numBlocks[ 0 ] % numBlocks[ 1 ],
+					blockIndex / ( numBlocks[ 0 ] * numBlocks[ 1 ] ) };
+
+			final long[] min = new long[ 4 ];
+			final long[] max = new long[ 4 ];
+			for ( int d = 0; d < 3; ++d )
+			{
+				min[ d ] = gridPosition[ d ] * blockSize;
+				max[ d ] = Math.min( min[ d ] + blockSize, slab.dimension( d ) ) - 1;
+			}
+			min[ 3 ] = max[ 3 ] = c;
+
+			gridPosition[ 2 ] += zBlockOffset;
+
+			writeBlock( n5, getDataset( c ), attributes, Views.interval( slab, min, max ), gridPosition );
+		} );
+	}
+
+	private void writeBlock( N5FSWriter n5, String dataset, DatasetAttributes attributes, RandomAccessibleInterval< T > block, long[] gridPosition )
+	{
+		try
+		{
+			final DataBlock< ? > dataBlock = createDataBlock( block, gridPosition, attributes.getDataType() );
+
+			if ( dataBlock == null )
+			{
+				// only zeros; also removes blocks of previous runs
+				n5.deleteBlock( dataset, gridPosition );
+				return;
+			}
+
+			n5.writeBlock( dataset, attributes, dataBlock );
+		}
+		catch ( IOException e )
+		{
+			throw new RuntimeException( "Could not write N5 block: " + path + "/" + dataset, e );
+		}
+	}
+
+	/**
+	 * @return the block values in flat iteration order, or null if all values are zero
+	 */
+	private DataBlock< ? > createDataBlock( RandomAccessibleInterval< T > block, long[] gridPosition, DataType dataType )
+	{
+		final int[] size = new int[]{ ( int ) block.dimension( 0 ), ( int ) block.dimension( 1 ), ( int ) block.dimension( 2 ) };
+		final int numElements = size[ 0 ] * size[ 1 ] * size[ 2 ];
+
+		final byte[] bytes = dataType == DataType.UINT8 ? new byte[ numElements ] : null;
+		final short[] shorts = dataType == DataType.UINT16 ? new short[ numElements ] : null;
+		final float[] floats = dataType == DataType.FLOAT32 ? new float[ numElements ] : null;
+
+		boolean isZero = true;
+
+		final Cursor< T > cursor = Views.flatIterable( block ).cursor();
+		for ( int i = 0; i < numElements; ++i )
+		{
+			final T value = cursor.next();
+
+			if ( bytes != null )
+				bytes[ i ] = ( byte ) ( ( UnsignedByteType ) value ).get();
+			else if ( shorts != null )
+				shorts[ i ] = ( short ) ( ( UnsignedShortType ) value ).get();
+			else
+				floats[ i ] = value.getRealFloat();
+
+			isZero = isZero && value.getRealDouble() == 0;
+		}
+
+		if ( isZero ) return null;
+
+		if ( bytes != null ) return new ByteArrayDataBlock( size, gridPosition, bytes );
+		if ( shorts != null ) return new ShortArrayDataBlock( size, gridPosition, shorts );
+		return new FloatArrayDataBlock( size, gridPosition, floats );
+	}
+
+	private static String getDataset( int channel )
+	{
+		return "ch" + ( channel + 1 );
+	}
+
+	private static < T extends RealType< T > > DataType getDataType( T type )
+	{
+		// same types as the TIFF output; other types are saved as float
+		if ( type instanceof UnsignedByteType ) return DataType.UINT8;
+		if ( type instanceof UnsignedShortType ) return DataType.UINT16;
+		return DataType.FLOAT32;
+	}
+}
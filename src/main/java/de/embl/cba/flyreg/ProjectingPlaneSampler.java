@@ -0,0 +1,224 @@
+/*-
+ * #%L
+ * Fiji plugin for automated 3d spindle morphometry
+ * %%
+ * Copyright (C) 2018 - 2021 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.embl.cba.flyreg;
+
+import ij.ImagePlus;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.view.Views;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Computes z-projections of the registered images as a by-product of sampling them.
+ *
+ * Each plane that is sampled through this sampler is added to the maximum
+ * and mean projections of all ranges that contain it, thus the projections
+ * of all channels and ranges are computed in the same (parallel) pass
+ * that computes the registered images, e.g. for saving.
+ *
+ * The ranges are
+ * - top: z >= minDistanceToCenter
+ * - bottom: z <= -minDistanceToCenter
+ * - full: all z
+ */
+public class ProjectingPlaneSampler< T extends RealType< T > & NativeType< T > > implements RegisteredPlaneSampler< T >
+{
+	private static final String[] RANGE_NAMES = { "top-", "bottom-", "" };
+
+	private final RegisteredPlaneSampler< T > sampler;
+	private final long[] rangeMin;
+	private final long[] rangeMax;
+	private final int width;
+	private final int height;
+	private final int numChannels;
+
+	// [ channel ][ range ][ xy ]
+	private final double[][][] maximum;
+	private final double[][][] sum;
+	private final boolean[] isProjected;
+
+	/**
+	 * @param sampler
+	 * 				computes the planes of the registered channels
+	 * @param minDistanceToCenter
+	 * 				minimal z distance to the center of the top and bottom ranges, in voxels
+	 */
+	public ProjectingPlaneSampler( RegisteredPlaneSampler< T > sampler, long minDistanceToCenter )
+	{
+		this.sampler = sampler;
+
+		final Interval interval = sampler.getInterval();
+		this.width = ( int ) interval.dimension( 0 );
+		this.height = ( int ) interval.dimension( 1 );
+		this.numChannels = sampler.getNumChannels();
+
+		this.rangeMin = new long[]{ minDistanceToCenter, interval.min( 2 ), interval.min( 2 ) };
+		this.rangeMax = new long[]{ interval.max( 2 ), -minDistanceToCenter, interval.max( 2 ) };
+
+		this.maximum = new double[ numChannels ][ RANGE_NAMES.length ][ width * height ];
+		this.sum = new double[ numChannels ][ RANGE_NAMES.length ][ width * height ];
+		this.isProjected = new boolean[ ( int ) interval.dimension( 2 ) ];
+
+		for ( double[][] ranges : maximum )
+			for ( double[] values : ranges )
+				Arrays.fill( values, Double.NEGATIVE_INFINITY );
+	}
+
+	@Override
+	public Interval getInterval()
+	{
+		return sampler.getInterval();
+	}
+
+	@Override
+	public int getNumChannels()
+	{
+		return numChannels;
+	}
+
+	@Override
+	public T getType()
+	{
+		return sampler.getType();
+	}
+
+	@Override
+	public void samplePlane( long z, List< RandomAccessibleInterval< T > > channelPlanes )
+	{
+		sampler.samplePlane( z, channelPlanes );
+
+		synchronized ( isProjected )
+		{
+			// planes that are sampled again, e.g. by a virtual stack, are only projected once
+			final int zIndex = ( int ) ( z - getInterval().min( 2 ) );
+			if ( isProjected[ zIndex ] ) return;
+			isProjected[ zIndex ] = true;
+		}
+
+		for ( int c = 0; c < numChannels; ++c )
+			project( z, c, channelPlanes.get( c ) );
+	}
+
+	private void project( long z, int c, RandomAccessibleInterval< T > plane )
+	{
+		final float[] values = new float[ width * height ];
+		int i = 0;
+		for ( T value : Views.flatIterable( plane ) )
+			values[ i++ ] = value.getRealFloat();
+
+		// planes are sampled in parallel; summing doubles of the (float) voxel values
+		// does not depend on the order of the planes
+		synchronized ( maximum[ c ] )
+		{
+			for ( int r = 0; r < RANGE_NAMES.length; ++r )
+			{
+				if ( z < rangeMin[ r ] || z > rangeMax[ r ] ) continue;
+
+				final double[] rangeMaximum = maximum[ c ][ r ];
+				final double[] rangeSum = sum[ c ][ r ];
+				for ( int xy = 0; xy < values.length; ++xy )
+				{
+					if ( values[ xy ] > rangeMaximum[ xy ] ) rangeMaximum[ xy ] = values[ xy ];
+					rangeSum[ xy ] += values[ xy ];
+				}
+			}
+		}
+	}
+
+	/**
+	 * Samples all planes (multi-threaded) only for computing the projections,
+	 * i.e. without keeping the registered images.
+	 */
+	public void projectAllPlanes()
+	{
+		final Interval interval = getInterval();
+
+		IntStream.range( 0, ( int ) interval.dimension( 2 ) ).parallel().forEach( z ->
+		{
+			final ArrayImgFactory< T > factory = new ArrayImgFactory<>( getType() );
+			final List< RandomAccessibleInterval< T > > planes = new ArrayList<>();
+			for ( int c = 0; c < numChannels; ++c )
+				planes.add( factory.create( width, height ) );
+
+			samplePlane( interval.min( 2 ) + z, planes );
+		} );
+	}
+
+	/**
+	 * All planes must have been sampled before, e.g. by saving the registered images.
+	 *
+	 * @return maximum projections, in the type of the registered images,
+	 * 		   and mean projections (32-bit) of all channels and ranges,
+	 * 		   titled e.g. "top-projection-ch1" and "top-mean-projection-ch1"
+	 */
+	public ArrayList< ImagePlus > getProjections()
+	{
+		final ArrayList< ImagePlus > projections = new ArrayList<>();
+
+		for ( int c = 0; c < numChannels; ++c )
+			for ( int r = 0; r < RANGE_NAMES.length; ++r )
+			{
+				final long numPlanes = Math.max( 0, Math.min( rangeMax[ r ], getInterval().max( 2 ) ) - Math.max( rangeMin[ r ], getInterval().min( 2 ) ) + 1 );
+
+				final ImageProcessor maximumProcessor = createProcessor();
+				final FloatProcessor meanProcessor = new FloatProcessor( width, height );
+				for ( int xy = 0; xy < width * height; ++xy )
+				{
+					maximumProcessor.setf( xy, numPlanes > 0 ? ( float ) maximum[ c ][ r ][ xy ] : 0 );
+					meanProcessor.setf( xy, numPlanes > 0 ? ( float ) ( sum[ c ][ r ][ xy ] / numPlanes ) : 0 );
+				}
+
+				projections.add( new ImagePlus( RANGE_NAMES[ r ] + "projection-ch" + ( c + 1 ), maximumProcessor ) );
+				projections.add( new ImagePlus( RANGE_NAMES[ r ] + "mean-projection-ch" + ( c + 1 ), meanProcessor ) );
+			}
+
+		return projections;
+	}
+
+	private ImageProcessor createProcessor()
+	{
+		// same bit depths as ImageJFunctions.wrap
+		if ( getType() instanceof UnsignedByteType ) return new ByteProcessor( width, height );
+		if ( getType() instanceof UnsignedShortType ) return new ShortProcessor( width, height );
+		return new FloatProcessor( width, height );
+	}
+}
@@ -0,0 +1,138 @@
+/*-
+ * #%L
+ * Fiji plugin for automated 3d spindle morphometry
+ * %%
+ * Copyright (C) 2018 - 2021 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.embl.cba.flyreg;
+
+import ij.ImagePlus;
+import ij.measure.Calibration;
+import loci.formats.ImageReader;
+import loci.formats.MetadataTools;
+import loci.formats.meta.IMetadata;
+import loci.plugins.BF;
+import loci.plugins.in.ImporterOptions;
+import ome.units.UNITS;
+import ome.units.quantity.Length;
+
+/**
+ * Opens images at a reduced resolution, if the file contains a resolution pyramid (e.g. .czi).
+ */
+public class PyramidLevelOpener
+{
+	/**
+	 * Opens the pyramid level of the first series whose lateral voxel size
+	 * is closest to, but not larger than, the requested resolution.
+	 *
+	 * @param path
+	 * 				image file
+	 * @param resolution
+	 * 				requested voxel size in micrometer
+	 * @return image at the selected pyramid level, calibrated accordingly;
+	 * 		   null, if the file does not contain a suitable pyramid level
+	 */
+	public static ImagePlus openClosestLevel( String path, double resolution )
+	{
+		try ( ImageReader reader = new ImageReader() )
+		{
+			final IMetadata metadata = MetadataTools.createOMEXMLMetadata();
+			reader.setMetadataStore( metadata );
+			reader.setFlattenedResolutions( false );
+			reader.setId( path );
+
+			final int numLevels = reader.getResolutionCount();
+			if ( numLevels < 2 ) return null;
+
+			final double[] calibration = getFullResolutionCalibration( metadata );
+			if ( calibration == null ) return null;
+
+			final long[] fullResolutionSize = getSize( reader );
+
+			int level = 0;
+			double[] levelCalibration = calibration;
+			for ( int r = 1; r < numLevels; ++r )
+			{
+				reader.setResolution( r );
+				final long[] size = getSize( reader );
+
+				final double[] scaledCalibration = new double[ 3 ];
+				for ( int d = 0; d < 3; ++d )
+					scaledCalibration[ d ] = calibration[ d ] * fullResolutionSize[ d ] / size[ d ];
+
+				if ( scaledCalibration[ 0 ] > resolution ) break;
+
+				level = r;
+				levelCalibration = scaledCalibration;
+			}
+
+			if ( level == 0 ) return null;
+
+			RegistrationLogger.log( "Opening pyramid level " + level + " with voxel size [um]: "
+					+ levelCalibration[ 0 ] + ", " + levelCalibration[ 1 ] + ", " + levelCalibration[ 2 ] );
+
+			// in the importer, the resolution levels are flattened into series
+			final ImporterOptions options = new ImporterOptions();
+			options.setId( path );
+			options.clearSeries();
+			options.setSeriesOn( level, true );
+			final ImagePlus imagePlus = BF.openImagePlus( options )[ 0 ];
+
+			final Calibration imageCalibration = imagePlus.getCalibration();
+			imageCalibration.pixelWidth = levelCalibration[ 0 ];
+			imageCalibration.pixelHeight = levelCalibration[ 1 ];
+			imageCalibration.pixelDepth = levelCalibration[ 2 ];
+
+			return imagePlus;
+		}
+		catch ( Exception e )
+		{
+			RegistrationLogger.log( "Could not open pyramid level of " + path + ": " + e.getMessage() );
+			return null;
+		}
+	}
+
+	private static long[] getSize( ImageReader reader )
+	{
+		return new long[]{ reader.getSizeX(), reader.getSizeY(), reader.getSizeZ() };
+	}
+
+	private static double[] getFullResolutionCalibration( IMetadata metadata )
+	{
+		final Length[] lengths = new Length[]{
+				metadata.getPixelsPhysicalSizeX( 0 ),
+				metadata.getPixelsPhysicalSizeY( 0 ),
+				metadata.getPixelsPhysicalSizeZ( 0 ) };
+
+		final double[] calibration = new double[ 3 ];
+		for ( int d = 0; d < 3; ++d )
+		{
+			if ( lengths[ d ] == null ) return null;
+			calibration[ d ] = lengths[ d ].value( UNITS.MICROMETER ).doubleValue();
+		}
+
+		return calibration;
+	}
+}
@@ -0,0 +1,179 @@
+/*-
+ * #%L
+ * Fiji plugin for automated 3d spindle morphometry
+ * %%
+ * Copyright (C) 2018 - 2021 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.embl.cba.flyreg;
+
+import ij.VirtualStack;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.view.Views;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * ImageJ stack, in XYCZ order, of the registered channels.
+ *
+ * Planes are only computed when they are requested, e.g. by the
+ * {@link ij.io.FileSaver}, which writes virtual stacks plane by plane.
+ * To use multiple threads, slabDepth z-planes of all channels are computed
+ * at once; only the current slab is kept in memory.
+ */
+public class RegisteredImagesVirtualStack< T extends RealType< T > & NativeType< T > > extends VirtualStack
+{
+	private final RegisteredPlaneSampler< T > sampler;
+	private final int numChannels;
+	private final int numSlices;
+	private final int slabDepth;
+	private final int bitDepth;
+
+	private int slabIndex = -1;
+	private ImageProcessor[][] slab;
+
+	/**
+	 * @param sampler
+	 * 				computes the planes of the registered channels
+	 * @param slabDepth
+	 * 				number of z-planes that are computed at once
+	 */
+	public RegisteredImagesVirtualStack( RegisteredPlaneSampler< T > sampler, int slabDepth )
+	{
+		super( ( int ) sampler.getInterval().dimension( 0 ), ( int ) sampler.getInterval().dimension( 1 ), null, null );
+
+		this.sampler = sampler;
+		this.numChannels = sampler.getNumChannels();
+		this.numSlices = ( int ) sampler.getInterval().dimension( 2 );
+		this.slabDepth = Math.max( 1, slabDepth );
+		this.bitDepth = bitDepthOf( sampler.getType() );
+
+		setBitDepth( bitDepth );
+	}
+
+	public int getNumChannels()
+	{
+		return numChannels;
+	}
+
+	public int getNumSlices()
+	{
+		return numSlices;
+	}
+
+	@Override
+	public int getSize()
+	{
+		return numChannels * numSlices;
+	}
+
+	@Override
+	public String getSliceLabel( int n )
+	{
+		return null;
+	}
+
+	@Override
+	public synchronized ImageProcessor getProcessor( int n )
+	{
+		final int c = ( n - 1 ) % numChannels;
+		final int z = ( n - 1 ) / numChannels;
+
+		if ( z / slabDepth != slabIndex )
+			computeSlab( z / slabDepth );
+
+		return slab[ z - slabIndex * slabDepth ][ c ];
+	}
+
+	private void computeSlab( int slabIndex )
+	{
+		final int zMin = slabIndex * slabDepth;
+		final int depth = Math.min( slabDepth, numSlices - zMin );
+
+		// drop the previous slab before allocating the next one
+		slab = null;
+
+		final ImageProcessor[][] planes = new ImageProcessor[ depth ][];
+
+		IntStream.range( 0, depth ).parallel().forEach( i ->
+				planes[ i ] = createPlanes( zMin + i ) );
+
+		this.slab = planes;
+		this.slabIndex = slabIndex;
+	}
+
+	private ImageProcessor[] createPlanes( int z )
+	{
+		final int width = getWidth();
+		final int height = getHeight();
+
+		final List< RandomAccessibleInterval< T > > channelPlanes = new ArrayList<>();
+		final ArrayImgFactory< T > factory = new ArrayImgFactory<>( sampler.getType() );
+		for ( int c = 0; c < numChannels; ++c )
+			channelPlanes.add( factory.create( width, height ) );
+
+		sampler.samplePlane( sampler.getInterval().min( 2 ) + z, channelPlanes );
+
+		final ImageProcessor[] processors = new ImageProcessor[ numChannels ];
+		for ( int c = 0; c < numChannels; ++c )
+		{
+			processors[ c ] = createProcessor( width, height );
+
+			int i = 0;
+			for ( T value : Views.flatIterable( channelPlanes.get( c ) ) )
+				processors[ c ].setf( i++, value.getRealFloat() );
+		}
+
+		return processors;
+	}
+
+	private ImageProcessor createProcessor( int width, int height )
+	{
+		switch ( bitDepth )
+		{
+			case 8: return new ByteProcessor( width, height );
+			case 16: return new ShortProcessor( width, height );
+			default: return new FloatProcessor( width, height );
+		}
+	}
+
+	private static < T extends RealType< T > > int bitDepthOf( T type )
+	{
+		// same bit depths as ImageJFunctions.wrap
+		if ( type instanceof UnsignedByteType ) return 8;
+		if ( type instanceof UnsignedShortType ) return 16;
+		return 32;
+	}
+}
@@ -0,0 +1,149 @@
+/*-
+ * #%L
+ * Fiji plugin for automated 3d spindle morphometry
+ * %%
+ * Copyright (C) 2018 - 2021 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.embl.cba.flyreg;
+
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Computes the registered images z-plane by z-plane.
+ */
+public interface RegisteredPlaneSampler< T extends RealType< T > & NativeType< T > >
+{
+	/**
+	 * @return XYZ interval of the registered images
+	 */
+	Interval getInterval();
+
+	int getNumChannels();
+
+	T getType();
+
+	/**
+	 * Writes one z-plane of all channels.
+	 * Voxels outside of the embryo mask are not written,
+	 * thus the planes must be initialised with zeros.
+	 *
+	 * @param z
+	 * 				z coordinate within {@link #getInterval()}
+	 * @param channelPlanes
+	 * 				zero-min XY planes, one per channel
+	 */
+	void samplePlane( long z, List< RandomAccessibleInterval< T > > channelPlanes );
+
+	/**
+	 * Samples all planes (multi-threaded) into one array image.
+	 *
+	 * @return XYZC registered images
+	 */
+	default RandomAccessibleInterval< T > sampleAllPlanes()
+	{
+		final Interval interval = getInterval();
+
+		final Img< T > images = new ArrayImgFactory<>( getType() ).create(
+				interval.dimension( 0 ),
+				interval.dimension( 1 ),
+				interval.dimension( 2 ),
+				getNumChannels() );
+
+		IntStream.range( 0, ( int ) interval.dimension( 2 ) ).parallel().forEach( z ->
+		{
+			final List< RandomAccessibleInterval< T > > planes = new ArrayList<>();
+			for ( int c = 0; c < getNumChannels(); ++c )
+				planes.add( Views.hyperSlice( Views.hyperSlice( images, 3, c ), 2, z ) );
+
+			samplePlane( interval.min( 2 ) + z, planes );
+		} );
+
+		return Views.translate( images, interval.min( 0 ), interval.min( 1 ), interval.min( 2 ), 0 );
+	}
+
+	/**
+	 * Creates a sampler that copies the planes of already registered images,
+	 * e.g. to save them plane by plane without reordering all voxels.
+	 *
+	 * @param images
+	 * 				XYZC registered images
+	 * @return sampler of the given images
+	 */
+	static < T extends RealType< T > & NativeType< T > > RegisteredPlaneSampler< T > of( RandomAccessibleInterval< T > images )
+	{
+		final Interval interval = Intervals.createMinMax(
+				images.min( 0 ), images.min( 1 ), images.min( 2 ),
+				images.max( 0 ), images.max( 1 ), images.max( 2 ) );
+
+		return new RegisteredPlaneSampler< T >()
+		{
+			@Override
+			public Interval getInterval()
+			{
+				return interval;
+			}
+
+			@Override
+			public int getNumChannels()
+			{
+				return ( int ) images.dimension( 3 );
+			}
+
+			@Override
+			public T getType()
+			{
+				return Util.getTypeFromInterval( images ).createVariable();
+			}
+
+			@Override
+			public void samplePlane( long z, List< RandomAccessibleInterval< T > > channelPlanes )
+			{
+				for ( int c = 0; c < channelPlanes.size(); ++c )
+				{
+					final RandomAccessibleInterval< T > plane =
+							Views.hyperSlice( Views.hyperSlice( images, 3, images.min( 3 ) + c ), 2, z );
+
+					final Cursor< T > source = Views.flatIterable( plane ).cursor();
+					final Cursor< T > target = Views.flatIterable( channelPlanes.get( c ) ).cursor();
+					while ( source.hasNext() )
+						target.next().set( source.next() );
+				}
+			}
+		};
+	}
+}
@@ -0,0 +1,164 @@
+/*-
+ * #%L
+ * Fiji plugin for automated 3d spindle morphometry
+ * %%
+ * Copyright (C) 2018 - 2021 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.embl.cba.flyreg;
+
+import de.embl.cba.morphometry.Logger;
+import ij.IJ;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.function.IntFunction;
+
+/**
+ * Log messages of the registration pipeline.
+ *
+ * Messages are shown in the ImageJ log and written into the current log file.
+ * When several files are registered concurrently, each worker thread
+ * writes into its own log file, such that the per-file logs
+ * do not get mixed up. Otherwise, all threads share one log file.
+ *
+ * Without a log file, messages are forwarded to the (global) {@link Logger}.
+ * All messages of this plugin should be logged here and not via the {@link Logger},
+ * such that the per-file logs do not depend on the number of worker threads.
+ */
+public class RegistrationLogger
+{
+	private static volatile boolean logFilePerThread = false;
+
+	private static final ThreadLocal< PrintWriter > threadLogFile = new ThreadLocal<>();
+
+	private static volatile PrintWriter sharedLogFile;
+
+	public static void setLogFilePerThread( boolean logFilePerThread )
+	{
+		RegistrationLogger.logFilePerThread = logFilePerThread;
+	}
+
+	public static void setNewLogFilePath( String logFilePath )
+	{
+		setNewLogFilePath( logFilePath, false );
+	}
+
+	/**
+	 * @param append
+	 * 				whether to append to an existing log file, e.g. when the
+	 * 				processing of one file continues in another thread
+	 */
+	public static synchronized void setNewLogFilePath( String logFilePath, boolean append )
+	{
+		closeLogFile();
+
+		final PrintWriter writer = createWriter( logFilePath, append );
+
+		if ( logFilePerThread )
+			threadLogFile.set( writer );
+		else
+			sharedLogFile = writer;
+	}
+
+	private static PrintWriter createWriter( String logFilePath, boolean append )
+	{
+		try
+		{
+			return new PrintWriter( new FileWriter( logFilePath, append ) );
+		}
+		catch ( IOException e )
+		{
+			IJ.log( "Could not create log file: " + logFilePath );
+			return null;
+		}
+	}
+
+	/**
+	 * Closes the log file of this thread, or the shared log file.
+	 */
+	public static synchronized void closeLogFile()
+	{
+		if ( logFilePerThread )
+		{
+			closeThreadLogFile();
+			return;
+		}
+
+		if ( sharedLogFile == null ) return;
+
+		sharedLogFile.close();
+		sharedLogFile = null;
+	}
+
+	public static void closeThreadLogFile()
+	{
+		final PrintWriter writer = threadLogFile.get();
+
+		if ( writer == null ) return;
+
+		writer.close();
+		threadLogFile.remove();
+	}
+
+	/**
+	 * @return function that, in whichever thread it is applied, logs into the log file
+	 * 		   of the calling thread, e.g. for parallel streams within the processing of one file
+	 */
+	public static < R > IntFunction< R > withCurrentLogFile( IntFunction< R > function )
+	{
+		final PrintWriter writer = threadLogFile.get();
+
+		return value ->
+		{
+			final PrintWriter previous = threadLogFile.get();
+			threadLogFile.set( writer );
+
+			try
+			{
+				return function.apply( value );
+			}
+			finally
+			{
+				threadLogFile.set( previous );
+			}
+		};
+	}
+
+	public static void log( String message )
+	{
+		final PrintWriter writer = logFilePerThread ? threadLogFile.get() : sharedLogFile;
+
+		if ( writer == null )
+		{
+			Logger.log( message );
+			return;
+		}
+
+		writer.println( message );
+		writer.flush();
+		IJ.log( message );
+	}
+}
@@ -0,0 +1,248 @@
+/*-
+ * #%L
+ * Fiji plugin for automated 3d spindle morphometry
+ * %%
+ * Copyright (C) 2018 - 2021 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.embl.cba.flyreg;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * Per file metrics of the registration pipeline.
+ *
+ * - Stages are measured by wrapping them, e.g. metrics.measure( "watershed", () -> ... )
+ * - Wall time, cpu time and allocated bytes are measured for the calling thread;
+ *   work done by other threads (e.g. parallel streams) only shows up in the wall time
+ * - The peak heap usage is sampled at the end of each stage
+ */
+public class RegistrationMetrics
+{
+	private static final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+	private final String name;
+	private final Map< String, Object > values = new LinkedHashMap<>();
+	private long peakHeapUsedBytes;
+
+	private final RegistrationMetrics parent;
+	private final String prefix;
+
+	public RegistrationMetrics( String name )
+	{
+		this( name, null, "" );
+	}
+
+	private RegistrationMetrics( String name, RegistrationMetrics parent, String prefix )
+	{
+		this.name = name;
+		this.parent = parent;
+		this.prefix = prefix;
+	}
+
+	/**
+	 * @return metrics that record into these metrics, with keys prefixed by "prefix.",
+	 * 		   e.g. for one of several embryos within a file
+	 */
+	public RegistrationMetrics createChild( String prefix )
+	{
+		return new RegistrationMetrics( name, this, prefix + "." );
+	}
+
+	public String getName()
+	{
+		return name;
+	}
+
+	public void measure( String stage, Runnable runnable )
+	{
+		measureResult( stage, () -> { runnable.run(); return null; } );
+	}
+
+	public < R > R measureResult( String stage, Supplier< R > supplier )
+	{
+		final long wallStart = System.nanoTime();
+		final long cpuStart = getCurrentThreadCpuTime();
+		final long allocatedStart = getCurrentThreadAllocatedBytes();
+
+		try
+		{
+			return supplier.get();
+		}
+		finally
+		{
+			add( stage + ".wallMillis", ( System.nanoTime() - wallStart ) / 1000000 );
+			add( stage + ".cpuMillis", ( getCurrentThreadCpuTime() - cpuStart ) / 1000000 );
+			add( stage + ".allocatedBytes", getCurrentThreadAllocatedBytes() - allocatedStart );
+			updatePeakHeapUsage();
+		}
+	}
+
+	public synchronized void put( String key, Object value )
+	{
+		if ( parent != null )
+		{
+			parent.put( prefix + key, value );
+			return;
+		}
+
+		values.put( key, value );
+	}
+
+	/**
+	 * @return all metrics, in the order in which they were first recorded
+	 */
+	public synchronized Map< String, Object > getValues()
+	{
+		final LinkedHashMap< String, Object > all = new LinkedHashMap<>();
+		all.put( "file", name );
+		all.putAll( values );
+		all.put( "peakHeapUsedBytes", peakHeapUsedBytes );
+		return all;
+	}
+
+	public void writeJson( String path )
+	{
+		try ( PrintWriter writer = new PrintWriter( new FileWriter( path ) ) )
+		{
+			writer.println( "{" );
+			final List< Map.Entry< String, Object > > entries = new ArrayList<>( getValues().entrySet() );
+			for ( int i = 0; i < entries.size(); ++i )
+			{
+				writer.print( "  " + quote( entries.get( i ).getKey() ) + ": " + asJsonValue( entries.get( i ).getValue() ) );
+				writer.println( i < entries.size() - 1 ? "," : "" );
+			}
+			writer.println( "}" );
+		}
+		catch ( IOException e )
+		{
+			RegistrationLogger.log( "Could not write metrics: " + path + ": " + e.getMessage() );
+		}
+	}
+
+	/**
+	 * Writes one row per file; the columns are the union of all recorded metrics.
+	 */
+	public static void writeCsv( List< RegistrationMetrics > metricsList, String path )
+	{
+		final List< Map< String, Object > > rows = new ArrayList<>();
+		final Set< String > columns = new LinkedHashSet<>();
+		for ( RegistrationMetrics metrics : metricsList )
+		{
+			final Map< String, Object > row = metrics.getValues();
+			rows.add( row );
+			columns.addAll( row.keySet() );
+		}
+
+		try ( PrintWriter writer = new PrintWriter( new FileWriter( path ) ) )
+		{
+			writer.println( String.join( ",", columns ) );
+			for ( Map< String, Object > row : rows )
+			{
+				final List< String > cells = new ArrayList<>();
+				for ( String column : columns )
+				{
+					final Object value = row.get( column );
+					cells.add( asCsvValue( value ) );
+				}
+				writer.println( String.join( ",", cells ) );
+			}
+		}
+		catch ( IOException e )
+		{
+			RegistrationLogger.log( "Could not write metrics: " + path + ": " + e.getMessage() );
+		}
+	}
+
+	private synchronized void add( String key, long value )
+	{
+		if ( parent != null )
+		{
+			parent.add( prefix + key, value );
+			return;
+		}
+
+		final Object previous = values.get( key );
+		values.put( key, previous == null ? value : ( Long ) previous + value );
+	}
+
+	private synchronized void updatePeakHeapUsage()
+	{
+		if ( parent != null )
+		{
+			parent.updatePeakHeapUsage();
+			return;
+		}
+
+		final Runtime runtime = Runtime.getRuntime();
+		peakHeapUsedBytes = Math.max( peakHeapUsedBytes, runtime.totalMemory() - runtime.freeMemory() );
+	}
+
+	private static long getCurrentThreadCpuTime()
+	{
+		if ( ! threadMXBean.isCurrentThreadCpuTimeSupported() ) return 0;
+		return threadMXBean.getCurrentThreadCpuTime();
+	}
+
+	private static long getCurrentThreadAllocatedBytes()
+	{
+		if ( ! ( threadMXBean instanceof com.sun.management.ThreadMXBean ) ) return 0;
+		return ( ( com.sun.management.ThreadMXBean ) threadMXBean ).getThreadAllocatedBytes( Thread.currentThread().getId() );
+	}
+
+	private static String asJsonValue( Object value )
+	{
+		if ( value == null ) return "null";
+
+		// JSON has no NaN or Infinity
+		if ( value instanceof Double || value instanceof Float )
+			if ( ! Double.isFinite( ( ( Number ) value ).doubleValue() ) ) return "null";
+
+		if ( value instanceof Number || value instanceof Boolean ) return value.toString();
+		return quote( String.valueOf( value ) );
+	}
+
+	private static String asCsvValue( Object value )
+	{
+		if ( value == null ) return "";
+		if ( value instanceof Number || value instanceof Boolean ) return value.toString();
+		return "\"" + value.toString().replace( "\"", "\"\"" ) + "\"";
+	}
+
+	private static String quote( String string )
+	{
+		return "\"" + string.replace( "\\", "\\\\" ).replace( "\"", "\\\"" ) + "\"";
+	}
+}
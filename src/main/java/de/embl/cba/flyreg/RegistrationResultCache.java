@@ -0,0 +1,290 @@
+/*-
+ * #%L
+ * Fiji plugin for automated 3d spindle morphometry
+ * %%
+ * Copyright (C) 2018 - 2021 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.embl.cba.flyreg;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Persists {@link RegistrationResult}s, such that the registration does not
+ * need to be recomputed if e.g. only the output resolution changes.
+ *
+ * The results are stored in one file per key, where the key is a hash
+ * of the size, modification time, first and last megabyte of the input file
+ * and of all settings that influence the registration; hashing the
+ * whole input would take about as long as reading it.
+ */
+public class RegistrationResultCache
+{
+	// increase whenever the registration algorithm changes its results
+	public static final int VERSION = 2;
+
+	private static final String MAGIC = "FlyRegRegistrationResult";
+
+	private static final int HASHED_BYTES = 1024 * 1024;
+
+	private final File directory;
+
+	public RegistrationResultCache( File directory )
+	{
+		this.directory = directory;
+	}
+
+	public String getKey( File inputFile, FlyEmbryoRegistrationSettings settings )
+	{
+		try
+		{
+			final MessageDigest digest = MessageDigest.getInstance( "SHA-256" );
+
+			final long size = inputFile.length();
+			digest.update( ( "size=" + size + ";lastModified=" + inputFile.lastModified() + ";" ).getBytes( StandardCharsets.UTF_8 ) );
+
+			final byte[] buffer = new byte[ HASHED_BYTES ];
+			try ( RandomAccessFile input = new RandomAccessFile( inputFile, "r" ) )
+			{
+				final int numHeadBytes = ( int ) Math.min( size, HASHED_BYTES );
+				input.readFully( buffer, 0, numHeadBytes );
+				digest.update( buffer, 0, numHeadBytes );
+
+				final int numTailBytes = ( int ) Math.min( size - numHeadBytes, HASHED_BYTES );
+				input.seek( size - numTailBytes );
+				input.readFully( buffer, 0, numTailBytes );
+				digest.update( buffer, 0, numTailBytes );
+			}
+
+			digest.update( getSettingsDescription( settings ).getBytes( StandardCharsets.UTF_8 ) );
+
+			final StringBuilder key = new StringBuilder();
+			for ( byte b : digest.digest() )
+				key.append( String.format( "%02x", b ) );
+
+			return key.toString();
+		}
+		catch ( IOException | NoSuchAlgorithmException e )
+		{
+			RegistrationLogger.log( "Could not compute registration cache key: " + e.getMessage() );
+			return null;
+		}
+	}
+
+	/**
+	 * @return the cached result, or null if there is none
+	 */
+	public RegistrationResult load( String key )
+	{
+		final File file = getFile( key );
+
+		if ( key == null || ! file.exists() ) return null;
+
+		try ( DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) ) )
+		{
+			if ( ! in.readUTF().equals( MAGIC ) ) return null;
+			if ( ! in.readUTF().equals( key ) ) return null;
+
+			final RegistrationResult result = new RegistrationResult();
+
+			result.transformAtRegistrationResolution = new AffineTransform3D();
+			result.transformAtRegistrationResolution.set( readDoubles( in ) );
+			result.inputCalibration = readDoubles( in );
+			result.correctedCalibration = readDoubles( in );
+			result.coverslipPosition = in.readDouble();
+			result.ellipsoidCenter = readDoubles( in );
+			result.ellipsoidEulerAnglesInDegrees = readDoubles( in );
+			result.embryoMask = readMask( in );
+
+			return result;
+		}
+		catch ( IOException e )
+		{
+			RegistrationLogger.log( "Could not read registration cache: " + file + ": " + e.getMessage() );
+			return null;
+		}
+	}
+
+	public void save( String key, RegistrationResult result )
+	{
+		if ( key == null ) return;
+
+		directory.mkdirs();
+
+		final File file = getFile( key );
+
+		try
+		{
+			// write to a temporary file first, such that concurrent readers never see partial results
+			final File tmpFile = File.createTempFile( key, ".tmp", directory );
+
+			try ( DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( tmpFile ) ) ) )
+			{
+				out.writeUTF( MAGIC );
+				out.writeUTF( key );
+				writeDoubles( out, result.transformAtRegistrationResolution.getRowPackedCopy() );
+				writeDoubles( out, result.inputCalibration );
+				writeDoubles( out, result.correctedCalibration );
+				out.writeDouble( result.coverslipPosition );
+				writeDoubles( out, result.ellipsoidCenter );
+				writeDoubles( out, result.ellipsoidEulerAnglesInDegrees );
+				writeMask( out, result.embryoMask );
+			}
+
+			Files.move( tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING );
+		}
+		catch ( IOException e )
+		{
+			RegistrationLogger.log( "Could not write registration cache: " + file + ": " + e.getMessage() );
+		}
+	}
+
+	private File getFile( String key )
+	{
+		return new File( directory, key + ".flyreg" );
+	}
+
+	/**
+	 * @return all settings that influence the registration result
+	 */
+	private static String getSettingsDescription( FlyEmbryoRegistrationSettings settings )
+	{
+		return "version=" + VERSION
+				+ ";drosophilaLength=" + FlyEmbryoRegistrationSettings.drosophilaLength
+				+ ";drosophilaWidth=" + FlyEmbryoRegistrationSettings.drosophilaWidth
+				+ ";alignmentChannelIndexOneBased=" + settings.alignmentChannelIndexOneBased
+				+ ";registerAtPyramidLevel=" + settings.registerAtPyramidLevel
+				+ ";registrationResolution=" + settings.registrationResolution
+				+ ";refractiveIndexAxialCalibrationCorrectionFactor=" + settings.refractiveIndexAxialCalibrationCorrectionFactor
+				+ ";refractiveIndexIntensityCorrectionDecayLength=" + settings.refractiveIndexIntensityCorrectionDecayLength
+				+ ";thresholdModality=" + settings.thresholdModality
+				+ ";thresholdInUnitsOfBackgroundPeakHalfWidth=" + settings.thresholdInUnitsOfBackgroundPeakHalfWidth
+				+ ";minimalObjectSize=" + settings.minimalObjectSize
+				+ ";watershedSeedsGlobalDistanceThreshold=" + settings.watershedSeedsGlobalDistanceThreshold
+				+ ";watershedSeedsLocalMaximaDistanceThreshold=" + settings.watershedSeedsLocalMaximaDistanceThreshold
+				+ ";watershedSeedsLocalMaximaSearchRadius=" + settings.watershedSeedsLocalMaximaSearchRadius
+				+ ";centralRegionDistance=" + settings.centralRegionDistance
+				+ ";coarseToFineSegmentation=" + settings.coarseToFineSegmentation
+				+ ";coarseSegmentationResolutionFactor=" + settings.coarseSegmentationResolutionFactor
+				+ ";coarseSegmentationMargin=" + settings.coarseSegmentationMargin
+				+ ";rollAngleComputationMethod=" + settings.rollAngleComputationMethod
+				+ ";projectionXMin=" + settings.projectionXMin
+				+ ";projectionXMax=" + settings.projectionXMax
+				+ ";projectionBlurSigma=" + settings.projectionBlurSigma;
+	}
+
+	private static void writeDoubles( DataOutputStream out, double[] values ) throws IOException
+	{
+		out.writeInt( values.length );
+		for ( double value : values )
+			out.writeDouble( value );
+	}
+
+	private static double[] readDoubles( DataInputStream in ) throws IOException
+	{
+		final double[] values = new double[ in.readInt() ];
+		for ( int i = 0; i < values.length; ++i )
+			values[ i ] = in.readDouble();
+		return values;
+	}
+
+	private static void writeMask( DataOutputStream out, RandomAccessibleInterval< BitType > mask ) throws IOException
+	{
+		out.writeInt( mask.numDimensions() );
+		for ( int d = 0; d < mask.numDimensions(); ++d )
+		{
+			out.writeLong( mask.min( d ) );
+			out.writeLong( mask.dimension( d ) );
+		}
+
+		// bit-packed, in flat iteration order
+		long word = 0;
+		int bit = 0;
+		for ( BitType value : Views.flatIterable( mask ) )
+		{
+			if ( value.get() ) word |= 1L << bit;
+
+			if ( ++bit == 64 )
+			{
+				out.writeLong( word );
+				word = 0;
+				bit = 0;
+			}
+		}
+
+		if ( bit > 0 ) out.writeLong( word );
+	}
+
+	private static RandomAccessibleInterval< BitType > readMask( DataInputStream in ) throws IOException
+	{
+		final int numDimensions = in.readInt();
+		final long[] min = new long[ numDimensions ];
+		final long[] dimensions = new long[ numDimensions ];
+		for ( int d = 0; d < numDimensions; ++d )
+		{
+			min[ d ] = in.readLong();
+			dimensions[ d ] = in.readLong();
+		}
+
+		final Img< BitType > mask = ArrayImgs.bits( dimensions );
+
+		long word = 0;
+		int bit = 64;
+		final Cursor< BitType > cursor = Views.flatIterable( mask ).cursor();
+		while ( cursor.hasNext() )
+		{
+			if ( bit == 64 )
+			{
+				word = in.readLong();
+				bit = 0;
+			}
+
+			cursor.next().set( ( word & ( 1L << bit++ ) ) != 0 );
+		}
+
+		return Views.translate( mask, min );
+	}
+}
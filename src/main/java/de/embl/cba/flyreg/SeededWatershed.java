@@ -0,0 +1,214 @@
+/*-
+ * #%L
+ * Fiji plugin for automated 3d spindle morphometry
+ * %%
+ * Copyright (C) 2018 - 2021 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.embl.cba.flyreg;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.IntArray;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.view.Views;
+
+import java.util.Arrays;
+
+/**
+ * Seeded watershed on a distance map, restricted to a mask.
+ *
+ * - The regions grow from the seeds towards decreasing distances,
+ *   i.e. like a watershed on the inverted distance map
+ * - Only voxels within the mask are visited and labeled;
+ *   mask voxels that cannot be reached from any seed within the mask remain 0
+ * - The distances are quantized to integers (exact for squared euclidean distances)
+ *   and the voxels are flooded with a bucket queue, one bucket per distance level
+ * - Neighbors share a face (4-connected in 2D, 6-connected in 3D)
+ */
+public class SeededWatershed
+{
+	/**
+	 * @param distances
+	 * 				non-negative distance map
+	 * @param mask
+	 * 				voxels to be labeled
+	 * @param seeds
+	 * 				label image with the seeds, 0 is background
+	 * @param labels
+	 * 				output label image, same dimensions as the inputs
+	 * @return the largest label
+	 */
+	public static < R extends RealType< R > > int compute(
+			RandomAccessibleInterval< R > distances,
+			RandomAccessibleInterval< BitType > mask,
+			RandomAccessibleInterval< IntType > seeds,
+			ArrayImg< IntType, IntArray > labels )
+	{
+		final int n = labels.numDimensions();
+		final long[] dimensions = new long[ n ];
+		labels.dimensions( dimensions );
+
+		final int[] labelArray = labels.update( null ).getCurrentStorageArray();
+		final int[] levels = new int[ labelArray.length ];
+
+		/**
+		 * Read inputs
+		 * - level -1: outside mask
+		 * - infinite distances (e.g. a mask without background) are clamped to
+		 *   one level above the largest finite distance
+		 */
+		final Cursor< R > distanceCursor = Views.flatIterable( distances ).cursor();
+		final Cursor< BitType > maskCursor = Views.flatIterable( mask ).cursor();
+		final Cursor< IntType > seedCursor = Views.flatIterable( seeds ).cursor();
+
+		int maxLevel = 0;
+		int maxLabel = 0;
+		boolean isAnyLevelUnbounded = false;
+		for ( int i = 0; i < levels.length; ++i )
+		{
+			final double distance = distanceCursor.next().getRealDouble();
+			final boolean inside = maskCursor.next().get();
+			final int seed = seedCursor.next().get();
+
+			if ( ! inside )
+			{
+				levels[ i ] = -1;
+				labelArray[ i ] = 0;
+				continue;
+			}
+
+			labelArray[ i ] = seed;
+			maxLabel = Math.max( maxLabel, seed );
+
+			if ( distance >= Integer.MAX_VALUE )
+			{
+				levels[ i ] = Integer.MAX_VALUE;
+				isAnyLevelUnbounded = true;
+				continue;
+			}
+
+			levels[ i ] = Math.max( 0, ( int ) distance );
+			maxLevel = Math.max( maxLevel, levels[ i ] );
+		}
+
+		if ( isAnyLevelUnbounded )
+		{
+			++maxLevel;
+			for ( int i = 0; i < levels.length; ++i )
+				if ( levels[ i ] == Integer.MAX_VALUE )
+					levels[ i ] = maxLevel;
+		}
+
+		final BucketQueue queue = new BucketQueue( maxLevel + 1 );
+		for ( int i = 0; i < levels.length; ++i )
+			if ( labelArray[ i ] > 0 )
+				queue.add( levels[ i ], i );
+
+		/**
+		 * Flood, from the highest to the lowest level
+		 * - neighbors at higher levels than the current one are added to the current level
+		 */
+		final int[] strides = new int[ n ];
+		strides[ 0 ] = 1;
+		for ( int d = 1; d < n; ++d )
+			strides[ d ] = strides[ d - 1 ] * ( int ) dimensions[ d - 1 ];
+
+		for ( int level = maxLevel; level >= 0; --level )
+		{
+			for ( int k = 0; k < queue.size( level ); ++k )
+			{
+				final int index = queue.get( level, k );
+				final int label = labelArray[ index ];
+
+				for ( int d = 0; d < n; ++d )
+				{
+					final long position = ( index / strides[ d ] ) % dimensions[ d ];
+
+					if ( position > 0 )
+						flood( index - strides[ d ], label, level, levels, labelArray, queue );
+
+					if ( position < dimensions[ d ] - 1 )
+						flood( index + strides[ d ], label, level, levels, labelArray, queue );
+				}
+			}
+
+			queue.clear( level );
+		}
+
+		return maxLabel;
+	}
+
+	private static void flood( int neighbor, int label, int level, int[] levels, int[] labelArray, BucketQueue queue )
+	{
+		if ( levels[ neighbor ] < 0 || labelArray[ neighbor ] != 0 ) return;
+
+		labelArray[ neighbor ] = label;
+		queue.add( Math.min( levels[ neighbor ], level ), neighbor );
+	}
+
+	/**
+	 * One FIFO queue of voxel indices per level.
+	 */
+	private static class BucketQueue
+	{
+		private final int[][] buckets;
+		private final int[] sizes;
+
+		BucketQueue( int numLevels )
+		{
+			buckets = new int[ numLevels ][];
+			sizes = new int[ numLevels ];
+		}
+
+		void add( int level, int index )
+		{
+			if ( buckets[ level ] == null )
+				buckets[ level ] = new int[ 16 ];
+			else if ( sizes[ level ] == buckets[ level ].length )
+				buckets[ level ] = Arrays.copyOf( buckets[ level ], 2 * sizes[ level ] );
+
+			buckets[ level ][ sizes[ level ]++ ] = index;
+		}
+
+		int size( int level )
+		{
+			return sizes[ level ];
+		}
+
+		int get( int level, int k )
+		{
+			return buckets[ level ][ k ];
+		}
+
+		void clear( int level )
+		{
+			buckets[ level ] = null;
+			sizes[ level ] = 0;
+		}
+	}
+}
@@ -0,0 +1,223 @@
+/*-
+ * #%L
+ * Fiji plugin for automated 3d spindle morphometry
+ * %%
+ * Copyright (C) 2018 - 2021 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.embl.cba.flyreg;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Exact squared euclidean distance transform on flat float arrays,
+ * computed separably, one dimension after the other.
+ *
+ * - Felzenszwalb & Huttenlocher, Distance Transforms of Sampled Functions, 2012
+ * - The cost is linear in the number of voxels, independent of the distances
+ * - The lines along each dimension are processed in parallel
+ */
+public class SquaredDistanceTransform
+{
+	public static final float INFINITY = Float.POSITIVE_INFINITY;
+
+	private static final int LINES_PER_TASK = 64;
+
+	/**
+	 * Replaces the values in place by their squared distance transform, i.e.
+	 * value( x ) = min_y ( | x - y |^2 + value( y ) ).
+	 * Sites have the value zero, all other voxels {@link #INFINITY}.
+	 *
+	 * @param values
+	 * 				flat array, first dimension varying fastest
+	 * @param dimensions
+	 * 				dimensions of the array
+	 * @param calibration
+	 * 				voxel size along each dimension
+	 */
+	public static void transform( float[] values, int[] dimensions, double[] calibration )
+	{
+		for ( int d = 0; d < dimensions.length; ++d )
+			transform( values, dimensions, d, calibration[ d ] * calibration[ d ] );
+	}
+
+	public static void transform( float[] values, int[] dimensions )
+	{
+		final double[] calibration = new double[ dimensions.length ];
+		Arrays.fill( calibration, 1.0 );
+		transform( values, dimensions, calibration );
+	}
+
+	/**
+	 * Squared euclidean distances of the mask voxels to the closest background voxel,
+	 * in pixel units; background voxels have the value zero.
+	 *
+	 * - Float replacement of Algorithms.computeSquaredDistances, using half the memory
+	 * - Squared pixel distances are integers, which are exact in float precision
+	 *   up to 2^24, i.e. for distances up to 4096 pixels
+	 *
+	 * @param mask
+	 * 				2D or 3D binary mask
+	 * @return squared distances, on the same interval as the mask
+	 */
+	public static RandomAccessibleInterval< FloatType > squaredDistancesToBackground( RandomAccessibleInterval< BitType > mask )
+	{
+		final int n = mask.numDimensions();
+		final int[] dimensions = new int[ n ];
+		long numElements = 1;
+		for ( int d = 0; d < n; ++d )
+		{
+			dimensions[ d ] = ( int ) mask.dimension( d );
+			numElements *= dimensions[ d ];
+		}
+
+		if ( numElements > Integer.MAX_VALUE )
+			throw new IllegalArgumentException( "Mask is too large for the distance transform: " + Intervals.toString( mask ) );
+
+		final ArrayImg< FloatType, FloatArray > distances = ArrayImgs.floats( Intervals.dimensionsAsLongArray( mask ) );
+		final float[] values = distances.update( null ).getCurrentStorageArray();
+
+		/**
+		 * Background voxels are the sites
+		 * - read the mask plane-wise in parallel
+		 */
+		final int numPlanes = n == 3 ? dimensions[ 2 ] : 1;
+		final int planeSize = ( int ) ( numElements / numPlanes );
+
+		IntStream.range( 0, numPlanes ).parallel().forEach( z ->
+		{
+			final RandomAccessibleInterval< BitType > plane =
+					n == 3 ? Views.hyperSlice( mask, 2, mask.min( 2 ) + z ) : mask;
+			final Cursor< BitType > cursor = Views.flatIterable( plane ).cursor();
+
+			int index = z * planeSize;
+			while ( cursor.hasNext() )
+				values[ index++ ] = cursor.next().get() ? INFINITY : 0;
+		} );
+
+		transform( values, dimensions );
+
+		return Views.translate( distances, Intervals.minAsLongArray( mask ) );
+	}
+
+	private static void transform( float[] values, int[] dimensions, int d, double weight )
+	{
+		final int length = dimensions[ d ];
+
+		int stride = 1;
+		for ( int i = 0; i < d; ++i )
+			stride *= dimensions[ i ];
+
+		final int lineStride = stride;
+		final int numLines = values.length / length;
+		final int numTasks = ( numLines + LINES_PER_TASK - 1 ) / LINES_PER_TASK;
+
+		IntStream.range( 0, numTasks ).parallel().forEach( task ->
+		{
+			final double[] f = new double[ length ];
+			final double[] distances = new double[ length ];
+			final int[] locations = new int[ length ];
+			final double[] boundaries = new double[ length + 1 ];
+
+			final int lastLine = Math.min( numLines, ( task + 1 ) * LINES_PER_TASK );
+			for ( int line = task * LINES_PER_TASK; line < lastLine; ++line )
+			{
+				final int start = line % lineStride + ( line / lineStride ) * lineStride * length;
+
+				for ( int q = 0; q < length; ++q )
+					f[ q ] = values[ start + q * lineStride ];
+
+				if ( ! transformLine( f, distances, locations, boundaries, weight ) ) continue;
+
+				for ( int q = 0; q < length; ++q )
+					values[ start + q * lineStride ] = ( float ) distances[ q ];
+			}
+		} );
+	}
+
+	/**
+	 * Lower envelope of the parabolas rooted at the finite values of f.
+	 *
+	 * @return false if all values are infinite, in which case distances is not written
+	 */
+	private static boolean transformLine( double[] f, double[] distances, int[] locations, double[] boundaries, double weight )
+	{
+		final int length = f.length;
+
+		int k = -1;
+		for ( int q = 0; q < length; ++q )
+		{
+			if ( f[ q ] == INFINITY ) continue;
+
+			if ( k < 0 )
+			{
+				k = 0;
+				locations[ 0 ] = q;
+				boundaries[ 0 ] = Double.NEGATIVE_INFINITY;
+				boundaries[ 1 ] = Double.POSITIVE_INFINITY;
+				continue;
+			}
+
+			double s = intersection( f, locations[ k ], q, weight );
+			while ( s <= boundaries[ k ] )
+			{
+				k--;
+				s = intersection( f, locations[ k ], q, weight );
+			}
+
+			k++;
+			locations[ k ] = q;
+			boundaries[ k ] = s;
+			boundaries[ k + 1 ] = Double.POSITIVE_INFINITY;
+		}
+
+		if ( k < 0 ) return false;
+
+		k = 0;
+		for ( int q = 0; q < length; ++q )
+		{
+			while ( boundaries[ k + 1 ] < q ) k++;
+			final double delta = q - locations[ k ];
+			distances[ q ] = weight * delta * delta + f[ locations[ k ] ];
+		}
+
+		return true;
+	}
+
+	private static double intersection( double[] f, int p, int q, double weight )
+	{
+		return ( ( f[ q ] + weight * q * q ) - ( f[ p ] + weight * p * p ) ) / ( 2.0 * weight * ( q - p ) );
+	}
+}
@@ -0,0 +1,347 @@
+/*-
+ * #%L
+ * Fiji plugin for automated 3d spindle morphometry
+ * %%
+ * Copyright (C) 2018 - 2021 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.embl.cba.flyreg;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Processes the files that appear in a folder, e.g. while a microscope is writing them.
+ *
+ * The folder is polled for files that are accepted, but not yet processed.
+ * A file is considered completely written once its size and modification
+ * time did not change for the settle time.
+ *
+ * The files are then pushed through a pipeline of stages (e.g. read, register, write),
+ * each running in its own thread, with bounded queues between the stages,
+ * such that e.g. the next file is read while the current one is registered.
+ * If a stage fails, the remaining stages are skipped for this file.
+ * If a stage thread stops nevertheless, the files that would be passed to it are dropped,
+ * such that the pipeline can still be shut down.
+ *
+ * The pipeline stops once no new file appeared for the idle timeout,
+ * and all files have been processed.
+ */
+public class WatchFolderPipeline< J >
+{
+	private final File folder;
+	private final Predicate< File > acceptFile;
+	private final long pollMillis;
+	private final long settleMillis;
+	private final long idleTimeoutMillis;
+	private final int queueCapacity;
+
+	private final Map< File, long[] > candidates = new HashMap<>();
+	private final Set< File > submitted = new HashSet<>();
+
+	/**
+	 * @param folder
+	 * 				watched folder
+	 * @param acceptFile
+	 * 				selects the files to be processed
+	 * @param pollMillis
+	 * 				interval at which the folder is listed
+	 * @param settleMillis
+	 * 				time for which a file must not change before it is processed
+	 * @param idleTimeoutMillis
+	 * 				time after the last new file, after which the pipeline stops
+	 * @param queueCapacity
+	 * 				maximal number of files waiting in front of each stage
+	 */
+	public WatchFolderPipeline( File folder, Predicate< File > acceptFile, long pollMillis, long settleMillis, long idleTimeoutMillis, int queueCapacity )
+	{
+		this.folder = folder;
+		this.acceptFile = acceptFile;
+		this.pollMillis = Math.max( 1, pollMillis );
+		this.settleMillis = settleMillis;
+		this.idleTimeoutMillis = idleTimeoutMillis;
+		this.queueCapacity = Math.max( 1, queueCapacity );
+	}
+
+	/**
+	 * Watches the folder and processes the files, until the idle timeout.
+	 *
+	 * @param createJob
+	 * 				creates the job of a completely written file
+	 * @param stages
+	 * 				processing stages, each returning false if the job failed
+	 * @param finish
+	 * 				called for each job after the last stage, with whether all stages succeeded
+	 */
+	public void run( Function< File, J > createJob, List< Predicate< J > > stages, BiConsumer< J, Boolean > finish ) throws InterruptedException
+	{
+		final List< BlockingQueue< Item< J > > > queues = new ArrayList<>();
+		for ( int s = 0; s <= stages.size(); ++s )
+			queues.add( new ArrayBlockingQueue<>( queueCapacity ) );
+
+		// thread s takes from queue s
+		final List< Thread > threads = new ArrayList<>();
+		for ( int s = 0; s < stages.size(); ++s )
+			threads.add( createStage( stages.get( s ), queues.get( s ), queues.get( s + 1 ), threads, s + 1, "watch-folder-stage-" + ( s + 1 ) ) );
+		threads.add( createFinish( finish, queues.get( stages.size() ) ) );
+
+		for ( Thread thread : threads )
+			thread.start();
+
+		try
+		{
+			long lastNewFileMillis = System.currentTimeMillis();
+
+			while ( System.currentTimeMillis() - lastNewFileMillis < idleTimeoutMillis )
+			{
+				for ( File file : pollCompletelyWrittenFiles() )
+				{
+					RegistrationLogger.log( "New file: " + file );
+					lastNewFileMillis = System.currentTimeMillis();
+
+					final J job;
+					try
+					{
+						job = createJob.apply( file );
+					}
+					catch ( Throwable e )
+					{
+						RegistrationLogger.log( "ERROR: " + e );
+						continue;
+					}
+
+					if ( ! put( queues.get( 0 ), new Item<>( job ), threads.get( 0 ) ) )
+						throw new IllegalStateException( "The first stage of the watch folder pipeline stopped." );
+				}
+
+				if ( isAnyFileBeingWritten() )
+					lastNewFileMillis = System.currentTimeMillis();
+
+				Thread.sleep( pollMillis );
+			}
+
+			RegistrationLogger.log( "No new files in " + folder + " for " + idleTimeoutMillis / 1000 + " seconds, stopping..." );
+		}
+		finally
+		{
+			put( queues.get( 0 ), Item.end(), threads.get( 0 ) );
+
+			for ( Thread thread : threads )
+				thread.join();
+		}
+	}
+
+	/**
+	 * Candidates that did not change for the settle time, but are not readable,
+	 * do not count as being written, such that they do not prevent the idle timeout.
+	 *
+	 * @return whether an accepted file changed within the settle time
+	 */
+	private boolean isAnyFileBeingWritten()
+	{
+		final long now = System.currentTimeMillis();
+
+		for ( long[] candidate : candidates.values() )
+			if ( now - candidate[ 2 ] < settleMillis )
+				return true;
+
+		return false;
+	}
+
+	/**
+	 * Candidates that are no longer listed, e.g. temporary files
+	 * that were renamed after writing, are forgotten.
+	 *
+	 * @return the accepted files that did not change since the settle time
+	 */
+	private List< File > pollCompletelyWrittenFiles()
+	{
+		final List< File > completelyWritten = new ArrayList<>();
+
+		final File[] files = folder.listFiles();
+		if ( files == null ) return completelyWritten;
+		Arrays.sort( files );
+
+		candidates.keySet().retainAll( Arrays.asList( files ) );
+
+		final long now = System.currentTimeMillis();
+
+		for ( File file : files )
+		{
+			if ( ! file.isFile() || submitted.contains( file ) || ! acceptFile.test( file ) ) continue;
+
+			final long size = file.length();
+			final long lastModified = file.lastModified();
+
+			// size, modification time, time since they are unchanged
+			final long[] previous = candidates.get( file );
+
+			if ( previous == null || previous[ 0 ] != size || previous[ 1 ] != lastModified )
+			{
+				candidates.put( file, new long[]{ size, lastModified, now } );
+			}
+			else if ( now - previous[ 2 ] >= settleMillis && file.canRead() )
+			{
+				candidates.remove( file );
+				submitted.add( file );
+				completelyWritten.add( file );
+			}
+		}
+
+		return completelyWritten;
+	}
+
+	/**
+	 * @param threads
+	 * 				all threads of the pipeline, thread s takes from queue s
+	 * @param next
+	 * 				index of the thread that takes from the output queue
+	 */
+	private Thread createStage( Predicate< J > stage, BlockingQueue< Item< J > > input, BlockingQueue< Item< J > > output, List< Thread > threads, int next, String name )
+	{
+		return create( name, () ->
+		{
+			try
+			{
+				while ( true )
+				{
+					final Item< J > item = input.take();
+
+					if ( item.isEnd() ) return;
+
+					if ( ! item.failed )
+					{
+						try
+						{
+							item.failed = ! stage.test( item.job );
+						}
+						catch ( Throwable e )
+						{
+							RegistrationLogger.log( "ERROR: " + e );
+							item.failed = true;
+						}
+					}
+
+					if ( ! put( output, item, threads.get( next ) ) )
+						RegistrationLogger.log( "ERROR: " + name + " drops a file, the next stage stopped." );
+				}
+			}
+			finally
+			{
+				// also if this thread stops unexpectedly, such that the following threads end
+				put( output, Item.end(), threads.get( next ) );
+			}
+		} );
+	}
+
+	private Thread createFinish( BiConsumer< J, Boolean > finish, BlockingQueue< Item< J > > input )
+	{
+		return create( "watch-folder-finish", () ->
+		{
+			while ( true )
+			{
+				final Item< J > item = input.take();
+
+				if ( item.isEnd() ) return;
+
+				try
+				{
+					finish.accept( item.job, ! item.failed );
+				}
+				catch ( Throwable e )
+				{
+					RegistrationLogger.log( "ERROR: " + e );
+				}
+			}
+		} );
+	}
+
+	/**
+	 * Waits until the queue has space, unless the thread taking from it stopped.
+	 *
+	 * @return whether the item was put into the queue
+	 */
+	private boolean put( BlockingQueue< Item< J > > queue, Item< J > item, Thread consumer ) throws InterruptedException
+	{
+		while ( ! queue.offer( item, pollMillis, TimeUnit.MILLISECONDS ) )
+			if ( ! consumer.isAlive() ) return false;
+
+		return true;
+	}
+
+	private interface InterruptibleRunnable
+	{
+		void run() throws InterruptedException;
+	}
+
+	private static Thread create( String name, InterruptibleRunnable runnable )
+	{
+		final Thread thread = new Thread( () ->
+		{
+			try
+			{
+				runnable.run();
+			}
+			catch ( InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+			}
+		}, name );
+
+		return thread;
+	}
+
+	private static class Item< J >
+	{
+		final J job;
+		boolean failed;
+
+		Item( J job )
+		{
+			this.job = job;
+		}
+
+		static < J > Item< J > end()
+		{
+			return new Item<>( null );
+		}
+
+		boolean isEnd()
+		{
+			return job == null;
+		}
+	}
+}
@@ -0,0 +1,366 @@
+/*-
+ * #%L
+ * Fiji plugin for automated 3d spindle morphometry
+ * %%
+ * Copyright (C) 2018 - 2021 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package benchmark;
+
+import de.embl.cba.abberation.RefractiveIndexMismatchCorrectionSettings;
+import de.embl.cba.abberation.RefractiveIndexMismatchCorrections;
+import de.embl.cba.flyreg.AlignedIntensitySampler;
+import de.embl.cba.flyreg.FastMorphology;
+import de.embl.cba.flyreg.FlyEmbryoNerveCordRegistration;
+import de.embl.cba.flyreg.FlyEmbryoNerveCordRegistrationCommand;
+import de.embl.cba.flyreg.FlyEmbryoRegistrationSettings;
+import de.embl.cba.flyreg.HoleFilling;
+import de.embl.cba.flyreg.ImageStatistics;
+import de.embl.cba.flyreg.IntensityCorrectionLut;
+import de.embl.cba.flyreg.MaskComponents;
+import de.embl.cba.flyreg.RegistrationResult;
+import de.embl.cba.flyreg.SeededWatershed;
+import de.embl.cba.flyreg.SquaredDistanceTransform;
+import de.embl.cba.morphometry.Algorithms;
+import de.embl.cba.morphometry.Utils;
+import de.embl.cba.morphometry.geometry.CoordinatesAndValues;
+import de.embl.cba.morphometry.geometry.CurveAnalysis;
+import de.embl.cba.morphometry.geometry.ellipsoids.EllipsoidMLJ;
+import de.embl.cba.morphometry.geometry.ellipsoids.EllipsoidsMLJ;
+import ij.ImagePlus;
+import loci.common.DebugTools;
+import net.imagej.ImageJ;
+import net.imagej.ops.OpService;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.labeling.ConnectedComponents;
+import net.imglib2.algorithm.neighborhood.HyperSphereShape;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.IntArray;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.roi.labeling.ImgLabeling;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import static de.embl.cba.morphometry.Constants.X;
+import static de.embl.cba.transforms.utils.Scalings.createRescaledArrayImg;
+import static de.embl.cba.transforms.utils.Transforms.getScalingFactors;
+
+/**
+ * Benchmarks the stages of {@link FlyEmbryoNerveCordRegistration#run} separately.
+ *
+ * - The inputs of each stage are computed once per trial, such that
+ *   each benchmark method only measures its own stage
+ * - Run {@link #main} to also report the allocation rates (GC profiler)
+ * - Other inputs can be chosen on the command line, e.g. -p input=synthetic:512x256x192
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 2 )
+@Measurement( iterations = 5 )
+@Fork( value = 1, jvmArgsAppend = { "-Xmx8g", "-Djava.awt.headless=true" } )
+public class RegistrationStagesBenchmark< T extends RealType< T > & NativeType< T > >
+{
+	private static final String SYNTHETIC = "synthetic:";
+
+	/**
+	 * Either a file name within src/test/resources/test-data,
+	 * or "synthetic:<nx>x<ny>x<nz>" for synthetic images of that size
+	 */
+	@Param( {
+			"low_res_x60_y55_z41_yaw-22.zip",
+			"low_res_x58_y69_z38_yaw-54.zip",
+			"synthetic:256x128x96" } )
+	public String input;
+
+	@Param( { "2.0" } )
+	public double outputResolution;
+
+	private ImageJ ij;
+	private OpService opService;
+	private FlyEmbryoRegistrationSettings settings;
+	private FlyEmbryoNerveCordRegistrationCommand< T > command;
+	private FlyEmbryoNerveCordRegistration< T > registration;
+	private RegistrationResult registrationResult;
+	private File outputDirectory;
+
+	private ImagePlus imagePlus;
+	private RandomAccessibleInterval< T > image;
+	private double[] correctedCalibration;
+	private RandomAccessibleInterval< T > isotropic;
+	private RandomAccessibleInterval< T > intensityCorrected;
+	private RandomAccessibleInterval< BitType > mask;
+	private RandomAccessibleInterval< FloatType > distances;
+	private Img< IntType > seeds;
+	private RandomAccessibleInterval< T > registeredImages;
+
+	@Setup( Level.Trial )
+	public void setup() throws IOException
+	{
+		DebugTools.setRootLevel( "OFF" ); // Bio-Formats
+
+		ij = new ImageJ();
+		opService = ij.op();
+
+		if ( input.startsWith( SYNTHETIC ) )
+			imagePlus = SyntheticEmbryoImages.create( input.substring( SYNTHETIC.length() ), -30 );
+		else
+			imagePlus = Utils.openWithBioFormats( "src/test/resources/test-data/" + input );
+
+		final RandomAccessibleInterval< T > images = Utils.getChannelImages( imagePlus );
+		image = Utils.getChannelImage( images, 0 );
+
+		command = new FlyEmbryoNerveCordRegistrationCommand<>();
+		command.outputResolution = outputResolution;
+		// register the same channel that the stage benchmarks process
+		command.alignmentChannelIndexOneBased = 1;
+		command.setSettingsFromUI();
+
+		settings = new FlyEmbryoRegistrationSettings();
+		settings.outputResolution = outputResolution;
+		registration = new FlyEmbryoNerveCordRegistration<>( settings, opService );
+		if ( ! command.computeRegistration( imagePlus, registration ) )
+			throw new IllegalStateException( "Could not register: " + input );
+		registrationResult = registration.getResult();
+
+		correctedCalibration = RefractiveIndexMismatchCorrections.getAxiallyCorrectedCalibration(
+				Utils.getCalibration( imagePlus ), settings.refractiveIndexAxialCalibrationCorrectionFactor );
+		isotropic = isotropicRescaling();
+		intensityCorrected = intensityCorrection();
+		mask = thresholdAndMask();
+		distances = distanceTransform();
+		seeds = watershedSeeds();
+		registeredImages = outputResampling();
+
+		outputDirectory = Files.createTempDirectory( "fly-reg-benchmark" ).toFile();
+	}
+
+	@TearDown( Level.Trial )
+	public void tearDown()
+	{
+		final File[] files = outputDirectory.listFiles();
+		if ( files != null )
+			for ( File file : files )
+				file.delete();
+		outputDirectory.delete();
+
+		ij.context().dispose();
+	}
+
+	@Benchmark
+	public RandomAccessibleInterval< T > isotropicRescaling()
+	{
+		return createRescaledArrayImg( image,
+				getScalingFactors( correctedCalibration, settings.registrationResolution ) );
+	}
+
+	@Benchmark
+	public void histogramAndZProfile( Blackhole blackhole )
+	{
+		final ImageStatistics statistics = ImageStatistics.compute( isotropic );
+
+		final CoordinatesAndValues averageIntensitiesAlongZ =
+				statistics.getAverageIntensitiesAlongZ( settings.registrationResolution );
+
+		blackhole.consume( statistics.getMode( 1 ) );
+		blackhole.consume( CurveAnalysis.maximum( averageIntensitiesAlongZ ) );
+	}
+
+	/**
+	 * The corrected intensities are computed on read,
+	 * thus their cost is part of the consuming stages, e.g. {@link #thresholdAndMask}.
+	 */
+	@Benchmark
+	public RandomAccessibleInterval< T > intensityCorrection()
+	{
+		final RefractiveIndexMismatchCorrectionSettings correctionSettings = new RefractiveIndexMismatchCorrectionSettings();
+		correctionSettings.intensityOffset = 0;
+		correctionSettings.intensityDecayLengthMicrometer = settings.refractiveIndexIntensityCorrectionDecayLength;
+		correctionSettings.coverslipPositionMicrometer = registrationResult.coverslipPosition;
+		correctionSettings.pixelCalibrationMicrometer = settings.registrationResolution;
+
+		return new IntensityCorrectionLut( correctionSettings, isotropic.min( 2 ), isotropic.max( 2 ) )
+				.createCorrectedView( isotropic );
+	}
+
+	@Benchmark
+	public RandomAccessibleInterval< BitType > thresholdAndMask()
+	{
+		final double threshold = ImageStatistics.compute( intensityCorrected ).getHuangThreshold();
+		return Utils.copyAsArrayImg( Algorithms.createMask( intensityCorrected, threshold ) );
+	}
+
+	@Benchmark
+	public RandomAccessibleInterval< BitType > holeFilling()
+	{
+		final RandomAccessibleInterval< BitType > filled = Utils.copyAsArrayImg( mask );
+		HoleFilling.fillHolesInSlices( filled );
+		return filled;
+	}
+
+	/**
+	 * Previous, per slice and axis hole filling via ops, for comparison with {@link #holeFilling}.
+	 */
+	@Benchmark
+	public RandomAccessibleInterval< BitType > holeFillingOps()
+	{
+		RandomAccessibleInterval< BitType > filled = mask;
+		for ( int d = 0; d < 3; ++d )
+			filled = Algorithms.fillHoles3Din2D( filled, d, opService );
+		return filled;
+	}
+
+	@Benchmark
+	public RandomAccessibleInterval< FloatType > distanceTransform()
+	{
+		return SquaredDistanceTransform.squaredDistancesToBackground( mask );
+	}
+
+	/**
+	 * Previous, double precision distance transform, for comparison with {@link #distanceTransform}.
+	 */
+	@Benchmark
+	public RandomAccessibleInterval< DoubleType > distanceTransformDoublePrecision()
+	{
+		return Algorithms.computeSquaredDistances( mask );
+	}
+
+	@Benchmark
+	public Img< IntType > watershedSeeds()
+	{
+		final RandomAccessibleInterval< BitType > seedsMask = Algorithms.createWatershedSeeds(
+				distances,
+				new HyperSphereShape( ( int ) ( settings.watershedSeedsLocalMaximaSearchRadius / settings.registrationResolution ) ),
+				Math.pow( settings.watershedSeedsGlobalDistanceThreshold / settings.registrationResolution, 2 ),
+				Math.pow( settings.watershedSeedsLocalMaximaDistanceThreshold / settings.registrationResolution, 2 ) );
+
+		return new MaskComponents( seedsMask, ConnectedComponents.StructuringElement.FOUR_CONNECTED ).createLabelImg();
+	}
+
+	@Benchmark
+	public ImgLabeling< Integer, IntType > watershed()
+	{
+		final ArrayImg< IntType, IntArray > labelImg = ArrayImgs.ints( Intervals.dimensionsAsLongArray( mask ) );
+		final int numLabels = SeededWatershed.compute( distances, mask, seeds, labelImg );
+		return MaskComponents.asImgLabeling( labelImg, numLabels );
+	}
+
+	@Benchmark
+	public RandomAccessibleInterval< BitType > closing()
+	{
+		return FastMorphology.close( registrationResult.embryoMask, ( int ) ( 20.0 / settings.registrationResolution ) );
+	}
+
+	@Benchmark
+	public EllipsoidMLJ ellipsoidFit()
+	{
+		return EllipsoidsMLJ.computeParametersFromBinaryImage( Views.zeroMin( registrationResult.embryoMask ) );
+	}
+
+	/**
+	 * Flip profile and long axis projection (for the roll angle),
+	 * sampled through the alignment transform.
+	 */
+	@Benchmark
+	public void yawFlipRoll( Blackhole blackhole )
+	{
+		final AffineTransform3D transform = registrationResult.transformAtRegistrationResolution;
+
+		final AlignedIntensitySampler< T > alignedIntensities =
+				new AlignedIntensitySampler<>( isotropic, registrationResult.embryoMask, transform, true );
+
+		blackhole.consume( CurveAnalysis.maximum(
+				alignedIntensities.averageIntensitiesAlongXWithinMask( settings.registrationResolution ), null ) );
+
+		final RandomAccessibleInterval< T > projection = alignedIntensities.averageProjectionAlongX(
+				settings.projectionXMin, settings.projectionXMax, settings.registrationResolution );
+
+		final RandomAccessibleInterval< T > blurred =
+				Utils.createBlurredRai( projection, settings.projectionBlurSigma, settings.registrationResolution );
+
+		blackhole.consume( Algorithms.getMaximumLocation( blurred, Utils.as2dDoubleArray( settings.registrationResolution ) ) );
+	}
+
+	@Benchmark
+	public RandomAccessibleInterval< T > outputResampling()
+	{
+		return command.createRegisteredPlaneSampler( imagePlus, registration ).sampleAllPlanes();
+	}
+
+	@Benchmark
+	public File tiffWrite()
+	{
+		final String stump = outputDirectory + File.separator + "benchmark";
+		command.saveResults( stump, registeredImages );
+		return outputDirectory;
+	}
+
+	@Benchmark
+	public boolean fullRegistration()
+	{
+		return command.computeRegistration( imagePlus, new FlyEmbryoNerveCordRegistration<>( settings, opService ) );
+	}
+
+	public static void main( String[] args ) throws RunnerException
+	{
+		final Options options = new OptionsBuilder()
+				.include( RegistrationStagesBenchmark.class.getSimpleName() )
+				.addProfiler( GCProfiler.class )
+				.build();
+
+		new Runner( options ).run();
+	}
+}
@@ -0,0 +1,114 @@
+/*-
+ * #%L
+ * Fiji plugin for automated 3d spindle morphometry
+ * %%
+ * Copyright (C) 2018 - 2021 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package benchmark;
+
+import de.embl.cba.flyreg.FlyEmbryoRegistrationSettings;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ShortProcessor;
+
+import java.util.Random;
+
+/**
+ * Creates two channel images of an ellipsoidal embryo with
+ * a bright band along its long axis (mimicking the nerve cord).
+ */
+public class SyntheticEmbryoImages
+{
+	/**
+	 * @param size
+	 * 				e.g. "256x128x96" (x, y and z dimensions in pixels)
+	 * @param yawInDegrees
+	 * 				rotation of the embryo's long axis within the xy-plane
+	 */
+	public static ImagePlus create( String size, double yawInDegrees )
+	{
+		final String[] dimensions = size.split( "x" );
+		final int nx = Integer.parseInt( dimensions[ 0 ] );
+		final int ny = Integer.parseInt( dimensions[ 1 ] );
+		final int nz = Integer.parseInt( dimensions[ 2 ] );
+
+		// the embryo spans 70% of the x dimension
+		final double calibration = FlyEmbryoRegistrationSettings.drosophilaLength / ( 0.7 * nx );
+		final double a = FlyEmbryoRegistrationSettings.drosophilaLength / 2.0;
+		final double b = FlyEmbryoRegistrationSettings.drosophilaWidth / 2.0;
+
+		final double cos = Math.cos( Math.toRadians( yawInDegrees ) );
+		final double sin = Math.sin( Math.toRadians( yawInDegrees ) );
+
+		final Random random = new Random( 42 );
+		final ImageStack stack = new ImageStack( nx, ny );
+
+		for ( int z = 0; z < nz; ++z )
+		{
+			final short[][] channels = new short[ 2 ][ nx * ny ];
+
+			for ( int y = 0; y < ny; ++y )
+			{
+				for ( int x = 0; x < nx; ++x )
+				{
+					final double px = ( x - nx / 2.0 ) * calibration;
+					final double py = ( y - ny / 2.0 ) * calibration;
+					final double pz = ( z - nz / 2.0 ) * calibration;
+
+					// embryo coordinate system
+					final double u = cos * px + sin * py;
+					final double v = - sin * px + cos * py;
+
+					final double r = ( u * u ) / ( a * a ) + ( v * v + pz * pz ) / ( b * b );
+
+					double embryo = 100;
+					double nerveCord = 100;
+					if ( r <= 1.0 )
+					{
+						embryo = 1000;
+						if ( pz > 0.5 * b && Math.abs( v ) < 0.3 * b ) nerveCord = 3000;
+					}
+
+					final int i = y * nx + x;
+					channels[ 0 ][ i ] = ( short ) Math.max( 0, embryo + 20 * random.nextGaussian() );
+					channels[ 1 ][ i ] = ( short ) Math.max( 0, nerveCord + 20 * random.nextGaussian() );
+				}
+			}
+
+			for ( int c = 0; c < 2; ++c )
+				stack.addSlice( new ShortProcessor( nx, ny, channels[ c ], null ) );
+		}
+
+		final ImagePlus imagePlus = new ImagePlus( "synthetic " + size, stack );
+		imagePlus.setDimensions( 2, nz, 1 );
+		imagePlus.setOpenAsHyperStack( true );
+		imagePlus.getCalibration().pixelWidth = calibration;
+		imagePlus.getCalibration().pixelHeight = calibration;
+		imagePlus.getCalibration().pixelDepth = calibration;
+		imagePlus.getCalibration().setUnit( "micrometer" );
+
+		return imagePlus;
+	}
+}
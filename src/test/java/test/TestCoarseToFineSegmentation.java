@@ -0,0 +1,127 @@
+/*-
+ * #%L
+ * Fiji plugin for automated 3d spindle morphometry
+ * %%
+ * Copyright (C) 2018 - 2021 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package test;
+
+import de.embl.cba.flyreg.FlyEmbryoNerveCordRegistration;
+import de.embl.cba.flyreg.FlyEmbryoRegistrationSettings;
+import de.embl.cba.flyreg.RegistrationResult;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class TestCoarseToFineSegmentation
+{
+	private static final double CALIBRATION = 3.0;
+
+	@Test
+	public void touchingEmbryos()
+	{
+		final Img< UnsignedShortType > image = createTouchingEmbryos();
+
+		final RegistrationResult singleLevel = register( image, false );
+		final RegistrationResult coarseToFine = register( image, true );
+
+		assertArrayEquals( Intervals.minAsLongArray( singleLevel.embryoMask ), Intervals.minAsLongArray( coarseToFine.embryoMask ) );
+		assertArrayEquals( Intervals.maxAsLongArray( singleLevel.embryoMask ), Intervals.maxAsLongArray( coarseToFine.embryoMask ) );
+
+		final Cursor< BitType > cursor = Views.iterable( singleLevel.embryoMask ).localizingCursor();
+		final RandomAccess< BitType > access = coarseToFine.embryoMask.randomAccess();
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+			access.setPosition( cursor );
+			assertEquals( cursor.get().get(), access.get().get() );
+		}
+
+		assertArrayEquals( singleLevel.ellipsoidCenter, coarseToFine.ellipsoidCenter, 1.0E-6 );
+		assertArrayEquals( singleLevel.ellipsoidEulerAnglesInDegrees, coarseToFine.ellipsoidEulerAnglesInDegrees, 1.0E-6 );
+	}
+
+	private static RegistrationResult register( RandomAccessibleInterval< UnsignedShortType > image, boolean coarseToFine )
+	{
+		final FlyEmbryoRegistrationSettings settings = new FlyEmbryoRegistrationSettings();
+		settings.coarseToFineSegmentation = coarseToFine;
+
+		final FlyEmbryoNerveCordRegistration< UnsignedShortType > registration =
+				new FlyEmbryoNerveCordRegistration<>( settings, null );
+
+		registration.run( image, new double[]{ CALIBRATION, CALIBRATION, CALIBRATION } );
+
+		return registration.getResult();
+	}
+
+	/**
+	 * Central embryo with a second embryo touching it along y,
+	 * such that the crop of the coarse-to-fine segmentation cuts through the second one.
+	 */
+	private static Img< UnsignedShortType > createTouchingEmbryos()
+	{
+		final long[] dimensions = { 240, 200, 80 };
+		final double a = FlyEmbryoRegistrationSettings.drosophilaLength / 2.0;
+		final double b = FlyEmbryoRegistrationSettings.drosophilaWidth / 2.0;
+
+		final double[][] centers = {
+				{ dimensions[ 0 ] * CALIBRATION / 2.0, dimensions[ 1 ] * CALIBRATION / 2.0, dimensions[ 2 ] * CALIBRATION / 2.0 },
+				{ dimensions[ 0 ] * CALIBRATION / 2.0 + 60.0, dimensions[ 1 ] * CALIBRATION / 2.0 + 2 * b - 10.0, dimensions[ 2 ] * CALIBRATION / 2.0 } };
+
+		final Random random = new Random( 42 );
+		final Img< UnsignedShortType > image = ArrayImgs.unsignedShorts( dimensions );
+		final Cursor< UnsignedShortType > cursor = image.localizingCursor();
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+
+			double value = 100;
+			for ( double[] center : centers )
+			{
+				final double x = cursor.getDoublePosition( 0 ) * CALIBRATION - center[ 0 ];
+				final double y = cursor.getDoublePosition( 1 ) * CALIBRATION - center[ 1 ];
+				final double z = cursor.getDoublePosition( 2 ) * CALIBRATION - center[ 2 ];
+				if ( x * x / ( a * a ) + ( y * y + z * z ) / ( b * b ) <= 1.0 )
+					value = 1000;
+			}
+
+			cursor.get().set( ( int ) Math.max( 0, value + 20 * random.nextGaussian() ) );
+		}
+
+		return image;
+	}
+}
@@ -0,0 +1,115 @@
+/*-
+ * #%L
+ * Fiji plugin for automated 3d spindle morphometry
+ * %%
+ * Copyright (C) 2018 - 2021 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package test;
+
+import de.embl.cba.flyreg.FastMorphology;
+import de.embl.cba.morphometry.Algorithms;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.view.Views;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestFastMorphology
+{
+	@Test
+	public void closeRandomMasks()
+	{
+		final Random random = new Random( 42 );
+
+		for ( int trial = 0; trial < 5; ++trial )
+		{
+			final Img< BitType > mask = ArrayImgs.bits( 20 + random.nextInt( 10 ), 15 + random.nextInt( 10 ), 10 + random.nextInt( 5 ) );
+			for ( BitType value : mask )
+				value.set( random.nextDouble() < 0.15 );
+
+			for ( int radius = 1; radius <= 4; ++radius )
+				assertSameClosing( mask, radius );
+		}
+	}
+
+	@Test
+	public void closeEmbryoMasks()
+	{
+		// centered, and cut by the image border
+		for ( double[] center : new double[][]{ { 30, 20, 15 }, { 5, 20, 15 }, { 30, 2, 28 } } )
+		{
+			final Img< BitType > mask = createEmbryoMask( new long[]{ 60, 40, 30 }, center );
+
+			for ( int radius : new int[]{ 1, 3, 6 } )
+				assertSameClosing( mask, radius );
+		}
+	}
+
+	/**
+	 * Ellipsoid with notches and holes, which the closing fills
+	 */
+	private static Img< BitType > createEmbryoMask( long[] dimensions, double[] center )
+	{
+		final Img< BitType > mask = ArrayImgs.bits( dimensions );
+		final Cursor< BitType > cursor = mask.localizingCursor();
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+			final double x = ( cursor.getDoublePosition( 0 ) - center[ 0 ] ) / 25.0;
+			final double y = ( cursor.getDoublePosition( 1 ) - center[ 1 ] ) / 10.0;
+			final double z = ( cursor.getDoublePosition( 2 ) - center[ 2 ] ) / 10.0;
+
+			final boolean inside = x * x + y * y + z * z <= 1.0;
+			final boolean notch = cursor.getIntPosition( 0 ) % 7 == 0 && Math.abs( y ) > 0.5;
+			final boolean hole = cursor.getIntPosition( 0 ) % 11 == 3 && cursor.getIntPosition( 1 ) % 5 == 2;
+
+			cursor.get().set( inside && ! notch && ! hole );
+		}
+
+		return mask;
+	}
+
+	private static void assertSameClosing( RandomAccessibleInterval< BitType > mask, int radius )
+	{
+		final RandomAccessibleInterval< BitType > expected = Algorithms.close( mask, radius );
+		final RandomAccessibleInterval< BitType > actual = FastMorphology.close( mask, radius );
+
+		final RandomAccess< BitType > expectedAccess = expected.randomAccess();
+		final Cursor< BitType > cursor = Views.iterable( actual ).localizingCursor();
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+			expectedAccess.setPosition( cursor );
+			assertEquals( "radius " + radius, expectedAccess.get().get(), cursor.get().get() );
+		}
+	}
+}
@@ -0,0 +1,153 @@
+/*-
+ * #%L
+ * Fiji plugin for automated 3d spindle morphometry
+ * %%
+ * Copyright (C) 2018 - 2021 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package test;
+
+import de.embl.cba.flyreg.HoleFilling;
+import de.embl.cba.morphometry.Algorithms;
+import net.imagej.ImageJ;
+import net.imagej.ops.OpService;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.logic.BitType;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestHoleFilling
+{
+	private static ImageJ ij;
+	private static OpService opService;
+
+	@BeforeClass
+	public static void createImageJ()
+	{
+		ij = new ImageJ();
+		opService = ij.op();
+	}
+
+	@AfterClass
+	public static void disposeImageJ()
+	{
+		ij.context().dispose();
+	}
+
+	@Test
+	public void noiseMasks()
+	{
+		// many small holes, and background that reaches the border only diagonally
+		for ( double density : new double[]{ 0.4, 0.55, 0.7 } )
+		{
+			final Random random = new Random( Double.doubleToLongBits( density ) );
+
+			final Img< BitType > mask = ArrayImgs.bits( 23, 17, 9 );
+			for ( BitType value : mask )
+				value.set( random.nextDouble() < density );
+
+			assertSameHoleFilling( mask );
+		}
+	}
+
+	@Test
+	public void nestedCavities()
+	{
+		final Img< BitType > mask = ArrayImgs.bits( 40, 30, 20 );
+
+		// hollow cube, with an island that has a cavity of its own
+		setBox( mask, new int[]{ 2, 2, 2 }, new int[]{ 17, 17, 17 }, true );
+		setBox( mask, new int[]{ 3, 3, 3 }, new int[]{ 16, 16, 16 }, false );
+		setBox( mask, new int[]{ 6, 6, 6 }, new int[]{ 13, 13, 13 }, true );
+		setBox( mask, new int[]{ 8, 8, 8 }, new int[]{ 11, 11, 11 }, false );
+
+		// gap in one face, which opens the cube only within the xy-slices through it
+		setBox( mask, new int[]{ 2, 9, 9 }, new int[]{ 2, 10, 10 }, false );
+
+		// box that is open towards the x and z borders of the image
+		setBox( mask, new int[]{ 22, 5, 0 }, new int[]{ 39, 25, 12 }, true );
+		setBox( mask, new int[]{ 23, 6, 0 }, new int[]{ 39, 24, 11 }, false );
+
+		assertSameHoleFilling( mask );
+	}
+
+	@Test
+	public void holesAtSliceBorders()
+	{
+		// background touching the border is not a hole, but background next to it is
+		final Img< BitType > mask = ArrayImgs.bits( 12, 10, 8 );
+		final RandomAccess< BitType > access = mask.randomAccess();
+		for ( int z = 0; z < 8; ++z )
+			for ( int y = 0; y < 10; ++y )
+				for ( int x = 0; x < 12; ++x )
+				{
+					final boolean ring = ( x == 0 || x == 4 || y == 0 || y == 4 ) && x <= 4 && y <= 4;
+					final boolean diagonal = x == y + 5 || x == 16 - y;
+					access.setPosition( new int[]{ x, y, z } );
+					access.get().set( ( ring || diagonal ) && z != 3 );
+				}
+
+		assertSameHoleFilling( mask );
+	}
+
+	private static void setBox( Img< BitType > mask, int[] min, int[] max, boolean value )
+	{
+		final RandomAccess< BitType > access = mask.randomAccess();
+		for ( int z = min[ 2 ]; z <= max[ 2 ]; ++z )
+			for ( int y = min[ 1 ]; y <= max[ 1 ]; ++y )
+				for ( int x = min[ 0 ]; x <= max[ 0 ]; ++x )
+				{
+					access.setPosition( new int[]{ x, y, z } );
+					access.get().set( value );
+				}
+	}
+
+	private static void assertSameHoleFilling( Img< BitType > mask )
+	{
+		RandomAccessibleInterval< BitType > expected = mask.copy();
+		for ( int d = 0; d < 3; ++d )
+			expected = Algorithms.fillHoles3Din2D( expected, d, opService );
+
+		final Img< BitType > actual = mask.copy();
+		HoleFilling.fillHolesInSlices( actual );
+
+		final RandomAccess< BitType > expectedAccess = expected.randomAccess();
+		final Cursor< BitType > cursor = actual.localizingCursor();
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+			expectedAccess.setPosition( cursor );
+			assertEquals( expectedAccess.get().get(), cursor.get().get() );
+		}
+	}
+}
@@ -0,0 +1,171 @@
+/*-
+ * #%L
+ * Fiji plugin for automated 3d spindle morphometry
+ * %%
+ * Copyright (C) 2018 - 2021 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package test;
+
+import de.embl.cba.flyreg.MaskComponents;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.labeling.ConnectedComponents;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class TestMaskComponents
+{
+	@Test
+	public void randomMasks()
+	{
+		final Random random = new Random( 42 );
+
+		for ( ConnectedComponents.StructuringElement structuringElement : ConnectedComponents.StructuringElement.values() )
+			for ( int trial = 0; trial < 10; ++trial )
+			{
+				// deep enough for several z-slabs
+				final Img< BitType > mask = ArrayImgs.bits( 5 + random.nextInt( 20 ), 5 + random.nextInt( 20 ), 20 + random.nextInt( 50 ) );
+				final double density = 0.5 * random.nextDouble();
+				for ( BitType value : mask )
+					value.set( random.nextDouble() < density );
+
+				assertSameComponents( Views.translate( mask, 3, -2, 5 ), structuringElement );
+			}
+	}
+
+	@Test
+	public void componentsSpanningSlabs()
+	{
+		// tilted columns, each spanning all z-slabs, and connected only diagonally
+		final Img< BitType > mask = ArrayImgs.bits( 30, 30, 64 );
+		final RandomAccess< BitType > access = mask.randomAccess();
+		for ( int z = 0; z < 64; ++z )
+			for ( int column = 0; column < 5; ++column )
+			{
+				access.setPosition( new int[]{ 5 * column + z % 2, 5 * column + z % 3, z } );
+				access.get().setOne();
+			}
+
+		for ( ConnectedComponents.StructuringElement structuringElement : ConnectedComponents.StructuringElement.values() )
+			assertSameComponents( mask, structuringElement );
+	}
+
+	@Test
+	public void twoDimensionalMask()
+	{
+		final Random random = new Random( 42 );
+		final Img< BitType > mask = ArrayImgs.bits( 64, 48 );
+		for ( BitType value : mask )
+			value.set( random.nextDouble() < 0.4 );
+
+		for ( ConnectedComponents.StructuringElement structuringElement : ConnectedComponents.StructuringElement.values() )
+			assertSameComponents( mask, structuringElement );
+	}
+
+	/**
+	 * Compares labels (up to their numbering), sizes, bounding boxes and centroids
+	 */
+	private static void assertSameComponents(
+			RandomAccessibleInterval< BitType > mask,
+			ConnectedComponents.StructuringElement structuringElement )
+	{
+		final int n = mask.numDimensions();
+
+		final Img< IntType > expectedLabels = ArrayImgs.ints( Intervals.dimensionsAsLongArray( mask ) );
+		ConnectedComponents.labelAllConnectedComponents( Views.zeroMin( mask ), expectedLabels, structuringElement );
+
+		final MaskComponents components = new MaskComponents( mask, structuringElement );
+		final Img< IntType > labels = components.createLabelImg();
+
+		final Map< Integer, Integer > expectedToActual = new HashMap<>();
+		final Map< Integer, Long > sizes = new HashMap<>();
+		final Map< Integer, long[] > minima = new HashMap<>();
+		final Map< Integer, long[] > maxima = new HashMap<>();
+		final Map< Integer, double[] > sums = new HashMap<>();
+
+		final Cursor< IntType > expectedCursor = expectedLabels.localizingCursor();
+		final RandomAccess< IntType > access = labels.randomAccess();
+		while ( expectedCursor.hasNext() )
+		{
+			final int expected = expectedCursor.next().get();
+			access.setPosition( expectedCursor );
+			final int actual = access.get().get();
+
+			if ( expected == 0 )
+			{
+				assertEquals( 0, actual );
+				continue;
+			}
+
+			final Integer mapped = expectedToActual.putIfAbsent( expected, actual );
+			assertEquals( mapped == null ? actual : mapped, actual );
+
+			sizes.merge( actual, 1L, Long::sum );
+			final long[] min = minima.computeIfAbsent( actual, label -> new long[ n ] );
+			final long[] max = maxima.computeIfAbsent( actual, label -> new long[ n ] );
+			final double[] sum = sums.computeIfAbsent( actual, label -> new double[ n ] );
+			final boolean first = sizes.get( actual ) == 1;
+			for ( int d = 0; d < n; ++d )
+			{
+				final long position = expectedCursor.getLongPosition( d ) + mask.min( d );
+				min[ d ] = first ? position : Math.min( min[ d ], position );
+				max[ d ] = first ? position : Math.max( max[ d ], position );
+				sum[ d ] += position;
+			}
+		}
+
+		// the mapping is a bijection
+		assertEquals( expectedToActual.size(), components.getNumComponents() );
+		assertEquals( expectedToActual.size(), sizes.size() );
+
+		for ( int label = 1; label <= components.getNumComponents(); ++label )
+		{
+			final long size = sizes.get( label );
+			assertEquals( size, components.getSizes()[ label - 1 ] );
+
+			final double[] centroid = new double[ n ];
+			for ( int d = 0; d < n; ++d )
+				centroid[ d ] = sums.get( label )[ d ] / size;
+
+			assertArrayEquals( minima.get( label ), Arrays.copyOf( components.getBoundingBoxMin()[ label - 1 ], n ) );
+			assertArrayEquals( maxima.get( label ), Arrays.copyOf( components.getBoundingBoxMax()[ label - 1 ], n ) );
+			assertArrayEquals( centroid, Arrays.copyOf( components.getCentroids()[ label - 1 ], n ), 1.0E-9 );
+		}
+	}
+}
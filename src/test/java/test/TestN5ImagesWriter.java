@@ -0,0 +1,118 @@
+/*-
+ * #%L
+ * Fiji plugin for automated 3d spindle morphometry
+ * %%
+ * Copyright (C) 2018 - 2021 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package test;
+
+import de.embl.cba.flyreg.N5ImagesWriter;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.N5FSReader;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestN5ImagesWriter
+{
+	private static final int BLOCK_SIZE = 16;
+
+	@Test
+	public void readWithN5() throws IOException
+	{
+		// the image does not fill the last blocks, and the second channel has empty blocks
+		final long[] dimensions = { 40, 20, 18, 2 };
+		final Img< UnsignedShortType > images = ArrayImgs.unsignedShorts( dimensions );
+		final Cursor< UnsignedShortType > cursor = images.localizingCursor();
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+			final int x = cursor.getIntPosition( 0 );
+			final int c = cursor.getIntPosition( 3 );
+			if ( c == 1 && x >= BLOCK_SIZE ) continue;
+			cursor.get().set( 1 + x + 41 * cursor.getIntPosition( 1 ) + 1013 * cursor.getIntPosition( 2 ) + 30000 * c );
+		}
+
+		final File container = new File( Files.createTempDirectory( "fly-reg-n5" ).toFile(), "images.n5" );
+		new N5ImagesWriter< UnsignedShortType >( container.getPath(), 0.7, BLOCK_SIZE ).write( images );
+
+		final N5FSReader reader = new N5FSReader( container.getPath() );
+		final RandomAccess< UnsignedShortType > access = images.randomAccess();
+
+		for ( int c = 0; c < dimensions[ 3 ]; ++c )
+		{
+			final String dataset = "ch" + ( c + 1 );
+			final DatasetAttributes attributes = reader.getDatasetAttributes( dataset );
+
+			assertArrayEquals( new long[]{ dimensions[ 0 ], dimensions[ 1 ], dimensions[ 2 ] }, attributes.getDimensions() );
+			assertArrayEquals( new int[]{ BLOCK_SIZE, BLOCK_SIZE, BLOCK_SIZE }, attributes.getBlockSize() );
+			assertEquals( DataType.UINT16, attributes.getDataType() );
+			assertTrue( attributes.getCompression() instanceof GzipCompression );
+			assertArrayEquals( new double[]{ 0.7, 0.7, 0.7 }, reader.getAttribute( dataset, "resolution", double[].class ), 0.0 );
+
+			for ( long bz = 0; bz * BLOCK_SIZE < dimensions[ 2 ]; ++bz )
+				for ( long by = 0; by * BLOCK_SIZE < dimensions[ 1 ]; ++by )
+					for ( long bx = 0; bx * BLOCK_SIZE < dimensions[ 0 ]; ++bx )
+					{
+						final DataBlock< ? > block = reader.readBlock( dataset, attributes, bx, by, bz );
+
+						if ( c == 1 && bx > 0 )
+						{
+							assertNull( block );
+							continue;
+						}
+
+						final int[] size = block.getSize();
+						for ( int d = 0; d < 3; ++d )
+							assertEquals( Math.min( BLOCK_SIZE, dimensions[ d ] - new long[]{ bx, by, bz }[ d ] * BLOCK_SIZE ), size[ d ] );
+
+						final short[] data = ( short[] ) block.getData();
+						int i = 0;
+						for ( int z = 0; z < size[ 2 ]; ++z )
+							for ( int y = 0; y < size[ 1 ]; ++y )
+								for ( int x = 0; x < size[ 0 ]; ++x )
+								{
+									access.setPosition( new long[]{ bx * BLOCK_SIZE + x, by * BLOCK_SIZE + y, bz * BLOCK_SIZE + z, c } );
+									assertEquals( access.get().get(), data[ i++ ] & 0xFFFF );
+								}
+					}
+		}
+	}
+}
@@ -0,0 +1,104 @@
+/*-
+ * #%L
+ * Fiji plugin for automated 3d spindle morphometry
+ * %%
+ * Copyright (C) 2018 - 2021 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package test;
+
+import benchmark.SyntheticEmbryoImages;
+import de.embl.cba.flyreg.FlyEmbryoNerveCordRegistrationCommand;
+import ij.ImagePlus;
+import ij.io.FileSaver;
+import net.imagej.ImageJ;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestRegistrationLogFiles
+{
+	private static final int NUM_FILES = 3;
+
+	@Test
+	public void logFilesDoNotDependOnNumWorkers() throws IOException
+	{
+		final ImageJ ij = new ImageJ();
+
+		final File inputDirectory = Files.createTempDirectory( "fly-reg-input" ).toFile();
+		final File[] files = new File[ NUM_FILES ];
+		for ( int i = 0; i < NUM_FILES; ++i )
+		{
+			final ImagePlus imagePlus = SyntheticEmbryoImages.create( "128x64x48", -30 + 20 * i );
+			files[ i ] = new File( inputDirectory, "embryo" + i + ".tif" );
+			assertTrue( new FileSaver( imagePlus ).saveAsTiffStack( files[ i ].getPath() ) );
+		}
+
+		final File sequential = register( ij, files, 1 );
+		final File parallel = register( ij, files, NUM_FILES );
+
+		for ( File file : files )
+		{
+			final String sequentialLog = readLog( sequential, file );
+			final String parallelLog = readLog( parallel, file );
+
+			assertTrue( sequentialLog.contains( "Threshold" ) );
+			assertEquals( sequentialLog, parallelLog );
+		}
+
+		ij.context().dispose();
+	}
+
+	private static File register( ImageJ ij, File[] files, int numWorkers ) throws IOException
+	{
+		final FlyEmbryoNerveCordRegistrationCommand< UnsignedShortType > command = new FlyEmbryoNerveCordRegistrationCommand<>();
+		command.opService = ij.op();
+		command.files = files;
+		command.fileNameEndsWith = ".tif";
+		command.outputDirectory = Files.createTempDirectory( "fly-reg-output" ).toFile();
+		command.outputResolution = 4.0;
+		command.cacheRegistration = false;
+		command.numWorkers = numWorkers;
+		command.run();
+
+		return command.outputDirectory;
+	}
+
+	/**
+	 * @return log of the given input file, with the output directory replaced
+	 */
+	private static String readLog( File outputDirectory, File file ) throws IOException
+	{
+		final File log = new File( outputDirectory, file.getName() + ".log.txt" );
+		final String content = new String( Files.readAllBytes( log.toPath() ), StandardCharsets.UTF_8 );
+		return content.replace( outputDirectory.getPath(), "<output>" );
+	}
+}
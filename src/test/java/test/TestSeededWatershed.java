@@ -0,0 +1,100 @@
+/*-
+ * #%L
+ * Fiji plugin for automated 3d spindle morphometry
+ * %%
+ * Copyright (C) 2018 - 2021 EMBL
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package test;
+
+import de.embl.cba.flyreg.SeededWatershed;
+import de.embl.cba.flyreg.SquaredDistanceTransform;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.IntArray;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.real.FloatType;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestSeededWatershed
+{
+	@Test
+	public void maskWithoutBackground()
+	{
+		final ArrayImg< BitType, ? > mask = ArrayImgs.bits( 12, 10, 8 );
+		for ( BitType value : mask )
+			value.set( true );
+
+		// all distances are infinite
+		final RandomAccessibleInterval< FloatType > distances = SquaredDistanceTransform.squaredDistancesToBackground( mask );
+
+		final ArrayImg< IntType, IntArray > seeds = ArrayImgs.ints( 12, 10, 8 );
+		final RandomAccess< IntType > access = seeds.randomAccess();
+		access.setPosition( new long[]{ 2, 5, 4 } );
+		access.get().set( 1 );
+		access.setPosition( new long[]{ 9, 5, 4 } );
+		access.get().set( 2 );
+
+		final ArrayImg< IntType, IntArray > labels = ArrayImgs.ints( 12, 10, 8 );
+		final int numLabels = SeededWatershed.compute( distances, mask, seeds, labels );
+
+		assertEquals( 2, numLabels );
+		for ( IntType label : labels )
+			assertTrue( label.get() == 1 || label.get() == 2 );
+	}
+
+	@Test
+	public void infiniteAndFiniteDistances()
+	{
+		final ArrayImg< BitType, ? > mask = ArrayImgs.bits( 20, 1, 1 );
+		for ( BitType value : mask )
+			value.set( true );
+
+		// a plateau of infinite distances at the seed, descending to the borders
+		final ArrayImg< FloatType, ? > distances = ArrayImgs.floats( 20, 1, 1 );
+		final RandomAccess< FloatType > distanceAccess = distances.randomAccess();
+		for ( int x = 0; x < 20; ++x )
+		{
+			distanceAccess.setPosition( x, 0 );
+			distanceAccess.get().set( x >= 8 && x < 12 ? Float.POSITIVE_INFINITY : Math.min( x, 19 - x ) );
+		}
+
+		final ArrayImg< IntType, IntArray > seeds = ArrayImgs.ints( 20, 1, 1 );
+		final RandomAccess< IntType > seedAccess = seeds.randomAccess();
+		seedAccess.setPosition( 10, 0 );
+		seedAccess.get().set( 1 );
+
+		final ArrayImg< IntType, IntArray > labels = ArrayImgs.ints( 20, 1, 1 );
+		SeededWatershed.compute( distances, mask, seeds, labels );
+
+		for ( IntType label : labels )
+			assertEquals( 1, label.get() );
+	}
+}